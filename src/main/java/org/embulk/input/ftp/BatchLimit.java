@@ -0,0 +1,59 @@
+package org.embulk.input.ftp;
+
+import java.util.Optional;
+
+/**
+ * Bounds the number of files and bytes loaded in one run by {@code max_files_per_run} and
+ * {@code max_bytes_per_run}.
+ *
+ * At least one file is always accepted so that a file larger than {@code max_bytes_per_run} doesn't
+ * block the following runs.
+ */
+public class BatchLimit
+{
+    public static final BatchLimit UNLIMITED = new BatchLimit(Optional.<Integer>empty(), Optional.<Long>empty());
+
+    private final Optional<Integer> maxFiles;
+    private final Optional<Long> maxBytes;
+
+    private int files;
+    private long bytes;
+
+    public BatchLimit(final Optional<Integer> maxFiles, final Optional<Long> maxBytes)
+    {
+        this.maxFiles = maxFiles;
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean isUnlimited()
+    {
+        return !maxFiles.isPresent() && !maxBytes.isPresent();
+    }
+
+    /**
+     * Returns a counter starting from zero with the same limits.
+     */
+    public BatchLimit newCounter()
+    {
+        return new BatchLimit(maxFiles, maxBytes);
+    }
+
+    /**
+     * Counts a file of the given size if it fits in the limits. Unknown sizes are counted as 0 bytes.
+     */
+    public boolean tryAdd(final long size)
+    {
+        final long fileBytes = Math.max(size, 0L);
+        if (files > 0) {
+            if (maxFiles.isPresent() && files >= maxFiles.get()) {
+                return false;
+            }
+            if (maxBytes.isPresent() && bytes + fileBytes > maxBytes.get()) {
+                return false;
+            }
+        }
+        files++;
+        bytes += fileBytes;
+        return true;
+    }
+}
@@ -2,17 +2,24 @@ package org.embulk.input.ftp;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.function.Function;
 
+/**
+ * Pipes the bytes a transfer thread writes to a reader thread without copying them.
+ *
+ * The writer channel is closed when the transfer returns, and a transfer that throws fails the
+ * reader with the exception. A thread interrupted while waiting for the other side closes the pipe
+ * and gets {@link ClosedByInterruptException} with its interrupt status kept, so that the other
+ * side stops too.
+ */
 public class BlockingTransfer
 {
     private final WriterChannel writerChannel;
@@ -28,7 +35,15 @@ public class BlockingTransfer
                 executor.submit(new Callable<Void>() {
                     public Void call() throws Exception
                     {
-                        starter.run();
+                        try {
+                            starter.run();
+                        }
+                        catch (Throwable ex) {
+                            // before closing the writer, so that the reader doesn't see EOF
+                            transfer.transferFailed(ex);
+                            throw ex;
+                        }
+                        transfer.getWriterChannel().close();
                         return null;
                     }
                 })
@@ -62,36 +77,13 @@ public class BlockingTransfer
         readerChannel.overwriteException(exception);
     }
 
-    void waitForTransferCompletion() throws IOException
+    /**
+     * Returns true if the transfer thread has returned.
+     */
+    public boolean isDone()
     {
         Future<?> f = transferCompletionFuture;
-        if (f != null) {
-            try {
-                f.get();
-            }
-            catch (CancellationException ex) {
-                throw new InterruptedIOException();
-            }
-            catch (InterruptedException ex) {
-                throw new InterruptedIOException();
-            }
-            catch (ExecutionException ex) {
-                // transfer failed
-                Throwable e = ex.getCause();
-                if (e instanceof IOException) {
-                    throw (IOException) e;
-                }
-                else if (e instanceof RuntimeException) {
-                    throw (RuntimeException) e;
-                }
-                else if (e instanceof Error) {
-                    throw (Error) e;
-                }
-                else {
-                    throw new IOException(e);
-                }
-            }
-        }
+        return f != null && f.isDone();
     }
 
     public class WriterChannel implements WritableByteChannel
@@ -104,14 +96,16 @@ public class BlockingTransfer
             }
 
             synchronized (readerChannel) {
+                readerChannel.closeIfInterrupted();
                 if (!readerChannel.waitForWritable()) {
-                    return -1;
+                    // the reader closed the channel
+                    throw new ClosedChannelException();
                 }
 
                 readerChannel.setBuffer(src);
 
                 if (!readerChannel.waitForWritable()) {  // wait for complete processing src
-                    return -1;
+                    throw new ClosedChannelException();
                 }
             }
 
@@ -123,10 +117,10 @@ public class BlockingTransfer
             return readerChannel.isOpen();
         }
 
+        // called by the transfer thread, so it must not wait for the completion of the transfer
         public void close() throws IOException
         {
             readerChannel.closePeer();
-            waitForTransferCompletion();
         }
     }
 
@@ -160,6 +154,7 @@ public class BlockingTransfer
 
         public synchronized int read(ByteBuffer dst) throws IOException
         {
+            closeIfInterrupted();
             if (!waitForReadable()) {
                 return -1;
             }
@@ -199,12 +194,7 @@ public class BlockingTransfer
                     throwException();
                 }
 
-                try {
-                    wait();
-                }
-                catch (InterruptedException ex) {
-                    // TODO throws ClosedByInterruptException or InterruptedIOException?
-                }
+                waitInterruptibly();
             }
 
             return true;
@@ -220,17 +210,33 @@ public class BlockingTransfer
                     throwException();
                 }
 
-                try {
-                    wait();
-                }
-                catch (InterruptedException ex) {
-                    // TODO throws ClosedByInterruptException or InterruptedIOException?
-                }
+                waitInterruptibly();
             }
 
             return true;
         }
 
+        private void waitInterruptibly() throws ClosedByInterruptException
+        {
+            try {
+                wait();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            closeIfInterrupted();
+        }
+
+        // as an InterruptibleChannel, closes the channel if the thread is interrupted
+        private synchronized void closeIfInterrupted() throws ClosedByInterruptException
+        {
+            if (Thread.currentThread().isInterrupted()) {
+                ClosedByInterruptException closed = new ClosedByInterruptException();
+                setException(closed);
+                throw closed;
+            }
+        }
+
         public synchronized void closePeer() throws IOException
         {
             waitForWritable();
@@ -0,0 +1,74 @@
+package org.embulk.input.ftp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Computes the checksum of the bytes read through it, and fails at EOF if it doesn't match the
+ * checksum the server reported. The bytes are digested as they are read, without another pass.
+ */
+public class ChecksumInputStream
+        extends FilterInputStream
+{
+    private final String path;
+    private final String expected;
+    private final ServerChecksum.Digest digest;
+    private final byte[] single = new byte[1];
+    private boolean verified;
+
+    public ChecksumInputStream(final InputStream in, final String path, final ServerChecksum.Algorithm algorithm, final String expected)
+    {
+        super(in);
+        this.path = path;
+        this.expected = expected;
+        this.digest = algorithm.newDigest();
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        final int n = read(single, 0, 1);
+        return n < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        final int n = in.read(b, off, len);
+        if (n > 0) {
+            digest.update(b, off, n);
+        }
+        else if (n < 0 && !verified) {
+            final String actual = digest.format();
+            if (!actual.equals(expected)) {
+                throw new IOException(String.format("Checksum of file '%s' didn't match. The server reported %s but the loaded bytes have %s",
+                        path, expected, actual));
+            }
+            verified = true;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException
+    {
+        // reads the skipped bytes to digest them
+        final byte[] buffer = new byte[(int) Math.min(8192, Math.max(n, 1))];
+        long skipped = 0;
+        while (skipped < n) {
+            final int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (r < 0) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+}
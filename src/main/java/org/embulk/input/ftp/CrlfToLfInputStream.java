@@ -0,0 +1,100 @@
+package org.embulk.input.ftp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Converts CRLF line endings to LF, as ASCII mode of FTP does, on a file transferred in binary mode.
+ *
+ * Bytes are converted in the buffer of the caller without allocation. Offsets of the underlying
+ * stream stay in bytes of the server, so that a download can be resumed exactly.
+ */
+public class CrlfToLfInputStream
+        extends FilterInputStream
+{
+    private final byte[] single = new byte[1];
+    private int pushedBack = -1;
+
+    public CrlfToLfInputStream(final InputStream in)
+    {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        final int n = read(single, 0, 1);
+        return n < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        final int n;
+        if (pushedBack >= 0) {
+            b[off] = (byte) pushedBack;
+            pushedBack = -1;
+            n = 1;
+        }
+        else {
+            n = in.read(b, off, len);
+            if (n < 0) {
+                return -1;
+            }
+        }
+        final int end = off + n;
+        int w = off;
+        for (int r = off; r < end; r++) {
+            final byte c = b[r];
+            if (c == '\r') {
+                if (r + 1 < end) {
+                    if (b[r + 1] == '\n') {
+                        continue;
+                    }
+                }
+                else {
+                    // a CR at the end of the read. the next byte decides whether it ends a line
+                    final int next = in.read();
+                    if (next == '\n') {
+                        b[w++] = '\n';
+                        break;
+                    }
+                    pushedBack = next;
+                }
+            }
+            b[w++] = c;
+        }
+        return w - off;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException
+    {
+        final byte[] buffer = new byte[(int) Math.min(8192, Math.max(n, 1))];
+        long skipped = 0;
+        while (skipped < n) {
+            final int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (r < 0) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return pushedBack >= 0 ? 1 : 0;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+}
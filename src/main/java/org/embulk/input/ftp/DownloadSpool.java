@@ -0,0 +1,311 @@
+package org.embulk.input.ftp;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * Keeps the downloaded bytes of a file on local disk, so that a later run continues the download
+ * with REST from the last checkpoint instead of from the beginning.
+ *
+ * A spool is named by the server, path, size and modification time of the file, so a changed file
+ * never continues the spool of its old content. The name starts with the hash of the server and
+ * path, so that opening a spool deletes the spools of older contents of the file. The checkpoint
+ * file records how many bytes were forced to disk, and the data file is cut to it when the spool is
+ * opened again.
+ */
+public class DownloadSpool
+{
+    static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+
+    private final Logger log;
+    private final String path;
+    private final long size;
+    private final String filePrefix;
+    private final Path data;
+    private final Path checkpoint;
+
+    DownloadSpool(final Logger log, final Path directory, final String fileName, final String contentName, final String path,
+            final long size)
+    {
+        this.log = log;
+        this.path = path;
+        this.size = size;
+        this.filePrefix = fileName + "-";
+        this.data = directory.resolve(filePrefix + contentName + ".part");
+        this.checkpoint = directory.resolve(filePrefix + contentName + ".checkpoint");
+    }
+
+    /**
+     * Returns the spool of {@code entry}, which must have its size and modification time. With
+     * mirrors, {@code host} is the first of them, whichever the file is downloaded from.
+     */
+    public static DownloadSpool of(final Logger log, final Path directory, final String host, final int port, final FileEntry entry)
+    {
+        final String file = host + ":" + port + "\n" + entry.getPath();
+        final String content = entry.getSize() + "\n" + entry.getModifiedTime();
+        return new DownloadSpool(log, directory, sha256(file), sha256(file + "\n" + content), entry.getPath(), entry.getSize());
+    }
+
+    /**
+     * Returns a stream of the whole file, which reads the spooled bytes and then downloads the rest
+     * with {@code download} from the offset given to it, adding them to the spool. The spool is
+     * deleted when the stream reaches EOF, and checkpointed when it is closed before that.
+     */
+    public InputStream open(final LongFunction<InputStream> download) throws IOException
+    {
+        Files.createDirectories(data.getParent());
+        final FileChannel channel = FileChannel.open(data, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final FileLock lock = tryLock(channel);
+            if (lock == null) {
+                log.warn("Spool {} of file '{}' is used by another task. Downloading without it", data, path);
+                channel.close();
+                return download.apply(0L);
+            }
+            deleteOlderSpools();
+            final long committed = Math.min(Math.min(readCheckpoint(), channel.size()), size);
+            channel.truncate(committed);
+            if (committed > 0) {
+                log.info(String.format("Resuming file '%s' from the checkpoint at %,d of %,d bytes in %s", path, committed, size, data));
+            }
+            return new SpoolingInputStream(channel, lock, committed, download);
+        }
+        catch (final IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private static FileLock tryLock(final FileChannel channel) throws IOException
+    {
+        try {
+            return channel.tryLock();
+        }
+        catch (final OverlappingFileLockException ex) {
+            // locked by another task in this JVM
+            return null;
+        }
+    }
+
+    // Spools of other contents of the file would never be resumed, as the server has replaced them.
+    // A spool still locked by another task is left to it.
+    private void deleteOlderSpools() throws IOException
+    {
+        final List<Path> older = new ArrayList<>();
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(data.getParent(), filePrefix + "*.part")) {
+            for (final Path file : files) {
+                if (!file.equals(data)) {
+                    older.add(file);
+                }
+            }
+        }
+        for (final Path file : older) {
+            if (isInUse(file)) {
+                continue;
+            }
+            final String name = file.getFileName().toString();
+            Files.deleteIfExists(file.resolveSibling(name.substring(0, name.length() - ".part".length()) + ".checkpoint"));
+            Files.deleteIfExists(file);
+            log.info("Deleted spool {} of an older content of file '{}'", file, path);
+        }
+    }
+
+    // returns true if the spool is locked by another task, or deleted already
+    private static boolean isInUse(final Path file) throws IOException
+    {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            final FileLock lock = tryLock(channel);
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        }
+        catch (final NoSuchFileException ex) {
+            return true;
+        }
+    }
+
+    private long readCheckpoint() throws IOException
+    {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim());
+        }
+        catch (final NoSuchFileException ex) {
+            return 0L;
+        }
+        catch (final NumberFormatException ex) {
+            log.warn("Ignoring broken checkpoint file {}", checkpoint);
+            return 0L;
+        }
+    }
+
+    // the data is forced before the offset is recorded, so that the offset never exceeds the data
+    // that survived a crash of the machine
+    private void writeCheckpoint(final FileChannel channel, final long offset) throws IOException
+    {
+        channel.force(false);
+        final Path temporary = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.write(temporary, Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String sha256(final String key)
+    {
+        try {
+            final StringBuilder hex = new StringBuilder();
+            for (final byte b : MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        }
+        catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private class SpoolingInputStream
+            extends InputStream
+    {
+        private final FileChannel channel;
+        private final FileLock lock;
+        private final LongFunction<InputStream> download;
+        private final byte[] single = new byte[1];
+        private long position;
+        private long committed;
+        private final long spooled;
+        private InputStream remote;
+        private boolean completed;
+        private boolean closed;
+
+        SpoolingInputStream(final FileChannel channel, final FileLock lock, final long spooled, final LongFunction<InputStream> download)
+        {
+            this.channel = channel;
+            this.lock = lock;
+            this.spooled = spooled;
+            this.committed = spooled;
+            this.download = download;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            final int n = read(single, 0, 1);
+            return n < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            if (completed) {
+                return -1;
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (position < spooled) {
+                final int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, spooled - position)), position);
+                if (n < 0) {
+                    throw new IOException(String.format("Spool %s became shorter than %,d bytes", data, spooled));
+                }
+                position += n;
+                return n;
+            }
+            if (remote == null && position >= size) {
+                // the spool has the whole file
+                complete();
+                return -1;
+            }
+            if (remote == null) {
+                // starts downloading only after the spooled bytes are read, with REST if any
+                remote = download.apply(position);
+            }
+            final int n = remote.read(b, off, len);
+            if (n < 0) {
+                complete();
+                return -1;
+            }
+            // written before returned, so the spool holds only bytes the reader has got
+            final ByteBuffer buffer = ByteBuffer.wrap(b, off, n);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            if (position - committed >= CHECKPOINT_BYTES) {
+                writeCheckpoint(channel, position);
+                committed = position;
+            }
+            return n;
+        }
+
+        // the file was read to the end, so the spool is no longer needed
+        private void complete() throws IOException
+        {
+            completed = true;
+            closed = true;
+            try {
+                release();
+            }
+            finally {
+                Files.deleteIfExists(checkpoint);
+                Files.deleteIfExists(data);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (position > committed) {
+                    writeCheckpoint(channel, position);
+                    committed = position;
+                    log.info(String.format("Saved the checkpoint of file '%s' at %,d of %,d bytes in %s", path, position, size, data));
+                }
+            }
+            finally {
+                release();
+            }
+        }
+
+        private void release() throws IOException
+        {
+            try {
+                if (remote != null) {
+                    remote.close();
+                }
+            }
+            finally {
+                try {
+                    lock.release();
+                }
+                finally {
+                    channel.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.embulk.input.ftp;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import it.sauronsoftware.ftp4j.FTPFile;
+
+/**
+ * A listed file with the size and the modification time reported by the server.
+ */
+public class FileEntry
+{
+    public static final long UNKNOWN = -1L;
+
+    private final String path;
+    private final long size;
+    private final long modifiedTime;
+    private final long start;
+    private final long end;
+
+    public FileEntry(final String path, final long size, final long modifiedTime)
+    {
+        this(path, size, modifiedTime, 0L, UNKNOWN);
+    }
+
+    @JsonCreator
+    public FileEntry(
+            @JsonProperty("path") final String path,
+            @JsonProperty("size") final long size,
+            @JsonProperty("modified_time") final long modifiedTime,
+            @JsonProperty("start") final long start,
+            @JsonProperty("end") final long end)
+    {
+        this.path = path;
+        this.size = size;
+        this.modifiedTime = modifiedTime;
+        this.start = start;
+        this.end = end;
+    }
+
+    public static FileEntry of(final String path, final FTPFile file)
+    {
+        return new FileEntry(path, file.getSize(),
+                file.getModifiedDate() == null ? UNKNOWN : file.getModifiedDate().getTime());
+    }
+
+    @JsonProperty("path")
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Returns the size in bytes, or {@link #UNKNOWN}.
+     */
+    @JsonProperty("size")
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the modification time in milliseconds since the epoch, or {@link #UNKNOWN}.
+     */
+    @JsonProperty("modified_time")
+    public long getModifiedTime()
+    {
+        return modifiedTime;
+    }
+
+    /**
+     * Returns the offset to start reading this file from.
+     */
+    @JsonProperty("start")
+    public long getStart()
+    {
+        return start;
+    }
+
+    /**
+     * Returns the offset to stop reading this file at, or {@link #UNKNOWN} to read until the end of the file.
+     */
+    @JsonProperty("end")
+    public long getEnd()
+    {
+        return end;
+    }
+
+    public FileEntry withRange(final long start, final long end)
+    {
+        return new FileEntry(path, size, modifiedTime, start, end);
+    }
+
+    @Override
+    public String toString()
+    {
+        if (start == 0L && end == UNKNOWN) {
+            return path;
+        }
+        return path + "[" + start + ".." + (end == UNKNOWN ? "" : String.valueOf(end)) + "]";
+    }
+}
@@ -0,0 +1,519 @@
+package org.embulk.input.ftp;
+
+import it.sauronsoftware.ftp4j.FTPAbortedException;
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPDataTransferException;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPFile;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+import it.sauronsoftware.ftp4j.FTPListParseException;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Lists files under a path prefix recursively.
+ *
+ * With symbolic links followed, each directory and file is listed once by its canonical path, the
+ * path with the links resolved. The first path in the listing order is used, so a cycle of links
+ * ends and a file reached through several links is downloaded once. The canonical path of a linked
+ * directory is its PWD, and at most {@link #MAX_FOLLOWED_LINKS} links are followed in a path in
+ * case the server doesn't resolve links in PWD.
+ */
+public class FileLister
+{
+    static final int MAX_FOLLOWED_LINKS = 32;
+
+    private final Logger log;
+    private final FTPClient client;
+    private final Optional<String> lastPath;
+    private final PathMatchPattern pathMatchPattern;
+    private final ListingFilter listingFilter;
+    private final Optional<ModifiedTimeWatermark> watermark;
+    private final boolean tracksModifiedTime;
+    private final boolean skipUnmodifiedDirectories;
+    private final BatchLimit batchLimit;
+    private final boolean followSymlinks;
+    private final boolean stopAtRecentFiles;
+    private final Set<String> visitedDirectories = new HashSet<>();
+    private final Set<String> visitedFiles = new HashSet<>();
+    // whether links are to directories, found when their directory was sorted
+    private final Map<String, Boolean> directoryLinks = new HashMap<>();
+    private boolean limitReached;
+    private int followedLinks;  // to directories, in the path being listed
+
+    private FileLister(final Builder builder)
+    {
+        this.log = builder.log;
+        this.client = builder.client;
+        this.lastPath = builder.lastPath;
+        this.pathMatchPattern = builder.pathMatchPattern;
+        this.listingFilter = builder.listingFilter;
+        this.watermark = builder.watermark;
+        this.tracksModifiedTime = builder.tracksModifiedTime;
+        this.skipUnmodifiedDirectories = builder.skipUnmodifiedDirectories;
+        this.batchLimit = builder.batchLimit.newCounter();
+        this.followSymlinks = builder.followSymlinks;
+        this.stopAtRecentFiles = builder.stopAtRecentFiles;
+    }
+
+    public static Builder builder(final Logger log, final FTPClient client)
+    {
+        return new Builder(log, client);
+    }
+
+    public static class Builder
+    {
+        private final Logger log;
+        private final FTPClient client;
+        private Optional<String> lastPath = Optional.empty();
+        private PathMatchPattern pathMatchPattern = new PathMatchPattern(Pattern.compile(".*"));
+        private ListingFilter listingFilter = ListingFilter.ACCEPT_ALL;
+        private Optional<ModifiedTimeWatermark> watermark = Optional.empty();
+        private boolean tracksModifiedTime = false;
+        private boolean skipUnmodifiedDirectories = false;
+        private BatchLimit batchLimit = BatchLimit.UNLIMITED;
+        private boolean followSymlinks = false;
+        private boolean stopAtRecentFiles = false;
+
+        private Builder(final Logger log, final FTPClient client)
+        {
+            this.log = log;
+            this.client = client;
+        }
+
+        public Builder withLastPath(final Optional<String> lastPath)
+        {
+            this.lastPath = lastPath;
+            return this;
+        }
+
+        public Builder withPathMatchPattern(final PathMatchPattern pathMatchPattern)
+        {
+            this.pathMatchPattern = pathMatchPattern;
+            return this;
+        }
+
+        public Builder withListingFilter(final ListingFilter listingFilter)
+        {
+            this.listingFilter = listingFilter;
+            return this;
+        }
+
+        /**
+         * Lists files newer than the watermark, or every file with a modification time in the first
+         * run of {@code incremental_mode: modified_time}.
+         */
+        public Builder withWatermark(final Optional<ModifiedTimeWatermark> watermark)
+        {
+            this.watermark = watermark;
+            this.tracksModifiedTime = true;
+            return this;
+        }
+
+        public Builder withSkipUnmodifiedDirectories(final boolean skipUnmodifiedDirectories)
+        {
+            this.skipUnmodifiedDirectories = skipUnmodifiedDirectories;
+            return this;
+        }
+
+        /**
+         * Stops listing when the limit is reached. As files are listed in the order of their paths,
+         * the listed files are the first files after {@code last_path}.
+         */
+        public Builder withBatchLimit(final BatchLimit batchLimit)
+        {
+            this.batchLimit = batchLimit;
+            return this;
+        }
+
+        public Builder withFollowSymlinks(final boolean followSymlinks)
+        {
+            this.followSymlinks = followSymlinks;
+            return this;
+        }
+
+        /**
+         * Stops listing at the first file skipped by {@code skip_modified_within_seconds}, so that
+         * {@code last_path} doesn't pass over it.
+         */
+        public Builder withStopAtRecentFiles(final boolean stopAtRecentFiles)
+        {
+            this.stopAtRecentFiles = stopAtRecentFiles;
+            return this;
+        }
+
+        public FileLister build()
+        {
+            return new FileLister(this);
+        }
+    }
+
+    public List<FileEntry> listByPrefix(final String prefix)
+    {
+        String directory;
+        String fileNamePrefix;
+        if (prefix.isEmpty()) {
+            directory = "";
+            fileNamePrefix = "";
+        }
+        else {
+            final int pos = prefix.lastIndexOf("/");
+            if (pos < 0) {
+                directory = "";
+                fileNamePrefix = prefix;
+            }
+            else {
+                directory = prefix.substring(0, pos + 1);  // include last "/"
+                fileNamePrefix = prefix.substring(pos + 1);
+            }
+        }
+
+        final ArrayList<FileEntry> builder = new ArrayList<>();
+
+        try {
+            final String initialDirectory = client.currentDirectory();
+            String currentDirectory = initialDirectory;
+            log.info("Listing ftp files at directory '{}' filtering filename by prefix '{}'", directory.isEmpty() ? currentDirectory : directory, fileNamePrefix);
+
+            if (!directory.isEmpty()) {
+                client.changeDirectory(directory);
+                currentDirectory = directory;
+            }
+            // paths with links resolved, or null if links are not followed
+            final String canonicalDirectory = followSymlinks ? client.currentDirectory() : null;
+            if (followSymlinks && fileNamePrefix.isEmpty()) {
+                visitedDirectories.add(canonicalDirectory);
+            }
+
+            for (final FTPFile file : sortedList(currentDirectory, fileNamePrefix)) {
+                if (limitReached) {
+                    log.info("Stopped listing files at the limit of files or bytes per run");
+                    break;
+                }
+                if (file.getName().startsWith(fileNamePrefix)) {
+                    listRecursive(currentDirectory, canonicalDirectory, file, builder);
+                }
+            }
+
+            if (!directory.isEmpty()) {
+                // a relative prefix listed next with the same connection starts from here
+                client.changeDirectory(initialDirectory);
+            }
+        }
+        catch (final FTPListParseException ex) {
+            log.info("FTP listing files failed");
+            throw new RuntimeException(ex);
+        }
+        catch (final FTPAbortedException ex) {
+            log.info("FTP listing files failed");
+            throw new RuntimeException(ex);
+        }
+        catch (final FTPDataTransferException ex) {
+            log.info("FTP data transfer failed");
+            throw new RuntimeException(ex);
+        }
+        catch (final FTPException ex) {
+            log.info("FTP command failed: " + ex.getCode() + " " + ex.getMessage());
+            throw new RuntimeException(ex);
+        }
+        catch (final FTPIllegalReplyException ex) {
+            log.info("FTP protocol error");
+            throw new RuntimeException(ex);
+        }
+        catch (final IOException ex) {
+            log.info("FTP network error: " + ex);
+            throw new UncheckedIOException(ex);
+        }
+
+        return Collections.unmodifiableList(builder);
+    }
+
+    /**
+     * Applies the same conditions as {@link #listByPrefix} to files known without listing, such as
+     * files in a manifest. Files are taken in the order of their paths as in {@link #listByPrefix}.
+     */
+    public List<FileEntry> filter(final List<FileEntry> files)
+    {
+        final List<FileEntry> sorted = new ArrayList<>(files);
+        Collections.sort(sorted, new Comparator<FileEntry>() {
+                @Override
+                public int compare(final FileEntry a, final FileEntry b)
+                {
+                    return a.getPath().compareTo(b.getPath());
+                }
+            });
+        final ArrayList<FileEntry> builder = new ArrayList<>();
+        for (final FileEntry entry : sorted) {
+            if (limitReached) {
+                log.info("Stopped filtering files at the limit of files or bytes per run");
+                break;
+            }
+            addFile(entry, builder);
+        }
+        return Collections.unmodifiableList(builder);
+    }
+
+    // Lists the current directory, which is directoryPath, in the order of the paths of the entries,
+    // so that files are listed in the order of their paths. A directory sorts as its name followed by
+    // "/". So does a followed link to a directory, which is found with CWD before sorting, for the
+    // links whose names start with namePrefix.
+    private List<FTPFile> sortedList(final String directoryPath, final String namePrefix)
+        throws IOException, FTPException, FTPIllegalReplyException, FTPDataTransferException, FTPAbortedException, FTPListParseException
+    {
+        final List<FTPFile> files = new ArrayList<>(Arrays.asList(client.list()));
+        final String base = directoryPath.endsWith("/") ? directoryPath : directoryPath + "/";
+        if (followSymlinks) {
+            boolean changed = false;
+            for (final FTPFile file : files) {
+                final String path = base + file.getName();
+                if (file.getType() == FTPFile.TYPE_LINK && file.getName().startsWith(namePrefix) && mayListDirectory(path, null)) {
+                    final boolean directory = changeDirectoryIfExists(path);
+                    directoryLinks.put(path, directory);
+                    changed |= directory;
+                }
+            }
+            if (changed) {
+                client.changeDirectory(directoryPath);
+            }
+        }
+        Collections.sort(files, new Comparator<FTPFile>() {
+                @Override
+                public int compare(final FTPFile a, final FTPFile b)
+                {
+                    return sortKey(base, a).compareTo(sortKey(base, b));
+                }
+            });
+        return files;
+    }
+
+    private String sortKey(final String base, final FTPFile file)
+    {
+        final boolean directory = file.getType() == FTPFile.TYPE_DIRECTORY
+                || (file.getType() == FTPFile.TYPE_LINK && Boolean.TRUE.equals(directoryLinks.get(base + file.getName())));
+        return directory ? file.getName() + "/" : file.getName();
+    }
+
+    // Returns true if every path under the directory is before or equal to lastPath.
+    static boolean isDirectoryBefore(final String directoryPath, final String lastPath)
+    {
+        final String prefix = directoryPath.endsWith("/") ? directoryPath : directoryPath + "/";
+        return !lastPath.startsWith(prefix) && prefix.compareTo(lastPath) < 0;
+    }
+
+    // Resolves a link target against the canonical path of the directory having the link, and
+    // removes "." and "..".
+    static String resolve(final String directory, final String target)
+    {
+        final List<String> names = new ArrayList<>();
+        final String joined = target.startsWith("/") ? target : directory + "/" + target;
+        for (final String name : joined.split("/")) {
+            if (name.isEmpty() || name.equals(".")) {
+                continue;
+            }
+            if (name.equals("..")) {
+                if (!names.isEmpty()) {
+                    names.remove(names.size() - 1);
+                }
+                continue;
+            }
+            names.add(name);
+        }
+        return "/" + String.join("/", names);
+    }
+
+    private void listRecursive(String baseDirectoryPath, final String canonicalBase, final FTPFile file, final ArrayList<FileEntry> builder)
+        throws IOException, FTPException, FTPIllegalReplyException, FTPDataTransferException, FTPAbortedException, FTPListParseException
+    {
+        if (!baseDirectoryPath.endsWith("/")) {
+            baseDirectoryPath = baseDirectoryPath + "/";
+        }
+        final String path = baseDirectoryPath + file.getName();
+
+        switch (file.getType()) {
+        case FTPFile.TYPE_FILE:
+            if (canonicalBase != null && !visitedFiles.add(resolve(canonicalBase, file.getName()))) {
+                return;  // listed through a link
+            }
+            addFile(FileEntry.of(path, file), builder);
+            break;
+        case FTPFile.TYPE_DIRECTORY:
+            if (!mayListDirectory(path, file)) {
+                return;
+            }
+            final String canonical = canonicalBase == null ? null : resolve(canonicalBase, file.getName());
+            if (canonical != null && !visitedDirectories.add(canonical)) {
+                return;  // listed through a link
+            }
+            client.changeDirectory(path);
+            listDirectory(path, canonical, builder);
+            client.changeDirectory(baseDirectoryPath);
+            break;
+        case FTPFile.TYPE_LINK:
+            if (canonicalBase != null) {
+                listLink(baseDirectoryPath, canonicalBase, path, file, builder);
+            }
+            break;
+        }
+    }
+
+    // file is null for a link, whose modification time is not of the directory
+    private boolean mayListDirectory(final String path, final FTPFile file)
+    {
+        if (lastPath.isPresent() && isDirectoryBefore(path, lastPath.get())) {
+            return false;
+        }
+        if (!pathMatchPattern.mayMatchUnder(path)) {
+            // no file under this directory can match path_match_pattern
+            return false;
+        }
+        if (skipUnmodifiedDirectories && watermark.isPresent() && file != null && file.getModifiedDate() != null
+                && file.getModifiedDate().getTime() < watermark.get().getModifiedTime()) {
+            // no entry was added, removed or renamed in this directory since the last run
+            return false;
+        }
+        return true;
+    }
+
+    private void listDirectory(final String path, final String canonical, final ArrayList<FileEntry> builder)
+        throws IOException, FTPException, FTPIllegalReplyException, FTPDataTransferException, FTPAbortedException, FTPListParseException
+    {
+        for (final FTPFile subFile : sortedList(path, "")) {
+            if (limitReached) {
+                break;
+            }
+            listRecursive(path, canonical, subFile, builder);
+        }
+    }
+
+    // A listing tells only that an entry is a link, so a link is a directory if CWD succeeds.
+    // The size and modification time of a linked file are asked with SIZE and MDTM, because the
+    // listing shows those of the link.
+    private void listLink(final String baseDirectoryPath, final String canonicalBase, final String path, final FTPFile file,
+            final ArrayList<FileEntry> builder)
+        throws IOException, FTPException, FTPIllegalReplyException, FTPDataTransferException, FTPAbortedException, FTPListParseException
+    {
+        final boolean mayBeDirectory = mayListDirectory(path, null);
+        final boolean mayBeFile = !(lastPath.isPresent() && path.compareTo(lastPath.get()) <= 0) && pathMatchPattern.matches(path);
+        if (!mayBeDirectory && !mayBeFile) {
+            return;
+        }
+        final Boolean probed = directoryLinks.remove(path);
+        if (probed != null ? !probed : !changeDirectoryIfExists(path)) {
+            if (!mayBeFile) {
+                return;
+            }
+            final String canonical = resolve(canonicalBase, file.getLink() == null ? file.getName() : file.getLink());
+            if (!visitedFiles.add(canonical)) {
+                log.info("Skipping link '{}' to file '{}' listed already", path, canonical);
+                return;
+            }
+            addFile(new FileEntry(path, sizeOf(path), modifiedTimeOf(path)), builder);
+            return;
+        }
+        if (probed != null) {
+            client.changeDirectory(path);
+        }
+        try {
+            if (!mayBeDirectory) {
+                return;
+            }
+            // PWD, as the target in the listing may be another link
+            final String canonical = client.currentDirectory();
+            if (!visitedDirectories.add(canonical)) {
+                log.info("Skipping link '{}' to directory '{}' listed already", path, canonical);
+                return;
+            }
+            if (followedLinks >= MAX_FOLLOWED_LINKS) {
+                // a server showing the path of the links in PWD doesn't end a cycle
+                log.warn("Skipping link '{}' under {} other followed links", path, followedLinks);
+                return;
+            }
+            followedLinks++;
+            try {
+                listDirectory(path, canonical, builder);
+            }
+            finally {
+                followedLinks--;
+            }
+        }
+        finally {
+            client.changeDirectory(baseDirectoryPath);
+        }
+    }
+
+    private boolean changeDirectoryIfExists(final String path)
+        throws IOException, FTPIllegalReplyException
+    {
+        try {
+            client.changeDirectory(path);
+            return true;
+        }
+        catch (final FTPException ex) {
+            // a link to a file, or a broken link
+            return false;
+        }
+    }
+
+    private long sizeOf(final String path)
+        throws IOException, FTPIllegalReplyException
+    {
+        try {
+            return client.fileSize(path);
+        }
+        catch (final FTPException ex) {
+            return FileEntry.UNKNOWN;
+        }
+    }
+
+    private long modifiedTimeOf(final String path)
+        throws IOException, FTPIllegalReplyException
+    {
+        try {
+            return client.modifiedDate(path).getTime();
+        }
+        catch (final FTPException ex) {
+            return FileEntry.UNKNOWN;
+        }
+    }
+
+    private void addFile(final FileEntry entry, final ArrayList<FileEntry> builder)
+    {
+        final String path = entry.getPath();
+        if (lastPath.isPresent() && path.compareTo(lastPath.get()) <= 0) {
+            return;
+        }
+        if (stopAtRecentFiles && pathMatchPattern.matches(path) && listingFilter.isRecent(entry)) {
+            log.info("Stopped listing files at file '{}' modified within skip_modified_within_seconds", path);
+            limitReached = true;
+            return;
+        }
+        if (pathMatchPattern.matches(path) && listingFilter.accept(entry)) {
+            if (tracksModifiedTime && entry.getModifiedTime() == FileEntry.UNKNOWN) {
+                // it would be loaded again by every run
+                log.warn("Skipping file '{}' whose modification time the server doesn't report", path);
+                return;
+            }
+            if (!watermark.isPresent() || watermark.get().accept(entry)) {
+                if (!batchLimit.tryAdd(entry.getSize())) {
+                    limitReached = true;
+                    return;
+                }
+                builder.add(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.embulk.input.ftp;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Keeps logged-in connections to reuse them instead of connecting and logging in again.
+ *
+ * At most {@code maxConnections} connections are borrowed at a time, and {@link #borrow()} blocks
+ * until one is returned. A connection that failed in the middle of a command must be returned with
+ * {@link #invalidate(FTPClient)} because its control connection may be out of sync. Idle
+ * connections are handed to {@code closer} when the pool is closed.
+ */
+public class FtpClientPool
+        implements AutoCloseable
+{
+    private final Supplier<FTPClient> factory;
+    private final Consumer<FTPClient> closer;
+    private final Semaphore permits;
+    private final Deque<FTPClient> idle = new ArrayDeque<>();
+    private boolean closed;
+
+    public FtpClientPool(final Supplier<FTPClient> factory, final int maxConnections)
+    {
+        this(factory, maxConnections, new Consumer<FTPClient>() {
+                @Override
+                public void accept(final FTPClient client)
+                {
+                    FtpFileInputPlugin.disconnectClient(client);
+                }
+            });
+    }
+
+    public FtpClientPool(final Supplier<FTPClient> factory, final int maxConnections, final Consumer<FTPClient> closer)
+    {
+        this.factory = factory;
+        this.closer = closer;
+        this.permits = new Semaphore(maxConnections);
+    }
+
+    public FTPClient borrow()
+    {
+        try {
+            permits.acquire();
+        }
+        catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        try {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("FTP connection pool is already closed");
+                }
+                while (!idle.isEmpty()) {
+                    final FTPClient client = idle.pollFirst();
+                    if (client.isConnected()) {
+                        return client;
+                    }
+                }
+            }
+            return factory.get();
+        }
+        catch (final RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    public void release(final FTPClient client)
+    {
+        try {
+            synchronized (this) {
+                if (!closed && client.isConnected()) {
+                    idle.addFirst(client);
+                    return;
+                }
+            }
+            FtpFileInputPlugin.disconnectClient(client);
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    public void invalidate(final FTPClient client)
+    {
+        try {
+            FtpFileInputPlugin.disconnectClient(client);
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        final Deque<FTPClient> clients;
+        synchronized (this) {
+            closed = true;
+            clients = new ArrayDeque<>(idle);
+            idle.clear();
+        }
+        for (final FTPClient client : clients) {
+            closer.accept(client);
+        }
+    }
+}
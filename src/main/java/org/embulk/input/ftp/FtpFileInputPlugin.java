@@ -1,5 +1,10 @@
 package org.embulk.input.ftp;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import it.sauronsoftware.ftp4j.FTPAbortedException;
 import it.sauronsoftware.ftp4j.FTPClient;
 import it.sauronsoftware.ftp4j.FTPCommunicationListener;
@@ -7,15 +12,16 @@ import it.sauronsoftware.ftp4j.FTPConnector;
 import it.sauronsoftware.ftp4j.FTPDataTransferException;
 import it.sauronsoftware.ftp4j.FTPDataTransferListener;
 import it.sauronsoftware.ftp4j.FTPException;
-import it.sauronsoftware.ftp4j.FTPFile;
 import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
-import it.sauronsoftware.ftp4j.FTPListParseException;
+import it.sauronsoftware.ftp4j.FTPReply;
 
 import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskReport;
 import org.embulk.config.TaskSource;
 import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.DataException;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FileInputPlugin;
 import org.embulk.spi.TransactionalFileInput;
@@ -36,38 +42,84 @@ import org.embulk.util.retryhelper.Retryable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SSLSocketFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
 import java.io.UncheckedIOException;
 import java.nio.channels.Channels;
+import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.TreeMap;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
 public class FtpFileInputPlugin
         implements FileInputPlugin
 {
     private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+    private static final ObjectMapper SSL_CONFIG_MAPPER = new ObjectMapper();
 
     private final Logger log = LoggerFactory.getLogger(FtpFileInputPlugin.class);
     private static final int FTP_DEFULAT_PORT = 21;
     private static final int FTPS_DEFAULT_PORT = 990;
     private static final int FTPES_DEFAULT_PORT = 21;
+    private static final long AUTO_NOOP_TIMEOUT_MILLIS = 3000;
 
     public interface PluginTask
             extends Task, SSLPlugins.SSLPluginTask
     {
         @Config("path_prefix")
-        String getPathPrefix();
+        @ConfigDefault("null")
+        Optional<String> getPathPrefix();
+
+        @Config("path_prefixes")
+        @ConfigDefault("[]")
+        List<PathPrefix> getPathPrefixes();
+        void setPathPrefixes(List<PathPrefix> pathPrefixes);
+
+        @Config("max_listing_connections")
+        @ConfigDefault("4")
+        int getMaxListingConnections();
+
+        @Config("manifest_path")
+        @ConfigDefault("null")
+        Optional<String> getManifestPath();
+
+        @Config("manifest_format")
+        @ConfigDefault("null")
+        Optional<ManifestFormat> getManifestFormat();
+
+        @Config("manifest_verify_samples")
+        @ConfigDefault("0")
+        int getManifestVerifySamples();
 
         @Config("last_path")
         @ConfigDefault("null")
@@ -81,8 +133,71 @@ public class FtpFileInputPlugin
         @ConfigDefault("true")
         boolean getIncremental();
 
+        @Config("incremental_mode")
+        @ConfigDefault("\"path\"")
+        IncrementalMode getIncrementalMode();
+
+        @Config("last_modified")
+        @ConfigDefault("null")
+        Optional<String> getLastModified();
+
+        @Config("last_modified_path")
+        @ConfigDefault("null")
+        Optional<String> getLastModifiedPath();
+
+        @Config("tail_offsets")
+        @ConfigDefault("{}")
+        Map<String, TailOffset> getTailOffsets();
+        void setTailOffsets(Map<String, TailOffset> tailOffsets);
+
+        @Config("tail_drop_incomplete_lines")
+        @ConfigDefault("true")
+        boolean getTailDropIncompleteLines();
+
+        @Config("checksums")
+        @ConfigDefault("{}")
+        Map<String, String> getChecksums();
+        void setChecksums(Map<String, String> checksums);
+
+        @Config("verify_checksum")
+        @ConfigDefault("false")
+        boolean getVerifyChecksum();
+
+        @Config("skip_unmodified_directories")
+        @ConfigDefault("false")
+        boolean getSkipUnmodifiedDirectories();
+
+        @Config("follow_symlinks")
+        @ConfigDefault("false")
+        boolean getFollowSymlinks();
+
+        @Config("min_size")
+        @ConfigDefault("null")
+        Optional<Long> getMinSize();
+
+        @Config("max_size")
+        @ConfigDefault("null")
+        Optional<Long> getMaxSize();
+
+        @Config("modified_after")
+        @ConfigDefault("null")
+        Optional<String> getModifiedAfter();
+
+        @Config("modified_before")
+        @ConfigDefault("null")
+        Optional<String> getModifiedBefore();
+
+        @Config("skip_modified_within_seconds")
+        @ConfigDefault("null")
+        Optional<Long> getSkipModifiedWithinSeconds();
+
         @Config("host")
-        String getHost();
+        @ConfigDefault("null")
+        Optional<String> getHost();
+
+        @Config("hosts")
+        @ConfigDefault("[]")
+        List<String> getHosts();
 
         @Config("port")
         @ConfigDefault("null")
@@ -96,14 +211,106 @@ public class FtpFileInputPlugin
         @ConfigDefault("null")
         Optional<String> getPassword();
 
+        @Config("max_files_per_run")
+        @ConfigDefault("null")
+        Optional<Integer> getMaxFilesPerRun();
+
+        @Config("max_bytes_per_run")
+        @ConfigDefault("null")
+        Optional<Long> getMaxBytesPerRun();
+
+        @Config("split_size")
+        @ConfigDefault("null")
+        Optional<Long> getSplitSize();
+
+        @Config("split_header_lines")
+        @ConfigDefault("0")
+        int getSplitHeaderLines();
+
+        @Config("spool_directory")
+        @ConfigDefault("null")
+        Optional<String> getSpoolDirectory();
+
+        @Config("spool_min_size")
+        @ConfigDefault("104857600")
+        long getSpoolMinSize();
+
+        @Config("task_order")
+        @ConfigDefault("\"listing\"")
+        TaskOrder getTaskOrder();
+
+        @Config("preview_sample_files")
+        @ConfigDefault("1")
+        int getPreviewSampleFiles();
+
+        @Config("preview_sample_bytes")
+        @ConfigDefault("1048576")
+        long getPreviewSampleBytes();
+
         @Config("passive_mode")
         @ConfigDefault("true")
         boolean getPassiveMode();
 
+        @Config("connect_timeout")
+        @ConfigDefault("30")
+        int getConnectTimeout();
+
+        @Config("read_timeout")
+        @ConfigDefault("60")
+        int getReadTimeout();
+
+        @Config("close_timeout")
+        @ConfigDefault("60")
+        int getCloseTimeout();
+
+        @Config("engine")
+        @ConfigDefault("\"ftp4j\"")
+        Engine getEngine();
+
+        @Config("nio_threads")
+        @ConfigDefault("2")
+        int getNioThreads();
+
+        @Config("transfer_buffer_budget")
+        @ConfigDefault("null")
+        Optional<Long> getTransferBufferBudget();
+
+        @Config("transfer_buffer_direct")
+        @ConfigDefault("false")
+        boolean getTransferBufferDirect();
+
+        @Config("connection_idle_timeout")
+        @ConfigDefault("30")
+        int getConnectionIdleTimeout();
+
+        @Config("tcp_nodelay")
+        @ConfigDefault("true")
+        boolean getTcpNoDelay();
+
+        @Config("tcp_keepalive")
+        @ConfigDefault("true")
+        boolean getTcpKeepAlive();
+
+        @Config("socket_receive_buffer")
+        @ConfigDefault("null")
+        Optional<String> getSocketReceiveBuffer();
+
+        @Config("target_bandwidth_mbps")
+        @ConfigDefault("1000")
+        int getTargetBandwidthMbps();
+
+        @Config("progress_log_interval")
+        @ConfigDefault("60")
+        int getProgressLogInterval();
+
         @Config("ascii_mode")
         @ConfigDefault("false")
         boolean getAsciiMode();
 
+        @Config("client_ascii_mode")
+        @ConfigDefault("false")
+        boolean getClientAsciiMode();
+
         @Config("ssl")
         @ConfigDefault("false")
         boolean getSsl();
@@ -112,13 +319,127 @@ public class FtpFileInputPlugin
         @ConfigDefault("true")
         boolean getSslExplicit();
 
+        @Config("ssl_session_reuse")
+        @ConfigDefault("true")
+        boolean getSslSessionReuse();
+
+        @Config("ssl_provider")
+        @ConfigDefault("null")
+        Optional<String> getSslProvider();
+
+        @Config("ssl_cipher_suites")
+        @ConfigDefault("[]")
+        List<String> getSslCipherSuites();
+
+        @Config("ssl_data_channel_protection")
+        @ConfigDefault("\"private\"")
+        DataChannelProtection getSslDataChannelProtection();
+
         List<String> getFiles();
         void setFiles(List<String> files);
 
+        List<FileEntry> getFileEntries();
+        void setFileEntries(List<FileEntry> fileEntries);
+
         SSLPluginConfig getSSLConfig();
         void setSSLConfig(SSLPluginConfig config);
     }
 
+    public enum IncrementalMode
+    {
+        PATH("path"),
+        MODIFIED_TIME("modified_time"),
+        TAIL("tail"),
+        CHECKSUM("checksum");
+
+        private final String name;
+
+        IncrementalMode(final String name)
+        {
+            this.name = name;
+        }
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+
+        @JsonCreator
+        public static IncrementalMode fromString(final String value)
+        {
+            for (final IncrementalMode mode : values()) {
+                if (mode.name.equals(value)) {
+                    return mode;
+                }
+            }
+            throw new ConfigException(String.format("Unknown incremental_mode '%s'. Supported values are 'path', 'modified_time', 'tail' and 'checksum'", value));
+        }
+    }
+
+    public enum Engine
+    {
+        FTP4J("ftp4j"),
+        NIO("nio");
+
+        private final String name;
+
+        Engine(final String name)
+        {
+            this.name = name;
+        }
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+
+        @JsonCreator
+        public static Engine fromString(final String value)
+        {
+            for (final Engine engine : values()) {
+                if (engine.name.equals(value)) {
+                    return engine;
+                }
+            }
+            throw new ConfigException(String.format("Unknown engine '%s'. Supported values are 'ftp4j' and 'nio'", value));
+        }
+    }
+
+    public enum DataChannelProtection
+    {
+        PRIVATE("private"),
+        CLEAR("clear");
+
+        private final String name;
+
+        DataChannelProtection(final String name)
+        {
+            this.name = name;
+        }
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+
+        @JsonCreator
+        public static DataChannelProtection fromString(final String value)
+        {
+            for (final DataChannelProtection protection : values()) {
+                if (protection.name.equals(value)) {
+                    return protection;
+                }
+            }
+            throw new ConfigException(String.format("Unknown ssl_data_channel_protection '%s'. Supported values are 'private' and 'clear'", value));
+        }
+    }
+
     @Override
     public ConfigDiff transaction(final ConfigSource config, final FileInputPlugin.Control control)
     {
@@ -126,6 +447,56 @@ public class FtpFileInputPlugin
         final PluginTask task = configMapper.map(config, PluginTask.class);
 
         task.setSSLConfig(SSLPlugins.configure(task));
+        FtpHost.of(task);  // validates host and hosts
+        if (!task.getSsl() && task.getSslDataChannelProtection() == DataChannelProtection.CLEAR) {
+            throw new ConfigException("'ssl_data_channel_protection: clear' requires 'ssl: true'");
+        }
+        if (task.getAsciiMode() && task.getClientAsciiMode()) {
+            throw new ConfigException("'ascii_mode' and 'client_ascii_mode' can't be used together");
+        }
+        if (task.getAsciiMode() && (task.getVerifyChecksum() || task.getIncrementalMode() == IncrementalMode.CHECKSUM)) {
+            // the server converts line endings, so the bytes don't have the checksum of the file
+            throw new ConfigException("Checksums can't be verified with 'ascii_mode'. Use 'client_ascii_mode' instead");
+        }
+        if (task.getAsciiMode() && task.getSpoolDirectory().isPresent()) {
+            // offsets of REST don't match the converted bytes in the spool
+            throw new ConfigException("'spool_directory' can't be used with 'ascii_mode'. Use 'client_ascii_mode' instead");
+        }
+        if (task.getAsciiMode() && task.getSplitSize().isPresent()) {
+            // splits start at REST offsets of the file on the server
+            throw new ConfigException("'split_size' can't be used with 'ascii_mode'. Use 'client_ascii_mode' instead");
+        }
+        if (task.getAsciiMode() && task.getIncrementalMode() == IncrementalMode.TAIL) {
+            // tail offsets are compared with the size of the file on the server
+            throw new ConfigException("'incremental_mode: tail' can't be used with 'ascii_mode'. Use 'client_ascii_mode' instead");
+        }
+        socketReceiveBuffer(task);  // validates socket_receive_buffer
+        if (task.getEngine() == Engine.NIO) {
+            if (!task.getPassiveMode()) {
+                throw new ConfigException("'engine: nio' supports only passive mode");
+            }
+            if (task.getNioThreads() <= 0) {
+                throw new ConfigException("'nio_threads' must be positive: " + task.getNioThreads());
+            }
+            if (task.getTransferBufferBudget().isPresent() && task.getTransferBufferBudget().get() < NioDownload.CHUNK_SIZE) {
+                throw new ConfigException("'transfer_buffer_budget' must be at least " + NioDownload.CHUNK_SIZE + ": " + task.getTransferBufferBudget().get());
+            }
+            if (task.getVerifyChecksum() || task.getIncrementalMode() == IncrementalMode.CHECKSUM) {
+                throw new ConfigException("'engine: nio' doesn't support checksums. Use 'engine: ftp4j'");
+            }
+        }
+        if (task.getSplitSize().isPresent() && (task.getIncrementalMode() == IncrementalMode.TAIL || task.getIncrementalMode() == IncrementalMode.CHECKSUM)) {
+            // tail resumes and checksums are of whole files
+            throw new ConfigException("'split_size' can't be used with 'incremental_mode: " + task.getIncrementalMode() + "'");
+        }
+        if (task.getIncrementalMode() == IncrementalMode.CHECKSUM && !newBatchLimit(task).isUnlimited()) {
+            // the files to skip are known only when the tasks ask their checksums
+            throw new ConfigException("'max_files_per_run' and 'max_bytes_per_run' can't be used with 'incremental_mode: checksum'");
+        }
+
+        if ((task.getPathPrefix().isPresent() ? 1 : 0) + (task.getPathPrefixes().isEmpty() ? 0 : 1) + (task.getManifestPath().isPresent() ? 1 : 0) != 1) {
+            throw new ConfigException("One of 'path_prefix', 'path_prefixes' or 'manifest_path' must be set");
+        }
 
         String pattern = task.getPathMatchPattern();
         // If pattern is empty then use default pattern
@@ -136,14 +507,105 @@ public class FtpFileInputPlugin
         final Pattern pathMatchPattern = Pattern.compile(pattern);
 
         // list files recursively
-        final List<String> files = listFiles(log, task, pathMatchPattern);
-        task.setFiles(files);
-        log.info("Using files {}", files);
+        List<FileEntry> entries = listFileEntries(log, task, pathMatchPattern);
+        // a preview doesn't count as a job
+        final TransferProgress progress = Exec.isPreview() ? TransferProgress.detached() : TransferProgress.shared(log, task.getProgressLogInterval());
+        progress.reset();
+        progress.listed(entries.size());
+        if (task.getIncrementalMode() == IncrementalMode.TAIL) {
+            entries = planTail(log, task, entries);
+        }
+        else if (task.getIncrementalMode() == IncrementalMode.CHECKSUM) {
+            keepListedChecksums(task, entries);
+        }
+        else if (task.getSplitSize().isPresent()) {
+            entries = planSplits(log, task.getSplitSize().get(), entries);
+        }
+        entries = task.getTaskOrder().apply(entries);
+        task.setFileEntries(entries);
+        task.setFiles(toPaths(entries));
+        log.info("Using files {}", task.getFiles());
+        progress.queued(entries);
 
         // TODO what if task.getFiles().isEmpty()?
 
-        // number of processors is same with number of files
-        return resume(task.toTaskSource(), task.getFiles().size(), control);
+        // number of processors is same with number of files, or splits of them
+        try {
+            return resume(task.toTaskSource(), task.getFiles().size(), control);
+        }
+        finally {
+            progress.ended();
+        }
+    }
+
+    // Returns the entries having new bytes since the last run, each starting at its last offset.
+    // Offsets of the other listed files are kept in tail_offsets as they are.
+    private static List<FileEntry> planTail(final Logger log, final PluginTask task, final List<FileEntry> listed)
+    {
+        final Map<String, TailOffset> unchanged = new TreeMap<>();
+        final List<FileEntry> entries = new ArrayList<>();
+        final BatchLimit batchLimit = newBatchLimit(task).newCounter();
+        for (final FileEntry entry : listed) {
+            final TailOffset last = task.getTailOffsets().get(entry.getPath());
+            final long start = last == null ? 0L : last.nextStart(entry);
+            if (start < 0) {
+                unchanged.put(entry.getPath(), last);
+            }
+            else if (!batchLimit.tryAdd(entry.getSize() == FileEntry.UNKNOWN ? FileEntry.UNKNOWN : entry.getSize() - start)) {
+                // left to the next run
+                if (last != null) {
+                    unchanged.put(entry.getPath(), last);
+                }
+            }
+            else if (last == null) {
+                entries.add(entry.withRange(0L, entry.getSize()));
+            }
+            else {
+                if (start == 0L) {
+                    log.info("File '{}' was replaced or became shorter than the last offset {}. Reading it from the beginning", entry.getPath(), last.getOffset());
+                }
+                entries.add(entry.withRange(start, entry.getSize()));
+            }
+        }
+        task.setTailOffsets(unchanged);
+        return entries;
+    }
+
+    // Forgets the checksums of files no longer listed. Every listed file becomes a task, which
+    // skips the file if its checksum is unchanged.
+    private static void keepListedChecksums(final PluginTask task, final List<FileEntry> listed)
+    {
+        final Map<String, String> checksums = new TreeMap<>();
+        for (final FileEntry entry : listed) {
+            final String last = task.getChecksums().get(entry.getPath());
+            if (last != null) {
+                checksums.put(entry.getPath(), last);
+            }
+        }
+        task.setChecksums(checksums);
+    }
+
+    private static final Pattern UNSPLITTABLE_FILE_NAME = Pattern.compile(
+            "\\.(gz|bz2|zip|xz|lz4|lzo|snappy|zst|z|7z|parquet|orc|avro)$", Pattern.CASE_INSENSITIVE);
+
+    // Splits files larger than splitSize into byte ranges read by separate tasks.
+    private static List<FileEntry> planSplits(final Logger log, final long splitSize, final List<FileEntry> listed)
+    {
+        if (splitSize <= 0) {
+            throw new ConfigException("'split_size' must be positive: " + splitSize);
+        }
+        final List<FileEntry> entries = new ArrayList<>();
+        for (final FileEntry entry : listed) {
+            if (entry.getSize() <= splitSize || UNSPLITTABLE_FILE_NAME.matcher(entry.getPath()).find()) {
+                entries.add(entry);
+                continue;
+            }
+            for (long start = 0; start < entry.getSize(); start += splitSize) {
+                entries.add(entry.withRange(start, Math.min(start + splitSize, entry.getSize())));
+            }
+            log.info("Splitting file '{}' of {} bytes into {} tasks", entry.getPath(), entry.getSize(), (entry.getSize() + splitSize - 1) / splitSize);
+        }
+        return entries;
     }
 
     @Override
@@ -154,13 +616,53 @@ public class FtpFileInputPlugin
         final TaskMapper taskMapper = CONFIG_MAPPER_FACTORY.createTaskMapper();
         final PluginTask task = taskMapper.map(taskSource, PluginTask.class);
 
-        control.run(taskSource, taskCount);
+        final List<TaskReport> taskReports = control.run(taskSource, taskCount);
 
         // build next config
         final ConfigDiff configDiff = CONFIG_MAPPER_FACTORY.newConfigDiff();
 
-        // last_path
-        if (task.getIncremental()) {
+        if (task.getIncremental() && task.getIncrementalMode() == IncrementalMode.TAIL) {
+            // tail_offsets
+            final Map<String, TailOffset> tailOffsets = new TreeMap<>(task.getTailOffsets());
+            for (final TaskReport report : taskReports) {
+                if (report.has("tail_path")) {
+                    tailOffsets.put(report.get(String.class, "tail_path"), report.get(TailOffset.class, "tail_offset"));
+                }
+            }
+            configDiff.set("tail_offsets", tailOffsets);
+        }
+        else if (task.getIncremental() && task.getIncrementalMode() == IncrementalMode.CHECKSUM) {
+            // checksums
+            final Map<String, String> checksums = new TreeMap<>(task.getChecksums());
+            for (final TaskReport report : taskReports) {
+                if (report.has("checksum_path")) {
+                    checksums.put(report.get(String.class, "checksum_path"), report.get(String.class, "checksum"));
+                }
+            }
+            configDiff.set("checksums", checksums);
+        }
+        else if (task.getIncremental() && task.getIncrementalMode() == IncrementalMode.MODIFIED_TIME && !task.getPathPrefixes().isEmpty()) {
+            // last_modified and last_modified_path of each prefix, advanced when the files were listed
+            configDiff.set("path_prefixes", task.getPathPrefixes());
+        }
+        else if (task.getIncremental() && task.getIncrementalMode() == IncrementalMode.MODIFIED_TIME) {
+            // last_modified and last_modified_path
+            Optional<ModifiedTimeWatermark> watermark = ModifiedTimeWatermark.newest(task.getFileEntries());
+            if (!watermark.isPresent()) {
+                // keep the last value
+                watermark = ModifiedTimeWatermark.of(task.getLastModified(), task.getLastModifiedPath());
+            }
+            if (watermark.isPresent()) {
+                configDiff.set("last_modified", watermark.get().getLastModified());
+                configDiff.set("last_modified_path", watermark.get().getPath());
+            }
+        }
+        else if (task.getIncremental() && !task.getPathPrefixes().isEmpty()) {
+            // last_path of each prefix, advanced when the files were listed
+            configDiff.set("path_prefixes", task.getPathPrefixes());
+        }
+        else if (task.getIncremental()) {
+            // last_path
             if (task.getFiles().isEmpty()) {
                 // keep the last value
                 if (task.getLastPath().isPresent()) {
@@ -182,38 +684,151 @@ public class FtpFileInputPlugin
             final int taskCount,
             final List<TaskReport> successTaskReports)
     {
-        // do nothing
+        final TaskMapper taskMapper = CONFIG_MAPPER_FACTORY.createTaskMapper();
+        final PluginTask task = taskMapper.map(taskSource, PluginTask.class);
+        closeIdleClients(log, task);
+        if (task.getSsl() && task.getSslSessionReuse() && log.isDebugEnabled()) {
+            // counted since the JVM started, by every job sharing the servers
+            for (final SessionResumingSSLSocketFactory factory : SessionResumingSSLSocketFactory.sharedFactories()) {
+                log.debug("{}", factory);
+            }
+        }
+    }
+
+    // Connects to one of the servers, trying the mirrors in hosts in turn.
+    static FTPClient newFTPClient(final Logger log, final PluginTask task)
+    {
+        final MirrorSelector selector = MirrorSelector.of(FtpHost.of(task));
+        RuntimeException failure = null;
+        for (final FtpHost host : selector.ordered()) {
+            try {
+                return connectOrReuse(log, task, host);
+            }
+            catch (final RuntimeException ex) {
+                if (!selector.hasMirrors()) {
+                    throw ex;
+                }
+                log.warn("Connecting to mirror {} failed. Trying another mirror", host, ex);
+                selector.failed(host);
+                failure = ex;
+            }
+        }
+        throw failure;
+    }
+
+    // Takes an idle connection to the server left by a finished task, or connects.
+    private static FTPClient connectOrReuse(final Logger log, final PluginTask task, final FtpHost host)
+    {
+        final FTPClient idle = takeIdleClient(log, task, host);
+        return idle != null ? idle : newFTPClient(log, task, host);
     }
 
-    private static FTPClient newFTPClient(final Logger log, final PluginTask task)
+    private static FTPClient takeIdleClient(final Logger log, final PluginTask task, final FtpHost host)
+    {
+        if (task.getConnectionIdleTimeout() <= 0) {
+            return null;
+        }
+        final int port = portOf(task, host);
+        final Optional<String> key = connectionKey(log, task, host.getHost(), port, task.getUser().orElse(null));
+        if (!key.isPresent()) {
+            return null;
+        }
+        final FTPClient idle = IdleConnections.shared().take(key.get(), AUTO_NOOP_TIMEOUT_MILLIS);
+        if (idle != null) {
+            log.info("Reusing a logged-in connection to {}:{}", host.getHost(), port);
+            configureTransfers(log, task, idle);
+        }
+        return idle;
+    }
+
+    // Keeps a connection with no command in progress for another task, or disconnects it.
+    static void releaseClient(final Logger log, final PluginTask task, final FTPClient client)
+    {
+        if (task.getConnectionIdleTimeout() > 0 && client.isConnected()) {
+            final Optional<String> key = connectionKey(log, task, client.getHost(), client.getPort(), client.getUsername());
+            if (key.isPresent()) {
+                IdleConnections.shared().park(key.get(), client, task.getConnectionIdleTimeout() * 1000L * 1000L * 1000L);
+                return;
+            }
+        }
+        disconnectClient(client);
+    }
+
+    // Disconnects the connections parked by the tasks of the job
+    private static void closeIdleClients(final Logger log, final PluginTask task)
+    {
+        if (task.getConnectionIdleTimeout() <= 0) {
+            return;
+        }
+        final NioFtpEngine nio = NioFtpEngine.sharedIfCreated();
+        for (final FtpHost host : FtpHost.of(task)) {
+            final Optional<String> key = connectionKey(log, task, host.getHost(), portOf(task, host), task.getUser().orElse(null));
+            if (key.isPresent()) {
+                IdleConnections.shared().close(key.get());
+            }
+            if (nio != null) {
+                nio.closeIdle(log, task, host, portOf(task, host));
+            }
+        }
+    }
+
+    // Identifies connections which can be used in place of each other. The password is in it as a
+    // digest, so that a task with another password doesn't take a session logged in with the right one.
+    static Optional<String> connectionKey(final Logger log, final PluginTask task, final String host, final int port, final String user)
+    {
+        final Optional<String> sslKey = task.getSsl() ? sslConfigKey(log, task) : Optional.<String>empty();
+        if (task.getSsl() && !sslKey.isPresent()) {
+            return Optional.empty();
+        }
+        return Optional.of(String.join(" ", host + ":" + port, String.valueOf(user), DownloadSpool.sha256(task.getPassword().orElse("")),
+                String.valueOf(task.getPassiveMode()), String.valueOf(task.getAsciiMode()),
+                String.valueOf(task.getSsl()), String.valueOf(task.getSslExplicit()), sslKey.orElse(""),
+                String.valueOf(task.getSslCipherSuites()), task.getSslDataChannelProtection().toString(),
+                String.valueOf(task.getConnectTimeout()), String.valueOf(task.getReadTimeout()), String.valueOf(task.getCloseTimeout()),
+                String.valueOf(task.getTcpNoDelay()), String.valueOf(task.getTcpKeepAlive()),
+                task.getSocketReceiveBuffer().orElse(""), String.valueOf(task.getTargetBandwidthMbps())));
+    }
+
+    private static int portOf(final PluginTask task, final FtpHost host)
+    {
+        int defaultPort = FTP_DEFULAT_PORT;
+        if (task.getSsl()) {
+            defaultPort = task.getSslExplicit() ? FTPES_DEFAULT_PORT : FTPS_DEFAULT_PORT;
+        }
+        return host.getPort().orElse(task.getPort().orElse(defaultPort));
+    }
+
+    private static FTPClient newFTPClient(final Logger log, final PluginTask task, final FtpHost host)
     {
         FTPClient client = new FTPClient();
         try {
-            int defaultPort = FTP_DEFULAT_PORT;
             if (task.getSsl()) {
-                client.setSSLSocketFactory(SSLPlugins.newSSLSocketFactory(task.getSSLConfig(), task.getHost()));
                 if (task.getSslExplicit()) {
                     client.setSecurity(FTPClient.SECURITY_FTPES);
-                    defaultPort = FTPES_DEFAULT_PORT;
                     log.info("Using FTPES(FTPS/explicit) mode");
                 }
                 else {
                     client.setSecurity(FTPClient.SECURITY_FTPS);
-                    defaultPort = FTPS_DEFAULT_PORT;
                     log.info("Using FTPS(FTPS/implicit) mode");
                 }
             }
-            final int port = task.getPort().isPresent() ? task.getPort().get() : defaultPort;
+            final int port = portOf(task, host);
+            TlsSocketFactory tls = null;
+            if (task.getSsl()) {
+                tls = newSSLSocketFactory(log, task, host, port);
+                client.setSSLSocketFactory(tls);
+            }
 
             client.addCommunicationListener(new LoggingCommunicationListner(log));
 
-            // TODO configurable timeout parameters
-            client.setAutoNoopTimeout(3000);
+            client.setAutoNoopTimeout(AUTO_NOOP_TIMEOUT_MILLIS);
 
-            final FTPConnector con = client.getConnector();
-            con.setConnectionTimeout(30);
-            con.setReadTimeout(60);
-            con.setCloseTimeout(60);
+            final FTPConnector con = new TunedConnector(task.getTcpNoDelay(), task.getTcpKeepAlive(), socketReceiveBuffer(task),
+                    task.getTargetBandwidthMbps() * 1000L * 1000L / 8);
+            con.setConnectionTimeout(task.getConnectTimeout());
+            con.setReadTimeout(task.getReadTimeout());
+            con.setCloseTimeout(task.getCloseTimeout());
+            client.setConnector(con);
 
             // for commons-net client
             //client.setControlKeepAliveTimeout
@@ -222,33 +837,29 @@ public class FtpFileInputPlugin
             //client.setDataTimeout
             //client.setAutodetectUTF8
 
-            client.connect(task.getHost(), port);
-            log.info("Connecting to {}:{}", task.getHost(), port);
+            client.connect(host.getHost(), port);
+            log.info("Connecting to {}:{}", host.getHost(), port);
 
             if (task.getUser().isPresent()) {
                 log.info("Logging in with user " + task.getUser().get());
                 client.login(task.getUser().get(), task.getPassword().orElse(""));
-            }
 
-            log.info("Using passive mode");
-            client.setPassive(task.getPassiveMode());
-
-            if (task.getAsciiMode()) {
-                log.info("Using ASCII mode");
-                client.setType(FTPClient.TYPE_TEXTUAL);
-            }
-            else {
-                log.info("Using binary mode");
-                client.setType(FTPClient.TYPE_BINARY);
+                if (tls != null && task.getSslDataChannelProtection() == DataChannelProtection.CLEAR) {
+                    // login has sent PROT P. The control connection stays encrypted
+                    log.info("Using cleartext data channels");
+                    final FTPReply reply = client.sendCustomCommand("PROT C");
+                    if (!reply.isSuccessCode()) {
+                        throw new FTPException(reply);
+                    }
+                    tls.setClearDataChannel(true);
+                }
             }
 
-            if (client.isCompressionSupported()) {
-                log.info("Using MODE Z compression");
-                client.setCompressionEnabled(true);
-            }
+            configureTransfers(log, task, client);
 
             final FTPClient connected = client;
             client = null;
+            TransferProgress.shared(log, task.getProgressLogInterval()).connected(connected);
             return connected;
         }
         catch (final FTPException ex) {
@@ -270,6 +881,105 @@ public class FtpFileInputPlugin
         }
     }
 
+    // Returns the receive buffer size of data connections, or TunedConnector.AUTO
+    private static int socketReceiveBuffer(final PluginTask task)
+    {
+        if (!task.getSocketReceiveBuffer().isPresent()) {
+            return TunedConnector.DEFAULT_BUFFER_SIZE;
+        }
+        final String value = task.getSocketReceiveBuffer().get().trim();
+        if (value.equals("auto")) {
+            if (task.getTargetBandwidthMbps() <= 0) {
+                throw new ConfigException("'target_bandwidth_mbps' must be positive");
+            }
+            return TunedConnector.AUTO;
+        }
+        try {
+            final int size = Integer.parseInt(value);
+            if (size > 0) {
+                return size;
+            }
+        }
+        catch (final NumberFormatException ex) {
+            // fall through
+        }
+        throw new ConfigException(String.format("Invalid socket_receive_buffer '%s'. It must be 'auto' or a positive number of bytes", value));
+    }
+
+    // These only change the state of the client, and are sent with the next transfer
+    private static void configureTransfers(final Logger log, final PluginTask task, final FTPClient client)
+    {
+        log.info("Using passive mode");
+        client.setPassive(task.getPassiveMode());
+
+        if (task.getAsciiMode()) {
+            log.info("Using ASCII mode");
+            client.setType(FTPClient.TYPE_TEXTUAL);
+        }
+        else {
+            log.info("Using binary mode");
+            client.setType(FTPClient.TYPE_BINARY);
+        }
+
+        if (client.isCompressionSupported()) {
+            log.info("Using MODE Z compression");
+            client.setCompressionEnabled(true);
+        }
+    }
+
+    private static TlsSocketFactory newSSLSocketFactory(final Logger log, final PluginTask task, final FtpHost host, final int port)
+    {
+        final TlsSocketFactory factory = new TlsSocketFactory(newSharedSSLSocketFactory(log, task, host, port), task.getSslCipherSuites());
+        final List<String> unsupported = factory.getUnsupportedCipherSuites();
+        if (!unsupported.isEmpty()) {
+            log.warn("Ignoring cipher suites not supported by the security provider: {}", unsupported);
+        }
+        return factory;
+    }
+
+    private static SSLSocketFactory newSharedSSLSocketFactory(final Logger log, final PluginTask task, final FtpHost host, final int port)
+    {
+        if (!task.getSslSessionReuse()) {
+            return newProviderSSLSocketFactory(log, task, host);
+        }
+        // if the configuration can't be identified, sessions are not shared with other connections,
+        // but data channels still resume the session
+        final String key = sslConfigKey(log, task).orElse("connection-" + System.identityHashCode(new Object()));
+        final SessionResumingSSLSocketFactory factory = SessionResumingSSLSocketFactory.shared(key, host.getHost(), port,
+                new Supplier<SSLSocketFactory>() {
+                    @Override
+                    public SSLSocketFactory get()
+                    {
+                        return newProviderSSLSocketFactory(log, task, host);
+                    }
+                });
+        log.info("Reusing TLS sessions. {}", factory);
+        return factory;
+    }
+
+    // SSLPlugins creates the SSLContext from the most preferred provider of the JVM, so a context of
+    // ssl_provider is created here with the trust managers of SSLPlugins instead
+    private static SSLSocketFactory newProviderSSLSocketFactory(final Logger log, final PluginTask task, final FtpHost host)
+    {
+        if (!task.getSslProvider().isPresent()) {
+            return SSLPlugins.newSSLSocketFactory(task.getSSLConfig(), host.getHost());
+        }
+        return TlsSocketFactory.newSSLSocketFactory(log, TlsSocketFactory.findProvider(task.getSslProvider().get()),
+                task.getSSLConfig().newTrustManager(), task.getSslVerify().orElse(true) && task.getSslVerifyHostname());
+    }
+
+    // Identifies the TLS configuration, or returns empty if it can't be serialized
+    static Optional<String> sslConfigKey(final Logger log, final PluginTask task)
+    {
+        try {
+            return Optional.of(SSL_CONFIG_MAPPER.writeValueAsString(task.getSSLConfig()) + " " + task.getSslProvider().orElse(""));
+        }
+        catch (final JsonProcessingException ex) {
+            log.debug("Can't identify the TLS configuration", ex);
+            return Optional.empty();
+        }
+    }
+
     static void disconnectClient(final FTPClient client)
     {
         if (client.isConnected()) {
@@ -285,116 +995,404 @@ public class FtpFileInputPlugin
             catch (final IOException ex) {
                 // do nothing
             }
-        }
-    }
+        }
+    }
+
+    // Sends NOOP to find whether the control connection survived a failed transfer
+    static boolean isAlive(final FTPClient client)
+    {
+        if (!client.isConnected()) {
+            return false;
+        }
+        try {
+            client.noop();
+            return true;
+        }
+        catch (final FTPException ex) {
+            return false;
+        }
+        catch (final FTPIllegalReplyException ex) {
+            return false;
+        }
+        catch (final IOException ex) {
+            return false;
+        }
+        catch (final IllegalStateException ex) {
+            return false;
+        }
+    }
+
+    private List<FileEntry> listFileEntries(final Logger log, final PluginTask task, final Pattern pathMatchPattern)
+    {
+        if (!task.getPathPrefixes().isEmpty()) {
+            return listPathPrefixes(log, task, pathMatchPattern);
+        }
+        final FTPClient client = newFTPClient(log, task);
+        boolean completed = false;
+        try {
+            final Optional<List<FileEntry>> manifestEntries = task.getManifestPath().isPresent()
+                    ? Optional.of(readManifest(log, task, client))
+                    : Optional.<List<FileEntry>>empty();
+            final FileLister.Builder lister = FileLister.builder(log, client)
+                    .withPathMatchPattern(new PathMatchPattern(pathMatchPattern))
+                    .withListingFilter(ListingFilter.of(task, Instant.now()))
+                    .withFollowSymlinks(task.getFollowSymlinks());
+            if (Exec.isPreview()) {
+                final List<FileEntry> sample = listPreviewSample(log, task, lister, manifestEntries);
+                completed = true;
+                return sample;
+            }
+            final List<FileEntry> entries;
+            switch (task.getIncrementalMode()) {
+            case MODIFIED_TIME:
+                lister.withWatermark(ModifiedTimeWatermark.of(task.getLastModified(), task.getLastModifiedPath()))
+                        .withSkipUnmodifiedDirectories(task.getSkipUnmodifiedDirectories());
+                // files are limited after listing, oldest first
+                entries = limitByModifiedTime(newBatchLimit(task), list(lister.build(), task, manifestEntries));
+                break;
+            case TAIL:
+            case CHECKSUM:
+                // every file is listed, and compared with tail_offsets or checksums
+                entries = list(lister.build(), task, manifestEntries);
+                break;
+            default:
+                lister.withLastPath(task.getLastPath())
+                        .withBatchLimit(newBatchLimit(task))
+                        .withStopAtRecentFiles(true);
+                entries = list(lister.build(), task, manifestEntries);
+            }
+            if (manifestEntries.isPresent() && task.getManifestVerifySamples() > 0) {
+                Manifest.verify(log, client, entries, task.getManifestVerifySamples(), new Random());
+            }
+            completed = true;
+            return entries;
+        }
+        finally {
+            // the first task can reuse the connection unless listing failed in the middle
+            if (completed) {
+                releaseClient(log, task, client);
+            }
+            else {
+                disconnectClient(client);
+            }
+        }
+    }
+
+    // Preview and guess read only the first task, so listing stops at the first matching files
+    // instead of walking the whole tree.
+    private static List<FileEntry> listPreviewSample(final Logger log, final PluginTask task, final FileLister.Builder lister,
+            final Optional<List<FileEntry>> manifestEntries)
+    {
+        log.info("Listing at most {} files for preview", task.getPreviewSampleFiles());
+        switch (task.getIncrementalMode()) {
+        case MODIFIED_TIME:
+            lister.withWatermark(ModifiedTimeWatermark.of(task.getLastModified(), task.getLastModifiedPath()))
+                    .withSkipUnmodifiedDirectories(task.getSkipUnmodifiedDirectories());
+            break;
+        case TAIL:
+        case CHECKSUM:
+            break;
+        default:
+            lister.withLastPath(task.getLastPath());
+        }
+        return list(lister.withBatchLimit(newPreviewBatchLimit(task)).build(), task, manifestEntries);
+    }
+
+    private static BatchLimit newPreviewBatchLimit(final PluginTask task)
+    {
+        if (task.getPreviewSampleFiles() <= 0) {
+            throw new ConfigException("'preview_sample_files' must be positive: " + task.getPreviewSampleFiles());
+        }
+        return new BatchLimit(Optional.of(task.getPreviewSampleFiles()), Optional.<Long>empty());
+    }
+
+    // Lists the prefixes of path_prefixes in parallel over pooled connections, and merges them into
+    // one list without duplicated paths. With incremental_mode: path, last_path of each prefix is
+    // advanced to the last file loaded under it, and with modified_time, its watermark to the newest
+    // file loaded under it.
+    private static List<FileEntry> listPathPrefixes(final Logger log, final PluginTask task, final Pattern defaultPattern)
+    {
+        if (task.getMaxListingConnections() <= 0) {
+            throw new ConfigException("'max_listing_connections' must be positive: " + task.getMaxListingConnections());
+        }
+        final List<PathPrefix> prefixes = task.getPathPrefixes();
+        final int connections = Math.min(prefixes.size(), task.getMaxListingConnections());
+        final ListingFilter listingFilter = ListingFilter.of(task, Instant.now());
+        final Optional<BatchLimit> previewLimit = Exec.isPreview() ? Optional.of(newPreviewBatchLimit(task)) : Optional.<BatchLimit>empty();
+        log.info("Listing {} path prefixes with {} connections", prefixes.size(), connections);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(connections, new FormattedThreadFactory("embulk-input-ftp-listing-%d"));
+        final FtpClientPool pool = new FtpClientPool(new Supplier<FTPClient>() {
+                @Override
+                public FTPClient get()
+                {
+                    return newFTPClient(log, task);
+                }
+            }, connections, new Consumer<FTPClient>() {
+                @Override
+                public void accept(final FTPClient client)
+                {
+                    releaseClient(log, task, client);
+                }
+            });
+        try {
+            final List<Future<List<FileEntry>>> listings = new ArrayList<>();
+            for (final PathPrefix prefix : prefixes) {
+                listings.add(executor.submit(new Callable<List<FileEntry>>() {
+                        @Override
+                        public List<FileEntry> call()
+                        {
+                            return listPathPrefix(log, task, pool, prefix, defaultPattern, listingFilter, previewLimit);
+                        }
+                    }));
+            }
+
+            final Map<String, FileEntry> merged = new LinkedHashMap<>();
+            final List<List<FileEntry>> listedByPrefix = new ArrayList<>();
+            for (int i = 0; i < prefixes.size(); i++) {
+                final List<FileEntry> listed = getListing(listings.get(i));
+                for (final FileEntry entry : listed) {
+                    if (!merged.containsKey(entry.getPath())) {
+                        merged.put(entry.getPath(), entry);
+                    }
+                }
+                listedByPrefix.add(listed);
+            }
 
-    private List<String> listFiles(final Logger log, final PluginTask task, final Pattern pathMatchPattern)
-    {
-        final FTPClient client = newFTPClient(log, task);
-        try {
-            return listFilesByPrefix(log, client, task.getPathPrefix(), task.getLastPath(), pathMatchPattern);
+            final List<FileEntry> entries = new ArrayList<>(merged.values());
+            if (previewLimit.isPresent()) {
+                return entries.subList(0, Math.min(entries.size(), task.getPreviewSampleFiles()));
+            }
+            switch (task.getIncrementalMode()) {
+            case MODIFIED_TIME:
+                final List<FileEntry> oldest = limitByModifiedTime(newBatchLimit(task), entries);
+                final Set<String> loadedOldest = new HashSet<>(toPaths(oldest));
+                final List<PathPrefix> watermarked = new ArrayList<>();
+                for (int i = 0; i < prefixes.size(); i++) {
+                    final List<FileEntry> loadedUnder = new ArrayList<>();
+                    for (final FileEntry entry : listedByPrefix.get(i)) {
+                        if (loadedOldest.contains(entry.getPath())) {
+                            loadedUnder.add(entry);
+                        }
+                    }
+                    final Optional<ModifiedTimeWatermark> newest = ModifiedTimeWatermark.newest(loadedUnder);
+                    watermarked.add(newest.isPresent() ? prefixes.get(i).withWatermark(newest.get()) : prefixes.get(i));
+                }
+                task.setPathPrefixes(watermarked);
+                return oldest;
+            case TAIL:
+            case CHECKSUM:
+                return entries;
+            default:
+                final List<FileEntry> limited = limitByPath(newBatchLimit(task), entries);
+                final Set<String> loaded = new HashSet<>(toPaths(limited));
+                final List<PathPrefix> nextPrefixes = new ArrayList<>();
+                for (int i = 0; i < prefixes.size(); i++) {
+                    String lastPath = null;
+                    for (final FileEntry entry : listedByPrefix.get(i)) {
+                        if (loaded.contains(entry.getPath()) && (lastPath == null || entry.getPath().compareTo(lastPath) > 0)) {
+                            lastPath = entry.getPath();
+                        }
+                    }
+                    nextPrefixes.add(lastPath == null ? prefixes.get(i) : prefixes.get(i).withLastPath(lastPath));
+                }
+                task.setPathPrefixes(nextPrefixes);
+                return limited;
+            }
         }
         finally {
-            disconnectClient(client);
+            executor.shutdownNow();
+            pool.close();
         }
     }
 
-    public static List<String> listFilesByPrefix(final Logger log, final FTPClient client,
-            final String prefix, final Optional<String> lastPath, final Pattern pathMatchPattern)
+    private static List<FileEntry> listPathPrefix(final Logger log, final PluginTask task, final FtpClientPool pool,
+            final PathPrefix prefix, final Pattern defaultPattern, final ListingFilter listingFilter, final Optional<BatchLimit> previewLimit)
     {
-        String directory;
-        String fileNamePrefix;
-        if (prefix.isEmpty()) {
-            directory = "";
-            fileNamePrefix = "";
+        final FTPClient client = pool.borrow();
+        boolean listed = false;
+        try {
+            final String pattern = prefix.getPathMatchPattern().orElse("").trim();
+            final FileLister.Builder lister = FileLister.builder(log, client)
+                    .withPathMatchPattern(pattern.isEmpty() ? new PathMatchPattern(defaultPattern) : PathMatchPattern.compile(pattern))
+                    .withListingFilter(listingFilter)
+                    .withFollowSymlinks(task.getFollowSymlinks());
+            switch (task.getIncrementalMode()) {
+            case MODIFIED_TIME:
+                // last_modified applies to a prefix which hasn't got its own yet
+                lister.withWatermark(prefix.getWatermark().isPresent()
+                            ? prefix.getWatermark()
+                            : ModifiedTimeWatermark.of(task.getLastModified(), task.getLastModifiedPath()))
+                        .withSkipUnmodifiedDirectories(task.getSkipUnmodifiedDirectories());
+                break;
+            case TAIL:
+            case CHECKSUM:
+                break;
+            default:
+                lister.withLastPath(prefix.getLastPath())
+                        .withBatchLimit(newBatchLimit(task))
+                        .withStopAtRecentFiles(true);
+            }
+            if (previewLimit.isPresent()) {
+                lister.withBatchLimit(previewLimit.get());
+            }
+            final List<FileEntry> entries = lister.build().listByPrefix(prefix.getPrefix());
+            listed = true;
+            return entries;
         }
-        else {
-            final int pos = prefix.lastIndexOf("/");
-            if (pos < 0) {
-                directory = "";
-                fileNamePrefix = prefix;
+        finally {
+            if (listed) {
+                pool.release(client);
             }
             else {
-                directory = prefix.substring(0, pos + 1);  // include last "/"
-                fileNamePrefix = prefix.substring(pos + 1);
+                pool.invalidate(client);
             }
         }
+    }
 
-        final ArrayList<String> builder = new ArrayList<>();
-
+    private static List<FileEntry> getListing(final Future<List<FileEntry>> listing)
+    {
         try {
-            String currentDirectory = client.currentDirectory();
-            log.info("Listing ftp files at directory '{}' filtering filename by prefix '{}'", directory.isEmpty() ? currentDirectory : directory, fileNamePrefix);
-
-            if (!directory.isEmpty()) {
-                client.changeDirectory(directory);
-                currentDirectory = directory;
-            }
-
-            for (final FTPFile file : client.list()) {
-                if (file.getName().startsWith(fileNamePrefix)) {
-                    listFilesRecursive(client, currentDirectory, file, lastPath, builder, pathMatchPattern);
-                }
-            }
-        }
-        catch (final FTPListParseException ex) {
-            log.info("FTP listing files failed");
-            throw new RuntimeException(ex);
+            return listing.get();
         }
-        catch (final FTPAbortedException ex) {
-            log.info("FTP listing files failed");
+        catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(ex);
         }
-        catch (final FTPDataTransferException ex) {
-            log.info("FTP data transfer failed");
-            throw new RuntimeException(ex);
+        catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
         }
-        catch (final FTPException ex) {
-            log.info("FTP command failed: " + ex.getCode() + " " + ex.getMessage());
-            throw new RuntimeException(ex);
+    }
+
+    // Lists files under path_prefix, or filters files in the manifest without listing directories.
+    private static List<FileEntry> list(final FileLister lister, final PluginTask task, final Optional<List<FileEntry>> manifestEntries)
+    {
+        if (manifestEntries.isPresent()) {
+            return lister.filter(manifestEntries.get());
         }
-        catch (final FTPIllegalReplyException ex) {
-            log.info("FTP protocol error");
-            throw new RuntimeException(ex);
+        return lister.listByPrefix(task.getPathPrefix().get());
+    }
+
+    private static List<FileEntry> readManifest(final Logger log, final PluginTask task, final FTPClient client)
+    {
+        final String manifestPath = task.getManifestPath().get();
+        final ManifestFormat format = task.getManifestFormat().isPresent()
+                ? task.getManifestFormat().get()
+                : ManifestFormat.detect(manifestPath);
+        log.info("Reading {} manifest '{}' instead of listing files", format, manifestPath);
+        final ExecutorService executor = Executors.newCachedThreadPool(new FormattedThreadFactory());
+        // read to the end so that the control connection can be used for verification
+        try (final InputStream in = startDownload(log, client, manifestPath, 0L, executor)) {
+            final List<FileEntry> entries = Manifest.read(in, manifestPath, format);
+            log.info("Found {} files in manifest '{}'", entries.size(), manifestPath);
+            return entries;
         }
         catch (final IOException ex) {
             log.info("FTP network error: " + ex);
             throw new UncheckedIOException(ex);
         }
+        finally {
+            executor.shutdownNow();
+        }
+    }
 
-        return Collections.unmodifiableList(builder);
+    public static List<String> listFilesByPrefix(final Logger log, final FTPClient client,
+            final String prefix, final Optional<String> lastPath, final Pattern pathMatchPattern)
+    {
+        return listFilesByPrefix(log, client, prefix, lastPath, new PathMatchPattern(pathMatchPattern), ListingFilter.ACCEPT_ALL);
     }
 
-    private static void listFilesRecursive(final FTPClient client,
-            String baseDirectoryPath, final FTPFile file, final Optional<String> lastPath,
-            final ArrayList<String> builder, final Pattern pathMatchPattern)
-        throws IOException, FTPException, FTPIllegalReplyException, FTPDataTransferException, FTPAbortedException, FTPListParseException
+    public static List<String> listFilesByPrefix(final Logger log, final FTPClient client,
+            final String prefix, final Optional<String> lastPath, final PathMatchPattern pathMatchPattern,
+            final ListingFilter listingFilter)
     {
-        if (!baseDirectoryPath.endsWith("/")) {
-            baseDirectoryPath = baseDirectoryPath + "/";
-        }
-        final String path = baseDirectoryPath + file.getName();
+        return toPaths(FileLister.builder(log, client)
+                .withLastPath(lastPath)
+                .withPathMatchPattern(pathMatchPattern)
+                .withListingFilter(listingFilter)
+                .build()
+                .listByPrefix(prefix));
+    }
 
-        if (lastPath.isPresent() && path.compareTo(lastPath.get()) <= 0) {
-            return;
+    private static BatchLimit newBatchLimit(final PluginTask task)
+    {
+        return new BatchLimit(task.getMaxFilesPerRun(), task.getMaxBytesPerRun());
+    }
+
+    // Takes the least recently modified files within the limit, so that the watermark doesn't
+    // pass over files left to the next run.
+    private static List<FileEntry> limitByModifiedTime(final BatchLimit batchLimit, final List<FileEntry> listed)
+    {
+        if (batchLimit.isUnlimited()) {
+            return listed;
+        }
+        final List<FileEntry> sorted = new ArrayList<>(listed);
+        Collections.sort(sorted, new Comparator<FileEntry>() {
+                @Override
+                public int compare(final FileEntry a, final FileEntry b)
+                {
+                    final int compared = Long.compare(a.getModifiedTime(), b.getModifiedTime());
+                    return compared != 0 ? compared : a.getPath().compareTo(b.getPath());
+                }
+            });
+        final BatchLimit counter = batchLimit.newCounter();
+        final List<FileEntry> limited = new ArrayList<>();
+        for (final FileEntry entry : sorted) {
+            if (!counter.tryAdd(entry.getSize())) {
+                break;
+            }
+            limited.add(entry);
         }
+        return limited;
+    }
 
-        switch (file.getType()) {
-        case FTPFile.TYPE_FILE:
-            if (pathMatchPattern.matcher(path).find()) {
-                builder.add(path);
+    // Takes the first files in the order of their paths within the limit of the whole run. Each
+    // prefix stopped listing at the limit by itself, so the files taken from a prefix are the first
+    // files after its last_path, and no file is passed over.
+    private static List<FileEntry> limitByPath(final BatchLimit batchLimit, final List<FileEntry> listed)
+    {
+        if (batchLimit.isUnlimited()) {
+            return listed;
+        }
+        final List<FileEntry> sorted = new ArrayList<>(listed);
+        Collections.sort(sorted, new Comparator<FileEntry>() {
+                @Override
+                public int compare(final FileEntry a, final FileEntry b)
+                {
+                    return a.getPath().compareTo(b.getPath());
+                }
+            });
+        final BatchLimit counter = batchLimit.newCounter();
+        final Set<String> limited = new HashSet<>();
+        for (final FileEntry entry : sorted) {
+            if (!counter.tryAdd(entry.getSize())) {
+                break;
             }
-            break;
-        case FTPFile.TYPE_DIRECTORY:
-            client.changeDirectory(path);
-            for (final FTPFile subFile : client.list()) {
-                listFilesRecursive(client, path, subFile, lastPath, builder, pathMatchPattern);
+            limited.add(entry.getPath());
+        }
+        final List<FileEntry> entries = new ArrayList<>();
+        for (final FileEntry entry : listed) {
+            if (limited.contains(entry.getPath())) {
+                entries.add(entry);
             }
-            client.changeDirectory(baseDirectoryPath);
-            break;
-        case FTPFile.TYPE_LINK:
-            // TODO
         }
+        return entries;
+    }
+
+    private static List<String> toPaths(final List<FileEntry> entries)
+    {
+        final ArrayList<String> paths = new ArrayList<>(entries.size());
+        for (final FileEntry entry : entries) {
+            paths.add(entry.getPath());
+        }
+        return Collections.unmodifiableList(paths);
     }
 
     @Override
@@ -485,8 +1483,21 @@ public class FtpFileInputPlugin
 
     private static final long TRANSFER_NOTICE_BYTES = 100 * 1024 * 1024;
 
-    private static InputStream startDownload(final Logger log, final FTPClient client,
+    static InputStream startDownload(final Logger log, final FTPClient client,
             final String path, final long offset, final ExecutorService executor)
+    {
+        return startDownload(log, client, path, offset, executor, new Runnable() {
+                @Override
+                public void run()
+                {
+                    // do nothing
+                }
+            });
+    }
+
+    // onCompleted runs when the server has replied to RETR, before the stream reaches EOF
+    private static InputStream startDownload(final Logger log, final FTPClient client,
+            final String path, final long offset, final ExecutorService executor, final Runnable onCompleted)
     {
         final BlockingTransfer t = BlockingTransfer.submit(executor,
                 new Function<BlockingTransfer, Runnable>()
@@ -500,6 +1511,7 @@ public class FtpFileInputPlugin
                             {
                                 try {
                                     client.download(path, Channels.newOutputStream(transfer.getWriterChannel()), offset, new LoggingTransferListener(log, TRANSFER_NOTICE_BYTES));
+                                    onCompleted.run();
                                 }
                                 catch (final FTPException ex) {
                                     log.info("FTP command failed: " + ex.getCode() + " " + ex.getMessage());
@@ -510,7 +1522,7 @@ public class FtpFileInputPlugin
                                     throw new RuntimeException(ex);
                                 }
                                 catch (final FTPAbortedException ex) {
-                                    log.info("FTP listing files failed");
+                                    log.info("FTP data transfer aborted");
                                     throw new RuntimeException(ex);
                                 }
                                 catch (final FTPIllegalReplyException ex) {
@@ -520,14 +1532,7 @@ public class FtpFileInputPlugin
                                 catch (final IOException ex) {
                                     throw new UncheckedIOException(ex);
                                 }
-                                finally {
-                                    try {
-                                        transfer.getWriterChannel().close();
-                                    }
-                                    catch (final IOException ex) {
-                                        throw new UncheckedIOException(ex);
-                                    }
-                                }
+                                // BlockingTransfer closes the writer channel
                             }
                         };
                     }
@@ -535,25 +1540,72 @@ public class FtpFileInputPlugin
         return Channels.newInputStream(t.getReaderChannel());
     }
 
-    private static class FtpInputStreamReopener
+    // Returns the client to retry a failed download on the same server with, which is a new one if
+    // the control connection may have been lost with the download
+    static FTPClient reconnectIfLost(final Logger log, final FTPClient client, final boolean reused, final Supplier<FTPClient> connect)
+    {
+        if (reused) {
+            // the server may have closed the connection while it was idle
+            log.warn("Download over a reused connection failed. Reconnecting");
+        }
+        else if (!isAlive(client)) {
+            // the server replied 421 or the control connection was cut with the transfer
+            log.warn("The control connection was lost with the download. Reconnecting");
+        }
+        else {
+            return client;
+        }
+        closeClient(client);
+        return connect.get();
+    }
+
+    // Closes the data connection first so that a download blocked in reading it ends and releases
+    // the client.
+    private static void closeClient(final FTPClient client)
+    {
+        try {
+            client.abortCurrentDataTransfer(false);
+        }
+        catch (final FTPIllegalReplyException ex) {
+            // do nothing
+        }
+        catch (final IOException ex) {
+            // do nothing
+        }
+        disconnectClient(client);
+    }
+
+    // Starts downloads of a file for FtpInputStreamReopener
+    interface Downloader
+    {
+        InputStream download(long offset);
+
+        // Moves to another mirror after a failure, if there is one
+        void failover(Exception cause);
+    }
+
+    static class FtpInputStreamReopener
             implements ResumableInputStream.Reopener
     {
         private final Logger log;
-        private final FTPClient client;
-        private final ExecutorService executor;
-        private final String path;
+        private final Downloader downloader;
+        private final long start;
+        private Exception lastCause;
 
-        public FtpInputStreamReopener(final Logger log, final FTPClient client, final ExecutorService executor, final String path)
+        public FtpInputStreamReopener(final Logger log, final Downloader downloader, final long start)
         {
             this.log = log;
-            this.client = client;
-            this.executor = executor;
-            this.path = path;
+            this.downloader = downloader;
+            this.start = start;
         }
 
         @Override
         public InputStream reopen(final long offset, final Exception closedCause) throws IOException
         {
+            if (Thread.currentThread().isInterrupted()) {
+                // the task is being stopped
+                throw new InterruptedIOException();
+            }
             try {
                 return RetryExecutor.builder()
                     .withRetryLimit(3)
@@ -564,20 +1616,23 @@ public class FtpFileInputPlugin
                         @Override
                         public InputStream call() throws InterruptedIOException
                         {
-                            log.warn(String.format("FTP read failed. Retrying GET request with %,d bytes offset", offset), closedCause);
-                            return startDownload(log, client, path, offset, executor);
+                            log.warn(String.format("FTP read failed. Retrying GET request with %,d bytes offset", start + offset), closedCause);
+                            downloader.failover(lastCause != null ? lastCause : closedCause);
+                            return downloader.download(start + offset);
                         }
 
                         @Override
                         public boolean isRetryableException(final Exception exception)
                         {
-                            return true;  // TODO
+                            // such as a file differing on another mirror
+                            return !(exception instanceof DataException);
                         }
 
                         @Override
                         public void onRetry(final Exception exception, final int retryCount, final int retryLimit, final int retryWait)
                                 throws RetryGiveupException
                         {
+                            lastCause = exception;
                             final String message = String.format("FTP GET request failed. Retrying %d/%d after %d seconds. Message: %s",
                                     retryCount, retryLimit, retryWait / 1000, exception.getMessage());
                             if (retryCount % 3 == 0) {
@@ -613,20 +1668,45 @@ public class FtpFileInputPlugin
 
     // TODO create single-file InputStreamFileInput utility
     private static class SingleFileProvider
-            implements InputStreamFileInput.Provider
+            implements InputStreamFileInput.Provider, Downloader
     {
         private final Logger log;
-        private final FTPClient client;
+        private final PluginTask task;
+        private final MirrorSelector selector;
+        private final Set<FtpHost> failedHosts = new HashSet<>();
+        private MirrorSelector.Lease lease;
+        private FTPClient client;  // null with engine: nio
+        private final NioFtpEngine nio;
+        private NioDownload nioDownload;
+        private boolean reused;
+        private boolean retriedOnHost;
+        private volatile boolean downloadCompleted;
         private final ExecutorService executor;
-        private final String path;
+        private final FileEntry entry;
+        private final boolean tail;
+        private final boolean dropIncompleteLastLine;
+        private final boolean preview;
         private boolean opened = false;
+        private LineRangeInputStream rangeInput;
+        private ServerChecksum checksumMethod;
+        private String checksum;  // of the whole file, reported by the server
+        private final TransferProgress progress;
+        private boolean started = false;
+        private boolean committed = false;
 
         public SingleFileProvider(final Logger log, final PluginTask task, final int taskIndex)
         {
             this.log = log;
-            this.client = newFTPClient(log, task);
+            this.task = task;
+            this.selector = MirrorSelector.of(FtpHost.of(task));
+            this.nio = task.getEngine() == Engine.NIO ? NioFtpEngine.shared(task.getNioThreads()) : null;
+            connect();
             this.executor = Executors.newCachedThreadPool(new FormattedThreadFactory());
-            this.path = task.getFiles().get(taskIndex);
+            this.entry = task.getFileEntries().get(taskIndex);
+            this.tail = task.getIncrementalMode() == IncrementalMode.TAIL;
+            this.dropIncompleteLastLine = tail && task.getTailDropIncompleteLines();
+            this.preview = Exec.isPreview();
+            this.progress = preview ? TransferProgress.detached() : TransferProgress.shared(log, task.getProgressLogInterval());
         }
 
         @Override
@@ -637,21 +1717,383 @@ public class FtpFileInputPlugin
             }
             opened = true;
 
-            return new InputStreamWithHints(
-                    new ResumableInputStream(
-                            startDownload(log, client, path, 0L, executor),
-                            new FtpInputStreamReopener(log, client, executor, path)), path
-            );
+            if (!preview && isWholeFile() && (task.getVerifyChecksum() || task.getIncrementalMode() == IncrementalMode.CHECKSUM)) {
+                queryChecksum();
+                if (checksum != null && task.getIncrementalMode() == IncrementalMode.CHECKSUM
+                        && checksum.equals(task.getChecksums().get(entry.getPath()))) {
+                    log.info("Skipping file '{}' whose checksum {} is unchanged", entry.getPath(), checksum);
+                    downloadCompleted = true;  // no transfer was started, so the connection can be reused
+                    progress.skipped(entry);
+                    return null;
+                }
+            }
+
+            progress.started();
+            started = true;
+            InputStreamWithHints input = openEntry();
+            if (task.getClientAsciiMode()) {
+                // outside of the ranges and the resumable stream, which count bytes of the server
+                input = new InputStreamWithHints(new CrlfToLfInputStream(input.getInputStream()), entry.getPath());
+            }
+            if (!preview) {
+                return input;
+            }
+            log.info("Reading at most {} bytes of file '{}' for preview", task.getPreviewSampleBytes(), entry.getPath());
+            return new InputStreamWithHints(new SampledInputStream(input.getInputStream(), task.getPreviewSampleBytes(), new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        abortDownload();
+                    }
+                }), entry.getPath());
+        }
+
+        private InputStreamWithHints openEntry() throws IOException
+        {
+            final String path = entry.getPath();
+            if (tail) {
+                rangeInput = LineRangeInputStream.ofTail(openDownload(entry.getStart()), entry.getStart(), entry.getEnd(), dropIncompleteLastLine);
+                return new InputStreamWithHints(rangeInput, path);
+            }
+            if (isWholeFile()) {
+                if (checksum != null) {
+                    // over the resumable stream, so that the bytes of every retry are digested once
+                    return new InputStreamWithHints(new ChecksumInputStream(openWholeFile(), path, checksumMethod.getAlgorithm(), checksum), path);
+                }
+                return new InputStreamWithHints(openWholeFile(), path);
+            }
+
+            log.info("Reading split [{}, {}) of file '{}'", entry.getStart(), entry.getEnd(), path);
+            final InputStream split = LineRangeInputStream.ofSplit(
+                    openDownload(LineRangeInputStream.splitDownloadStart(entry.getStart())), entry.getStart(), entry.getEnd());
+            if (entry.getStart() == 0L || task.getSplitHeaderLines() <= 0) {
+                return new InputStreamWithHints(split, path);
+            }
+            // repeat the header lines so that the parser can skip them as in the first split
+            final byte[] header = readHeaderLines(path, task.getSplitHeaderLines());
+            return new InputStreamWithHints(new SequenceInputStream(new ByteArrayInputStream(header), split), path);
+        }
+
+        // Spools a large file on local disk so that the next run can continue it after a failure
+        private InputStream openWholeFile() throws IOException
+        {
+            if (!task.getSpoolDirectory().isPresent() || preview || entry.getSize() == FileEntry.UNKNOWN
+                    || entry.getModifiedTime() == FileEntry.UNKNOWN || entry.getSize() < task.getSpoolMinSize()) {
+                // a file without its size and modification time can't be known unchanged
+                return openDownload(0L);
+            }
+            // by the first server, as mirrors publish the same files and a rerun may get another mirror
+            final FtpHost primary = FtpHost.of(task).get(0);
+            final DownloadSpool spool = DownloadSpool.of(log, Paths.get(task.getSpoolDirectory().get()),
+                    primary.getHost(), portOf(task, primary), entry);
+            return spool.open(new LongFunction<InputStream>() {
+                    @Override
+                    public InputStream apply(final long offset)
+                    {
+                        return openDownload(offset);
+                    }
+                });
+        }
+
+        private boolean isWholeFile()
+        {
+            return !tail && entry.getStart() == 0L && entry.getEnd() == FileEntry.UNKNOWN;
+        }
+
+        // Asks the checksum of the file before downloading it, over the control connection
+        private void queryChecksum()
+        {
+            try {
+                queryChecksumOnce();
+            }
+            catch (final RuntimeException ex) {
+                if (!reused) {
+                    throw ex;
+                }
+                // the server may have closed the connection while it was idle
+                failover(ex);
+                queryChecksumOnce();
+            }
+        }
+
+        private void queryChecksumOnce()
+        {
+            final Optional<ServerChecksum> method = ServerChecksum.of(log, client);
+            if (!method.isPresent()) {
+                if (task.getIncrementalMode() == IncrementalMode.CHECKSUM) {
+                    throw new ConfigException("'incremental_mode: checksum' requires a server supporting HASH, XSHA256, XSHA1, XMD5 or XCRC");
+                }
+                return;
+            }
+            checksumMethod = method.get();
+            checksum = checksumMethod.query(log, client, entry.getPath());
+        }
+
+        private InputStream openDownload(final long start)
+        {
+            return new ResumableInputStream(download(start), new FtpInputStreamReopener(log, this, start));
+        }
+
+        // Connects to the mirror chosen by the selector, trying another one if connecting fails
+        private void connect()
+        {
+            if (nio != null) {
+                // each download connects by itself
+                lease = selector.acquire(failedHosts);
+                return;
+            }
+            while (true) {
+                final MirrorSelector.Lease next = selector.acquire(failedHosts);
+                try {
+                    final FTPClient idle = takeIdleClient(log, task, next.getHost());
+                    reused = idle != null;
+                    client = reused ? idle : newFTPClient(log, task, next.getHost());
+                    lease = next;
+                    return;
+                }
+                catch (final RuntimeException ex) {
+                    next.fail();
+                    next.close();
+                    failedHosts.add(next.getHost());
+                    if (!selector.hasMirrors() || failedHosts.size() >= selector.ordered().size()) {
+                        throw ex;
+                    }
+                    log.warn("Connecting to mirror {} failed. Trying another mirror", next.getHost(), ex);
+                }
+            }
+        }
+
+        @Override
+        public InputStream download(final long offset)
+        {
+            if (nio != null) {
+                nioDownload = nio.download(log, task, lease.getHost(), portOf(task, lease.getHost()), socketReceiveBuffer(task), entry.getPath(), offset);
+                return progress.count(lease.count(nioDownload));
+            }
+            downloadCompleted = false;
+            return progress.count(lease.count(startDownload(log, client, entry.getPath(), offset, executor, new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        downloadCompleted = true;
+                    }
+                })));
+        }
+
+        @Override
+        public void failover(final Exception cause)
+        {
+            if (!selector.hasMirrors() || !retriedOnHost) {
+                // a transient failure, such as a reset connection, is retried once on the same mirror
+                // before it backs off
+                retriedOnHost = true;
+                if (client != null) {
+                    final boolean wasReused = reused;
+                    reused = false;
+                    client = reconnectIfLost(log, client, wasReused, new Supplier<FTPClient>() {
+                            @Override
+                            public FTPClient get()
+                            {
+                                return newFTPClient(log, task, lease.getHost());
+                            }
+                        });
+                }
+                return;  // retry on the same server
+            }
+            log.warn("Download from mirror {} failed. Resuming on another mirror", lease.getHost());
+            lease.fail();
+            lease.close();
+            failedHosts.clear();
+            failedHosts.add(lease.getHost());
+            if (client != null) {
+                closeClient(client);
+            }
+            connect();
+            retriedOnHost = false;
+            checkMirroredFile();
+        }
+
+        // Resuming on another mirror joins bytes of the file there to the bytes read so far, so the
+        // file must be the listed one and not an older or newer version on a mirror lagging behind.
+        private void checkMirroredFile()
+        {
+            // a listing without seconds, such as LIST, may have the time of another time zone or day
+            final boolean comparesTime = entry.getModifiedTime() != FileEntry.UNKNOWN && entry.getModifiedTime() % 60000 != 0;
+            if (entry.getSize() == FileEntry.UNKNOWN && !comparesTime) {
+                log.warn("File '{}' on mirror {} can't be compared with the listed one", entry.getPath(), lease.getHost());
+                return;
+            }
+            final FTPClient checker = client != null ? client : newFTPClient(log, task, lease.getHost());
+            boolean checked = false;
+            try {
+                if (entry.getSize() != FileEntry.UNKNOWN) {
+                    final long size = checker.fileSize(entry.getPath());
+                    if (size != entry.getSize()) {
+                        throw new DataException(String.format("Size of file '%s' on mirror %s is %d but the listing says %d. It can't be resumed there",
+                                entry.getPath(), lease.getHost(), size, entry.getSize()));
+                    }
+                }
+                if (comparesTime) {
+                    // MDTM has a precision of seconds
+                    final long modifiedTime = checker.modifiedDate(entry.getPath()).getTime();
+                    if (modifiedTime / 1000 != entry.getModifiedTime() / 1000) {
+                        throw new DataException(String.format("Modification time of file '%s' on mirror %s is %d but the listing says %d. It can't be resumed there",
+                                entry.getPath(), lease.getHost(), modifiedTime, entry.getModifiedTime()));
+                    }
+                }
+                checked = true;
+            }
+            catch (final FTPException ex) {
+                log.info("FTP command failed: " + ex.getCode() + " " + ex.getMessage());
+                throw new DataException(String.format("File '%s' on mirror %s can't be compared with the listed one", entry.getPath(), lease.getHost()), ex);
+            }
+            catch (final FTPIllegalReplyException ex) {
+                log.info("FTP protocol error");
+                throw new RuntimeException(ex);
+            }
+            catch (final IOException ex) {
+                log.info("FTP network error: " + ex);
+                throw new UncheckedIOException(ex);
+            }
+            finally {
+                if (client == null) {
+                    // the connection of the check with engine: nio
+                    if (checked) {
+                        releaseClient(log, task, checker);
+                    }
+                    else {
+                        disconnectClient(checker);
+                    }
+                }
+            }
+        }
+
+        // Reads the header lines over a separate connection because stopping a download in the middle
+        // leaves the reply of RETR unread on the control connection.
+        private byte[] readHeaderLines(final String path, final int lines) throws IOException
+        {
+            final FTPClient headerClient = newFTPClient(log, task);
+            try (final InputStream in = new BufferedInputStream(startDownload(log, headerClient, path, 0L, executor))) {
+                final ByteArrayOutputStream header = new ByteArrayOutputStream();
+                int count = 0;
+                while (count < lines) {
+                    final int b = in.read();
+                    if (b < 0) {
+                        break;
+                    }
+                    header.write(b);
+                    if (b == '\n') {
+                        count++;
+                    }
+                }
+                return header.toByteArray();
+            }
+            finally {
+                disconnectClient(headerClient);
+            }
+        }
+
+        // Sends ABOR and closes the data connection. The control connection stays usable because the
+        // downloading thread reads the replies of RETR and ABOR. The sample is already read, so a
+        // failure here doesn't fail the preview.
+        private void abortDownload()
+        {
+            if (nioDownload != null) {
+                nioDownload.close();  // closes the connections
+                return;
+            }
+            try {
+                client.abortCurrentDataTransfer(true);
+            }
+            catch (final FTPIllegalReplyException ex) {
+                log.warn("FTP protocol error while aborting the transfer of file '{}'", entry.getPath(), ex);
+            }
+            catch (final IOException ex) {
+                log.warn("FTP network error while aborting the transfer of file '{}'", entry.getPath(), ex);
+            }
+        }
+
+        // Waits for the transfer threads interrupted by shutdownNow. Disconnecting afterwards
+        // releases a thread still blocked on a socket.
+        private void awaitTransferThreads()
+        {
+            try {
+                if (!executor.awaitTermination(task.getCloseTimeout(), TimeUnit.SECONDS)) {
+                    log.warn("FTP transfer of file '{}' didn't stop in {} seconds. Closing the connection", entry.getPath(), task.getCloseTimeout());
+                }
+            }
+            catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        TaskReport buildTaskReport()
+        {
+            committed = true;
+            final TaskReport report = CONFIG_MAPPER_FACTORY.newTaskReport();
+            if (tail && rangeInput != null) {
+                report.set("tail_path", entry.getPath());
+                report.set("tail_offset", new TailOffset(rangeInput.getCommittedOffset(), entry.getSize(), entry.getModifiedTime()));
+            }
+            if (checksum != null) {
+                report.set("checksum_path", entry.getPath());
+                report.set("checksum", checksum);
+            }
+            if (nioDownload != null) {
+                reportWindow(report, nioDownload.getEffectiveWindow(), nioDownload.getRequestedWindow(), nioDownload.getRoundTripNanos());
+            }
+            else if (client.getConnector() instanceof TunedConnector) {
+                final TunedConnector connector = (TunedConnector) client.getConnector();
+                reportWindow(report, connector.getEffectiveWindow(), connector.getRequestedWindow(), connector.getRoundTripNanos());
+            }
+            return report;
+        }
+
+        private void reportWindow(final TaskReport report, final int effectiveWindow, final int requestedWindow, final long roundTripNanos)
+        {
+            if (effectiveWindow <= 0) {
+                return;
+            }
+            if (effectiveWindow < requestedWindow) {
+                log.warn("The OS limited the receive buffer to {} bytes instead of {} bytes. Raise its maximum, such as net.core.rmem_max on Linux",
+                        effectiveWindow, requestedWindow);
+            }
+            report.set("receive_window", effectiveWindow);
+            report.set("round_trip_millis", roundTripNanos / 1000000L);
         }
 
         @Override
         public void close()
         {
             try {
+                if (client != null && !downloadCompleted) {
+                    // stops the server from sending the rest of the file
+                    abortDownload();
+                }
                 executor.shutdownNow();
+                awaitTransferThreads();
             }
             finally {
-                disconnectClient(client);
+                try {
+                    // a connection is reused only if the server has replied to RETR
+                    if (client == null) {
+                        if (nioDownload != null) {
+                            nioDownload.close();
+                        }
+                    }
+                    else if (downloadCompleted) {
+                        releaseClient(log, task, client);
+                    }
+                    else {
+                        disconnectClient(client);
+                    }
+                }
+                finally {
+                    lease.close();
+                    if (started) {
+                        progress.finished(committed || preview);
+                    }
+                }
             }
         }
     }
@@ -660,9 +2102,17 @@ public class FtpFileInputPlugin
             extends InputStreamFileInput
             implements TransactionalFileInput
     {
+        private final SingleFileProvider provider;
+
         public FtpFileInput(final Logger log, final PluginTask task, final int taskIndex)
         {
-            super(Exec.getBufferAllocator(), new SingleFileProvider(log, task, taskIndex));
+            this(new SingleFileProvider(log, task, taskIndex));
+        }
+
+        private FtpFileInput(final SingleFileProvider provider)
+        {
+            super(Exec.getBufferAllocator(), provider);
+            this.provider = provider;
         }
 
         @Override
@@ -673,12 +2123,17 @@ public class FtpFileInputPlugin
         @Override
         public TaskReport commit()
         {
-            return CONFIG_MAPPER_FACTORY.newTaskReport();
+            return provider.buildTaskReport();
         }
     }
 
     private static class FormattedThreadFactory implements ThreadFactory {
         FormattedThreadFactory() {
+            this("embulk-input-ftp-transfer-%d");
+        }
+
+        FormattedThreadFactory(final String nameFormat) {
+            this.nameFormat = nameFormat;
             this.count = new AtomicLong(0);
         }
 
@@ -686,11 +2141,12 @@ public class FtpFileInputPlugin
         public Thread newThread(final Runnable runnable)
         {
             final Thread thread = Executors.defaultThreadFactory().newThread(runnable);
-            thread.setName(String.format(Locale.ROOT, "embulk-input-ftp-transfer-%d", this.count.getAndIncrement()));
+            thread.setName(String.format(Locale.ROOT, this.nameFormat, this.count.getAndIncrement()));
             thread.setDaemon(true);
             return thread;
         }
 
+        private final String nameFormat;
         private final AtomicLong count;
     }
 }
@@ -0,0 +1,117 @@
+package org.embulk.input.ftp;
+
+import org.embulk.config.ConfigException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * A server given by {@code host} or an element of {@code hosts}, optionally with its own port as
+ * {@code "host:port"} or {@code "[ipv6-address]:port"}.
+ */
+public class FtpHost
+{
+    private final String host;
+    private final Optional<Integer> port;
+
+    public FtpHost(final String host, final Optional<Integer> port)
+    {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static FtpHost parse(final String value)
+    {
+        final String trimmed = value.trim();
+        if (trimmed.startsWith("[")) {
+            final int close = trimmed.indexOf(']');
+            if (close < 0) {
+                throw new ConfigException(String.format("Invalid host '%s'", value));
+            }
+            final String address = trimmed.substring(1, close);
+            final String rest = trimmed.substring(close + 1);
+            if (rest.isEmpty()) {
+                return new FtpHost(address, Optional.<Integer>empty());
+            }
+            if (!rest.startsWith(":")) {
+                throw new ConfigException(String.format("Invalid host '%s'", value));
+            }
+            return new FtpHost(address, Optional.of(parsePort(rest.substring(1), value)));
+        }
+        final int colon = trimmed.indexOf(':');
+        if (colon < 0 || colon != trimmed.lastIndexOf(':')) {
+            // no port, or an IPv6 address without brackets
+            return new FtpHost(trimmed, Optional.<Integer>empty());
+        }
+        return new FtpHost(trimmed.substring(0, colon), Optional.of(parsePort(trimmed.substring(colon + 1), value)));
+    }
+
+    private static int parsePort(final String port, final String value)
+    {
+        try {
+            return Integer.parseInt(port);
+        }
+        catch (final NumberFormatException ex) {
+            throw new ConfigException(String.format("Invalid port number in host '%s'", value), ex);
+        }
+    }
+
+    /**
+     * Returns the servers of {@code hosts}, or the server of {@code host}.
+     */
+    public static List<FtpHost> of(final FtpFileInputPlugin.PluginTask task)
+    {
+        if (task.getHosts().isEmpty()) {
+            if (!task.getHost().isPresent()) {
+                throw new ConfigException("Either 'host' or 'hosts' must be set");
+            }
+            return Collections.singletonList(new FtpHost(task.getHost().get(), Optional.<Integer>empty()));
+        }
+        if (task.getHost().isPresent()) {
+            throw new ConfigException("'host' and 'hosts' can't be set at the same time");
+        }
+        final List<FtpHost> hosts = new ArrayList<>();
+        for (final String host : task.getHosts()) {
+            hosts.add(parse(host));
+        }
+        return Collections.unmodifiableList(hosts);
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public Optional<Integer> getPort()
+    {
+        return port;
+    }
+
+    @Override
+    public boolean equals(final Object other)
+    {
+        if (!(other instanceof FtpHost)) {
+            return false;
+        }
+        final FtpHost o = (FtpHost) other;
+        return host.equals(o.host) && port.equals(o.port);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(host, port);
+    }
+
+    @Override
+    public String toString()
+    {
+        if (!port.isPresent()) {
+            return host;
+        }
+        return (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port.get();
+    }
+}
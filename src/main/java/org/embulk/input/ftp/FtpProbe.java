@@ -0,0 +1,484 @@
+package org.embulk.input.ftp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.sauronsoftware.ftp4j.FTPAbortedException;
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPDataTransferException;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+import it.sauronsoftware.ftp4j.FTPListParseException;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.util.config.Config;
+import org.embulk.util.config.ConfigDefault;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.embulk.util.ssl.SSLPlugins;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the limits of an FTP server before loading from it, and recommends settings of the
+ * plugin. Run it with the jars of Embulk and the plugin:
+ *
+ * <pre>
+ * java -cp 'embulk.jar:classpath/*' org.embulk.input.ftp.FtpProbe probe.json
+ * </pre>
+ *
+ * The JSON file has the options of the plugin, such as {@code host}, {@code user}, {@code password},
+ * {@code path_prefix} and {@code ssl}, and the options of {@link ProbeTask}. Files under
+ * {@code path_prefix} are only read.
+ */
+public class FtpProbe
+{
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    private static final Logger log = LoggerFactory.getLogger(FtpProbe.class);
+
+    public interface ProbeTask
+            extends FtpFileInputPlugin.PluginTask
+    {
+        // stops opening sessions at this number
+        @Config("probe_max_sessions")
+        @ConfigDefault("16")
+        int getProbeMaxSessions();
+
+        @Config("probe_streams")
+        @ConfigDefault("4")
+        int getProbeStreams();
+
+        // the number of the smallest files to measure the latency of a download with
+        @Config("probe_files")
+        @ConfigDefault("5")
+        int getProbeFiles();
+
+        // the number of bytes each stream downloads to measure throughput
+        @Config("probe_bytes")
+        @ConfigDefault("67108864")
+        long getProbeBytes();
+    }
+
+    /**
+     * What the probe found. Throughputs are in bytes per second, and a negative value is not measured.
+     */
+    static class Result
+    {
+        boolean mlsd;
+        boolean rest;
+        boolean modeZ;
+        boolean ssl;
+        boolean sslSessionReuse;
+        long resumedHandshakes = -1L;
+        String listRecursive = "not probed";
+        long loginMillis = -1L;
+        long roundTripMillis = -1L;
+        int listedFiles;
+        double listingFilesPerSecond = -1;
+        long setupMillis = -1L;
+        int maxSessions;
+        boolean sessionLimitReached;
+        double singleStreamBytesPerSecond = -1;
+        int streams;
+        double multiStreamBytesPerSecond = -1;
+        int requestedWindow;
+
+        void print(final PrintStream out)
+        {
+            out.println("Capabilities:");
+            out.println("  MLSD:                " + yesNo(mlsd) + (mlsd ? "" : " (modification times may have only minute precision)"));
+            out.println("  REST STREAM:         " + yesNo(rest));
+            out.println("  MODE Z:              " + yesNo(modeZ));
+            if (ssl) {
+                out.println("  TLS resumption:      " + (!sslSessionReuse ? "disabled by ssl_session_reuse" : resumedHandshakes > 0 ? "yes" : "no"));
+            }
+            out.println("  LIST -R:             " + listRecursive);
+            out.println("  concurrent sessions: " + (sessionLimitReached ? maxSessions : "at least " + maxSessions));
+            out.println("Measurements:");
+            out.println("  connect and login:   " + millis(loginMillis));
+            out.println("  round trip:          " + millis(roundTripMillis));
+            out.println(String.format("  listing:             %d files at %s", listedFiles,
+                    listingFilesPerSecond < 0 ? "-" : String.format("%.1f files/s", listingFilesPerSecond)));
+            out.println("  download setup:      " + millis(setupMillis) + " until the first byte");
+            out.println("  1 stream:            " + rate(singleStreamBytesPerSecond));
+            out.println(String.format("  %-21s%s", streams + " streams:", rate(multiStreamBytesPerSecond)));
+            out.println("Recommendations:");
+            for (final String line : recommend()) {
+                out.println("  " + line);
+            }
+        }
+
+        List<String> recommend()
+        {
+            final List<String> lines = new ArrayList<>();
+            // one session is left for header lines of splits and reconnections
+            final int sessions = sessionLimitReached ? Math.max(1, maxSessions - 1) : maxSessions;
+            if (singleStreamBytesPerSecond > 0 && multiStreamBytesPerSecond > 0 && streams > 1) {
+                final double speedup = multiStreamBytesPerSecond / singleStreamBytesPerSecond;
+                if (speedup >= 0.8 * streams && !sessionLimitReached) {
+                    lines.add(String.format("exec.max_threads: %d or more. Throughput grew %.1f times with %d streams", streams, speedup, streams));
+                }
+                else {
+                    final int threads = Math.max(1, Math.min(sessions, (int) Math.ceil(speedup)));
+                    lines.add(String.format("exec.max_threads: %d. Throughput grew %.1f times with %d streams", threads, speedup, streams));
+                }
+            }
+            else if (sessionLimitReached) {
+                lines.add(String.format("exec.max_threads: at most %d, under the limit of sessions", sessions));
+            }
+            if (sessionLimitReached && sessions < 4) {
+                lines.add(String.format("max_listing_connections: %d", sessions));
+            }
+            if (roundTripMillis > 0 && singleStreamBytesPerSecond > 0 && requestedWindow > 0) {
+                // a stream limited by the receive window moves about a window in a round trip
+                final double windowLimit = requestedWindow * 1000.0 / roundTripMillis;
+                if (singleStreamBytesPerSecond >= 0.8 * windowLimit) {
+                    lines.add(String.format("socket_receive_buffer: auto. A stream reached %s, the limit of a %,d-byte window over %d ms",
+                            rate(singleStreamBytesPerSecond), requestedWindow, roundTripMillis));
+                }
+            }
+            if (loginMillis > 0 && setupMillis >= 0 && loginMillis > 2 * setupMillis) {
+                lines.add(String.format("connection_idle_timeout: keep it above 0. Logging in takes %d ms and starting a download %d ms",
+                        loginMillis, setupMillis));
+            }
+            if (!rest) {
+                lines.add("The server doesn't announce REST STREAM. Failed downloads restart from the beginning, "
+                        + "and split_size, incremental_mode: tail and spool_directory don't work");
+            }
+            if (!mlsd) {
+                lines.add("incremental_mode: path or checksum rather than modified_time, as modification times may lack seconds");
+            }
+            if (ssl && sslSessionReuse && resumedHandshakes == 0) {
+                lines.add("ssl_session_reuse: false if downloads fail. The server didn't resume TLS sessions");
+            }
+            if (lines.isEmpty()) {
+                lines.add("The defaults suit this server");
+            }
+            return lines;
+        }
+
+        private static String yesNo(final boolean value)
+        {
+            return value ? "yes" : "no";
+        }
+
+        private static String millis(final long value)
+        {
+            return value < 0 ? "-" : value + " ms";
+        }
+
+        static String rate(final double bytesPerSecond)
+        {
+            if (bytesPerSecond < 0) {
+                return "-";
+            }
+            return String.format(Locale.ENGLISH, "%.1f MB/s (%.0f Mbps)", bytesPerSecond / 1e6, bytesPerSecond * 8 / 1e6);
+        }
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        if (args.length != 1) {
+            System.err.println("Usage: java org.embulk.input.ftp.FtpProbe <config.json>");
+            System.exit(2);
+        }
+        final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource();
+        final Iterator<Map.Entry<String, JsonNode>> fields = new ObjectMapper().readTree(new File(args[0])).fields();
+        while (fields.hasNext()) {
+            final Map.Entry<String, JsonNode> field = fields.next();
+            config.set(field.getKey(), field.getValue());
+        }
+        // every session is a new connection
+        config.set("connection_idle_timeout", 0);
+        final ProbeTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, ProbeTask.class);
+        task.setSSLConfig(SSLPlugins.configure(task));
+        if (!task.getPathPrefix().isPresent()) {
+            throw new ConfigException("FtpProbe needs 'path_prefix'");
+        }
+        probe(task).print(System.out);
+    }
+
+    static Result probe(final ProbeTask task) throws InterruptedException
+    {
+        final Result result = new Result();
+        result.ssl = task.getSsl();
+        result.sslSessionReuse = task.getSslSessionReuse();
+
+        final long loginStart = System.nanoTime();
+        final FTPClient client = FtpFileInputPlugin.newFTPClient(log, task);
+        final List<FileEntry> files;
+        try {
+            result.loginMillis = (System.nanoTime() - loginStart) / 1000000L;
+            if (client.getConnector() instanceof TunedConnector) {
+                final TunedConnector connector = (TunedConnector) client.getConnector();
+                result.roundTripMillis = connector.getRoundTripNanos() / 1000000L;
+                result.requestedWindow = connector.getRequestedWindow();
+            }
+            probeFeatures(client, result);
+            result.listRecursive = probeListRecursive(client, task.getPathPrefix().get());
+
+            final long listingStart = System.nanoTime();
+            files = FileLister.builder(log, client)
+                    .withPathMatchPattern(new PathMatchPattern(Pattern.compile(task.getPathMatchPattern())))
+                    .withFollowSymlinks(task.getFollowSymlinks())
+                    .build()
+                    .listByPrefix(task.getPathPrefix().get());
+            result.listedFiles = files.size();
+            result.listingFilesPerSecond = files.size() * 1e9 / Math.max(1L, System.nanoTime() - listingStart);
+
+            result.setupMillis = probeSetup(client, files, task.getProbeFiles());
+            result.maxSessions = 1 + probeSessions(task, task.getProbeMaxSessions() - 1);
+            result.sessionLimitReached = result.maxSessions < task.getProbeMaxSessions();
+            if (client.getSSLSocketFactory() instanceof TlsSocketFactory
+                    && ((TlsSocketFactory) client.getSSLSocketFactory()).getDelegate() instanceof SessionResumingSSLSocketFactory) {
+                final SessionResumingSSLSocketFactory factory =
+                        (SessionResumingSSLSocketFactory) ((TlsSocketFactory) client.getSSLSocketFactory()).getDelegate();
+                result.resumedHandshakes = factory.getResumedHandshakes();
+            }
+        }
+        finally {
+            FtpFileInputPlugin.disconnectClient(client);
+        }
+
+        final FileEntry largest = largest(files);
+        if (largest != null) {
+            result.singleStreamBytesPerSecond = probeThroughput(task, largest.getPath(), 1);
+            result.streams = Math.max(1, Math.min(task.getProbeStreams(), result.maxSessions));
+            if (result.streams > 1) {
+                result.multiStreamBytesPerSecond = probeThroughput(task, largest.getPath(), result.streams);
+            }
+        }
+        return result;
+    }
+
+    private static void probeFeatures(final FTPClient client, final Result result)
+    {
+        try {
+            for (final String line : client.sendCustomCommand("FEAT").getMessages()) {
+                final String feature = line.trim().toUpperCase(Locale.ENGLISH);
+                if (feature.equals("MLSD") || feature.startsWith("MLST")) {
+                    result.mlsd = true;
+                }
+                if (feature.startsWith("REST STREAM")) {
+                    result.rest = true;
+                }
+            }
+            result.modeZ = client.isCompressionSupported();
+        }
+        catch (final FTPIllegalReplyException | IOException ex) {
+            log.warn("FEAT failed", ex);
+        }
+    }
+
+    // The plugin lists directories one by one, but LIST -R tells whether a faster way exists
+    private static String probeListRecursive(final FTPClient client, final String prefix)
+    {
+        final int slash = prefix.lastIndexOf('/');
+        final String directory = slash < 0 ? "." : prefix.substring(0, slash + 1);
+        final int policy = client.getMLSDPolicy();
+        client.setMLSDPolicy(FTPClient.MLSD_NEVER);
+        try {
+            final long start = System.nanoTime();
+            final int entries = client.list("-R " + directory).length;
+            return String.format("%d entries in %d ms", entries, (System.nanoTime() - start) / 1000000L);
+        }
+        catch (final FTPListParseException ex) {
+            return "yes, in a format ftp4j can't parse";
+        }
+        catch (final FTPException ex) {
+            return "no (" + ex.getCode() + " " + ex.getMessage() + ")";
+        }
+        catch (final FTPIllegalReplyException | FTPDataTransferException | FTPAbortedException | IOException ex) {
+            return "failed (" + ex + ")";
+        }
+        finally {
+            client.setMLSDPolicy(policy);
+        }
+    }
+
+    // Returns the median time until the first byte of the smallest files, which is mostly the round
+    // trips of TYPE, PASV, REST and RETR
+    private static long probeSetup(final FTPClient client, final List<FileEntry> files, final int count)
+    {
+        final List<FileEntry> sorted = new ArrayList<>(files);
+        Collections.sort(sorted, new Comparator<FileEntry>() {
+                @Override
+                public int compare(final FileEntry a, final FileEntry b)
+                {
+                    return Long.compare(a.getSize(), b.getSize());
+                }
+            });
+        final List<Long> latencies = new ArrayList<>();
+        for (final FileEntry file : sorted.subList(0, Math.min(count, sorted.size()))) {
+            final MeasuringOutputStream out = new MeasuringOutputStream(Long.MAX_VALUE);
+            final long start = System.nanoTime();
+            try {
+                client.download(file.getPath(), out, 0L, null);
+            }
+            catch (final FTPException | FTPIllegalReplyException | FTPDataTransferException | FTPAbortedException | IOException ex) {
+                log.warn("Downloading file '{}' failed", file.getPath(), ex);
+                continue;
+            }
+            final long end = out.getFirstByteNanos() > 0 ? out.getFirstByteNanos() : System.nanoTime();
+            latencies.add((end - start) / 1000000L);
+        }
+        if (latencies.isEmpty()) {
+            return -1L;
+        }
+        Collections.sort(latencies);
+        return latencies.get(latencies.size() / 2);
+    }
+
+    // Opens sessions until the server refuses one or the limit is reached, and returns the number of them
+    private static int probeSessions(final ProbeTask task, final int limit)
+    {
+        final List<FTPClient> sessions = new ArrayList<>();
+        try {
+            while (sessions.size() < limit) {
+                try {
+                    sessions.add(FtpFileInputPlugin.newFTPClient(log, task));
+                }
+                catch (final RuntimeException ex) {
+                    log.info("The server refused session {}: {}", sessions.size() + 2, ex.toString());
+                    break;
+                }
+            }
+            return sessions.size();
+        }
+        finally {
+            for (final FTPClient session : sessions) {
+                FtpFileInputPlugin.disconnectClient(session);
+            }
+        }
+    }
+
+    // Downloads up to probe_bytes of the file over each of the streams at once, and returns the total
+    // bytes per second
+    private static double probeThroughput(final ProbeTask task, final String path, final int streams) throws InterruptedException
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(streams);
+        try {
+            final List<Future<Long>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int i = 0; i < streams; i++) {
+                futures.add(executor.submit(new Callable<Long>() {
+                        @Override
+                        public Long call()
+                        {
+                            return downloadUpTo(task, path, task.getProbeBytes());
+                        }
+                    }));
+            }
+            long bytes = 0;
+            for (final Future<Long> future : futures) {
+                try {
+                    bytes += future.get();
+                }
+                catch (final ExecutionException ex) {
+                    log.warn("A stream failed", ex.getCause());
+                }
+            }
+            return bytes * 1e9 / Math.max(1L, System.nanoTime() - start);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // The connection is closed afterwards, as stopping a download in the middle leaves it unusable.
+    private static long downloadUpTo(final ProbeTask task, final String path, final long limit)
+    {
+        final FTPClient client = FtpFileInputPlugin.newFTPClient(log, task);
+        final MeasuringOutputStream out = new MeasuringOutputStream(limit);
+        try {
+            client.download(path, out, 0L, null);
+        }
+        catch (final FTPDataTransferException ex) {
+            if (!out.isLimitReached()) {
+                log.warn("Downloading file '{}' failed", path, ex);
+            }
+        }
+        catch (final FTPException | FTPIllegalReplyException | FTPAbortedException | IOException ex) {
+            log.warn("Downloading file '{}' failed", path, ex);
+        }
+        finally {
+            FtpFileInputPlugin.disconnectClient(client);
+        }
+        return out.getCount();
+    }
+
+    private static FileEntry largest(final List<FileEntry> files)
+    {
+        FileEntry largest = null;
+        for (final FileEntry file : files) {
+            if (largest == null || file.getSize() > largest.getSize()) {
+                largest = file;
+            }
+        }
+        return largest;
+    }
+
+    private static class MeasuringOutputStream
+            extends OutputStream
+    {
+        private final long limit;
+        private long count;
+        private long firstByteNanos;
+
+        MeasuringOutputStream(final long limit)
+        {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            if (firstByteNanos == 0L) {
+                firstByteNanos = System.nanoTime();
+            }
+            if (isLimitReached()) {
+                // makes ftp4j close the data connection
+                throw new IOException("Probe limit reached");
+            }
+            count += len;
+        }
+
+        long getCount()
+        {
+            return count;
+        }
+
+        long getFirstByteNanos()
+        {
+            return firstByteNanos;
+        }
+
+        boolean isLimitReached()
+        {
+            return count >= limit;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.embulk.input.ftp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Splits the bytes read from a control connection into replies.
+ *
+ * A multi-line reply starts with {@code "ddd-"} and ends with a line starting with the same code
+ * followed by a space.
+ */
+public class FtpReplyParser
+{
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private final List<String> lines = new ArrayList<>();
+    private final Deque<Reply> replies = new ArrayDeque<>();
+    private String code;
+
+    public void feed(final ByteBuffer bytes) throws IOException
+    {
+        while (bytes.hasRemaining()) {
+            final byte b = bytes.get();
+            if (b == '\n') {
+                endLine();
+            }
+            else if (b != '\r') {
+                if (line.size() >= MAX_LINE_LENGTH) {
+                    throw new IOException("Too long FTP reply line");
+                }
+                line.write(b);
+            }
+        }
+    }
+
+    /**
+     * Returns the next complete reply, or null.
+     */
+    public Reply poll()
+    {
+        return replies.pollFirst();
+    }
+
+    private void endLine() throws IOException
+    {
+        final String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        line.reset();
+        if (lines.isEmpty()) {
+            if (text.length() < 3 || !isCode(text.substring(0, 3)) || (text.length() > 3 && text.charAt(3) != ' ' && text.charAt(3) != '-')) {
+                throw new IOException("Illegal FTP reply: " + text);
+            }
+            code = text.substring(0, 3);
+            lines.add(text);
+            if (text.length() > 3 && text.charAt(3) == '-') {
+                return;  // multi-line reply
+            }
+        }
+        else {
+            lines.add(text);
+            if (!text.startsWith(code) || (text.length() > 3 && text.charAt(3) != ' ')) {
+                return;
+            }
+        }
+        replies.addLast(new Reply(Integer.parseInt(code), lines));
+        lines.clear();
+    }
+
+    private static boolean isCode(final String s)
+    {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static class Reply
+    {
+        private final int code;
+        private final List<String> lines;
+
+        Reply(final int code, final List<String> lines)
+        {
+            this.code = code;
+            this.lines = Collections.unmodifiableList(new ArrayList<>(lines));
+        }
+
+        public int getCode()
+        {
+            return code;
+        }
+
+        public List<String> getLines()
+        {
+            return lines;
+        }
+
+        public boolean isPreliminary()
+        {
+            return code >= 100 && code < 200;
+        }
+
+        public boolean isSuccess()
+        {
+            return code >= 200 && code < 300;
+        }
+
+        public boolean isIntermediate()
+        {
+            return code >= 300 && code < 400;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.join("\n", lines);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.embulk.input.ftp;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps logged-in connections left by finished tasks, so that the next task to the same server
+ * skips connecting, the TLS handshake, login and FEAT.
+ *
+ * Connections are shared by every task in the JVM, by a key which identifies the server, the user
+ * and the connection settings. An idle connection doesn't send NOOP, so that it doesn't keep a
+ * thread running, and is disconnected when it has been idle longer than its timeout, when the job
+ * that parked it ends, or when the JVM exits.
+ */
+public class IdleConnections
+{
+    private static final IdleConnections SHARED = new IdleConnections(new LongSupplier() {
+            @Override
+            public long getAsLong()
+            {
+                return System.nanoTime();
+            }
+        });
+
+    static {
+        // for tasks in a JVM without the transaction, which disconnects them in cleanup
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    SHARED.closeAll();
+                }
+            }, "embulk-input-ftp-idle-connections"));
+    }
+
+    private final Map<String, Deque<Idle>> idle = new HashMap<>();
+    private final LongSupplier nanoClock;
+
+    IdleConnections(final LongSupplier nanoClock)
+    {
+        this.nanoClock = nanoClock;
+    }
+
+    public static IdleConnections shared()
+    {
+        return SHARED;
+    }
+
+    /**
+     * Returns the most recently parked connection for {@code key}, or null.
+     */
+    public FTPClient take(final String key, final long autoNoopTimeoutMillis)
+    {
+        FTPClient taken = null;
+        final List<FTPClient> expired;
+        synchronized (this) {
+            expired = removeExpired();
+            final Deque<Idle> clients = idle.get(key);
+            while (taken == null && clients != null && !clients.isEmpty()) {
+                final Idle next = clients.pollFirst();
+                if (next.client.isConnected()) {
+                    taken = next.client;
+                }
+            }
+        }
+        disconnect(expired);
+        if (taken != null) {
+            taken.setAutoNoopTimeout(autoNoopTimeoutMillis);
+        }
+        return taken;
+    }
+
+    /**
+     * Keeps {@code client} for {@code idleTimeoutNanos}. The client must be logged in with no command
+     * in progress.
+     */
+    public void park(final String key, final FTPClient client, final long idleTimeoutNanos)
+    {
+        client.setAutoNoopTimeout(0);
+        final List<FTPClient> expired;
+        synchronized (this) {
+            expired = removeExpired();
+            Deque<Idle> clients = idle.get(key);
+            if (clients == null) {
+                clients = new ArrayDeque<>();
+                idle.put(key, clients);
+            }
+            clients.addFirst(new Idle(client, nanoClock.getAsLong() + idleTimeoutNanos));
+        }
+        disconnect(expired);
+    }
+
+    /**
+     * Disconnects the idle connections for {@code key}, so that the server doesn't keep their
+     * sessions until they expire.
+     */
+    public void close(final String key)
+    {
+        final List<FTPClient> closed = new ArrayList<>();
+        synchronized (this) {
+            final Deque<Idle> clients = idle.remove(key);
+            if (clients != null) {
+                for (final Idle next : clients) {
+                    closed.add(next.client);
+                }
+            }
+        }
+        disconnect(closed);
+    }
+
+    public void closeAll()
+    {
+        final List<FTPClient> closed = new ArrayList<>();
+        synchronized (this) {
+            for (final Deque<Idle> clients : idle.values()) {
+                for (final Idle next : clients) {
+                    closed.add(next.client);
+                }
+            }
+            idle.clear();
+        }
+        disconnect(closed);
+    }
+
+    synchronized int size()
+    {
+        int size = 0;
+        for (final Deque<Idle> clients : idle.values()) {
+            size += clients.size();
+        }
+        return size;
+    }
+
+    private List<FTPClient> removeExpired()
+    {
+        final long now = nanoClock.getAsLong();
+        final List<FTPClient> expired = new ArrayList<>();
+        final Iterator<Deque<Idle>> keys = idle.values().iterator();
+        while (keys.hasNext()) {
+            final Deque<Idle> clients = keys.next();
+            final Iterator<Idle> it = clients.iterator();
+            while (it.hasNext()) {
+                final Idle next = it.next();
+                if (now - next.expiresAt >= 0) {
+                    expired.add(next.client);
+                    it.remove();
+                }
+            }
+            if (clients.isEmpty()) {
+                keys.remove();
+            }
+        }
+        return expired;
+    }
+
+    // outside the lock, not to block other tasks while closing sockets
+    private static void disconnect(final List<FTPClient> clients)
+    {
+        for (final FTPClient client : clients) {
+            FtpFileInputPlugin.disconnectClient(client);
+        }
+    }
+
+    private static class Idle
+    {
+        private final FTPClient client;
+        private final long expiresAt;
+
+        Idle(final FTPClient client, final long expiresAt)
+        {
+            this.client = client;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.embulk.input.ftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads a byte range of a file, optionally aligned to line boundaries.
+ *
+ * {@link #ofTail} reads at most up to the end of the range and can drop an incomplete last line.
+ * Bytes after the last {@code '\n'} are then held back until another {@code '\n'} arrives, and
+ * discarded at the end of the range. {@link #getCommittedOffset()} points at the beginning of that
+ * incomplete line, so that the next run can read it again.
+ *
+ * {@link #ofSplit} reads the lines starting in the range. The line crossing the beginning of the
+ * range belongs to the previous range, and the line crossing the end is read to its end. Consecutive
+ * ranges of a file therefore read every line exactly once.
+ */
+public class LineRangeInputStream
+        extends InputStream
+{
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final long start;
+    private final long end;
+    private final boolean dropIncompleteLastLine;
+    private final boolean finishLastLine;
+    private boolean skipping;
+    private boolean finished;
+    private long position;  // offset of the next byte read from the upstream
+
+    private byte[] buffer = new byte[READ_SIZE];
+    private int readPosition;  // next byte to return
+    private int readyLimit;    // bytes before this position can be returned
+    private int filled;        // bytes before this position are read from the upstream
+    private long emitted;
+
+    private LineRangeInputStream(final InputStream in, final long start, final long end,
+            final boolean dropIncompleteLastLine, final boolean alignToLines)
+    {
+        this.in = in;
+        this.start = start;
+        this.end = end < 0 ? Long.MAX_VALUE : end;
+        this.dropIncompleteLastLine = dropIncompleteLastLine;
+        this.finishLastLine = alignToLines;
+        this.skipping = alignToLines && start > 0;
+        this.position = downloadStart(start, alignToLines);
+    }
+
+    /**
+     * Reads {@code [start, end)} of a stream beginning at {@code start}.
+     */
+    public static LineRangeInputStream ofTail(final InputStream in, final long start, final long end, final boolean dropIncompleteLastLine)
+    {
+        return new LineRangeInputStream(in, start, end, dropIncompleteLastLine, false);
+    }
+
+    /**
+     * Reads lines starting in {@code [start, end)} of a stream beginning at {@link #splitDownloadStart(long)}.
+     */
+    public static LineRangeInputStream ofSplit(final InputStream in, final long start, final long end)
+    {
+        return new LineRangeInputStream(in, start, end, false, true);
+    }
+
+    /**
+     * Returns the offset to download a split from. It is one byte before the split to see whether
+     * the split begins at the beginning of a line.
+     */
+    public static long splitDownloadStart(final long start)
+    {
+        return downloadStart(start, true);
+    }
+
+    private static long downloadStart(final long start, final boolean alignToLines)
+    {
+        return alignToLines && start > 0 ? start - 1 : start;
+    }
+
+    /**
+     * Returns the offset in the file right after the last byte returned by a stream of {@link #ofTail}.
+     */
+    public long getCommittedOffset()
+    {
+        return start + emitted;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        final byte[] b = new byte[1];
+        final int n = read(b, 0, 1);
+        return n < 0 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (readPosition == readyLimit && !fill()) {
+            return -1;
+        }
+        final int n = Math.min(len, readyLimit - readPosition);
+        System.arraycopy(buffer, readPosition, b, off, n);
+        readPosition += n;
+        emitted += n;
+        return n;
+    }
+
+    private boolean fill() throws IOException
+    {
+        while (readPosition == readyLimit) {
+            if (finished) {
+                return false;
+            }
+
+            // move the held back incomplete line to the head of the buffer
+            final int carry = filled - readyLimit;
+            System.arraycopy(buffer, readyLimit, buffer, 0, carry);
+            readPosition = 0;
+            readyLimit = 0;
+            filled = carry;
+
+            if (buffer.length - filled < READ_SIZE) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, filled + READ_SIZE));
+            }
+            int max = buffer.length - filled;
+            if (!finishLastLine) {
+                if (position >= end) {
+                    finished = true;
+                    continue;
+                }
+                max = (int) Math.min(max, end - position);
+            }
+
+            final int n = in.read(buffer, filled, max);
+            if (n < 0) {
+                finished = true;
+                if (!dropIncompleteLastLine && !skipping) {
+                    readyLimit = filled;
+                }
+                continue;
+            }
+            int scanFrom = filled;
+            filled += n;
+            position += n;
+
+            if (skipping) {
+                // drop the line which began before the split
+                final int newline = indexOfNewline(scanFrom, filled);
+                if (newline < 0) {
+                    filled = 0;
+                    continue;
+                }
+                System.arraycopy(buffer, newline + 1, buffer, 0, filled - newline - 1);
+                filled -= newline + 1;
+                skipping = false;
+                scanFrom = 0;
+                if (position - filled >= end) {
+                    // no line begins in this split
+                    finished = true;
+                    filled = 0;
+                    continue;
+                }
+            }
+
+            if (finishLastLine) {
+                readyLimit = filled;
+                for (int i = scanFrom; i < filled; i++) {
+                    if (buffer[i] == '\n' && position - (filled - i) + 1 >= end) {
+                        // the next line begins in the next split
+                        readyLimit = i + 1;
+                        filled = i + 1;
+                        finished = true;
+                        break;
+                    }
+                }
+            }
+            else if (!dropIncompleteLastLine) {
+                readyLimit = filled;
+            }
+            else {
+                for (int i = filled - 1; i >= scanFrom; i--) {
+                    if (buffer[i] == '\n') {
+                        readyLimit = i + 1;
+                        break;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private int indexOfNewline(final int from, final int to)
+    {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        in.close();
+    }
+}
@@ -0,0 +1,114 @@
+package org.embulk.input.ftp;
+
+import it.sauronsoftware.ftp4j.FTPFile;
+
+import org.embulk.config.ConfigException;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.Optional;
+
+/**
+ * Filters listed files by size and modification time before they become tasks.
+ *
+ * Sizes or modification times that the server didn't report are never used to skip a file, so
+ * {@code skip_modified_within_seconds} doesn't skip files being uploaded to a server not reporting
+ * modification times.
+ */
+public class ListingFilter
+{
+    public static final ListingFilter ACCEPT_ALL = new ListingFilter(
+            Optional.<Long>empty(), Optional.<Long>empty(), Optional.<Instant>empty(), Optional.<Instant>empty());
+
+    private final Optional<Long> minSize;
+    private final Optional<Long> maxSize;
+    private final Optional<Instant> modifiedAfter;
+    private final Optional<Instant> modifiedBefore;
+    private final Optional<Instant> settledBefore;  // of skip_modified_within_seconds
+
+    public ListingFilter(final Optional<Long> minSize, final Optional<Long> maxSize,
+            final Optional<Instant> modifiedAfter, final Optional<Instant> modifiedBefore)
+    {
+        this(minSize, maxSize, modifiedAfter, modifiedBefore, Optional.<Instant>empty());
+    }
+
+    ListingFilter(final Optional<Long> minSize, final Optional<Long> maxSize,
+            final Optional<Instant> modifiedAfter, final Optional<Instant> modifiedBefore, final Optional<Instant> settledBefore)
+    {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.modifiedAfter = modifiedAfter;
+        this.modifiedBefore = modifiedBefore;
+        this.settledBefore = settledBefore;
+    }
+
+    public static ListingFilter of(final FtpFileInputPlugin.PluginTask task, final Instant now)
+    {
+        final Optional<Instant> settledBefore = task.getSkipModifiedWithinSeconds().isPresent()
+                ? Optional.of(now.minusSeconds(task.getSkipModifiedWithinSeconds().get()))
+                : Optional.<Instant>empty();
+        return new ListingFilter(task.getMinSize(), task.getMaxSize(),
+                parseTime("modified_after", task.getModifiedAfter()), parseTime("modified_before", task.getModifiedBefore()), settledBefore);
+    }
+
+    /**
+     * Returns true if the file is skipped by {@code skip_modified_within_seconds}, so that it may be
+     * accepted by a later run.
+     */
+    public boolean isRecent(final FileEntry entry)
+    {
+        return settledBefore.isPresent() && entry.getModifiedTime() != FileEntry.UNKNOWN
+                && !Instant.ofEpochMilli(entry.getModifiedTime()).isBefore(settledBefore.get());
+    }
+
+    public boolean accept(final FTPFile file)
+    {
+        return accept(file.getSize(), file.getModifiedDate());
+    }
+
+    public boolean accept(final FileEntry entry)
+    {
+        return accept(entry.getSize(), entry.getModifiedTime() == FileEntry.UNKNOWN ? null : new Date(entry.getModifiedTime()));
+    }
+
+    public boolean accept(final long size, final Date modifiedDate)
+    {
+        if (size >= 0) {
+            if (minSize.isPresent() && size < minSize.get()) {
+                return false;
+            }
+            if (maxSize.isPresent() && size > maxSize.get()) {
+                return false;
+            }
+        }
+        if (modifiedDate != null) {
+            final Instant modified = modifiedDate.toInstant();
+            if (modifiedAfter.isPresent() && !modified.isAfter(modifiedAfter.get())) {
+                return false;
+            }
+            if (modifiedBefore.isPresent() && !modified.isBefore(modifiedBefore.get())) {
+                return false;
+            }
+            if (settledBefore.isPresent() && !modified.isBefore(settledBefore.get())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static Optional<Instant> parseTime(final String name, final Optional<String> value)
+    {
+        if (!value.isPresent()) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(OffsetDateTime.parse(value.get()).toInstant());
+        }
+        catch (final DateTimeParseException ex) {
+            throw new ConfigException(String.format("'%s' must be an ISO-8601 timestamp like '2019-01-01T00:00:00Z': '%s'",
+                    name, value.get()), ex);
+        }
+    }
+}
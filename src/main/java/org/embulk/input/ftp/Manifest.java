@@ -0,0 +1,252 @@
+package org.embulk.input.ftp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+
+import org.embulk.spi.DataException;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the files to load from a manifest written by the producer of the files, instead of listing
+ * directories.
+ *
+ * A CSV manifest begins with a header line. The {@code path} column is required, and the optional
+ * {@code size} and {@code modified_time} columns are used like the sizes and the modification times
+ * in a listing. Other columns, such as checksums, are ignored. A JSON lines manifest has an object
+ * with the same keys on each line. {@code modified_time} is an ISO-8601 timestamp.
+ *
+ * Relative paths are relative to the directory of the manifest. A gzip-compressed manifest is
+ * detected by its magic number. If a path appears more than once, the last one is used.
+ */
+public class Manifest
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private Manifest()
+    {
+    }
+
+    public static List<FileEntry> read(final InputStream in, final String manifestPath, final ManifestFormat format)
+        throws IOException
+    {
+        final String directory = manifestPath.substring(0, manifestPath.lastIndexOf('/') + 1);
+        final Map<String, FileEntry> entries = new LinkedHashMap<>();
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(decompress(in), StandardCharsets.UTF_8))) {
+            List<String> header = null;
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                final FileEntry entry;
+                if (format == ManifestFormat.CSV) {
+                    if (header == null) {
+                        header = parseCsvLine(line);
+                        if (!header.contains("path")) {
+                            throw new DataException(String.format("Manifest '%s' must have a 'path' column in its header line", manifestPath));
+                        }
+                        continue;
+                    }
+                    entry = parseCsvEntry(header, parseCsvLine(line), manifestPath, lineNumber);
+                }
+                else {
+                    entry = parseJsonEntry(line, manifestPath, lineNumber);
+                }
+                final String path = entry.getPath().startsWith("/") ? entry.getPath() : directory + entry.getPath();
+                entries.remove(path);
+                entries.put(path, new FileEntry(path, entry.getSize(), entry.getModifiedTime()));
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<>(entries.values()));
+    }
+
+    private static InputStream decompress(final InputStream in) throws IOException
+    {
+        final BufferedInputStream buffered = new BufferedInputStream(in);
+        buffered.mark(2);
+        final int b1 = buffered.read();
+        final int b2 = buffered.read();
+        buffered.reset();
+        if (b1 == 0x1f && b2 == 0x8b) {
+            return new GZIPInputStream(buffered);
+        }
+        return buffered;
+    }
+
+    private static FileEntry parseCsvEntry(final List<String> header, final List<String> values,
+            final String manifestPath, final int lineNumber)
+    {
+        String path = null;
+        String size = null;
+        String modifiedTime = null;
+        for (int i = 0; i < header.size() && i < values.size(); i++) {
+            switch (header.get(i)) {
+            case "path":
+                path = values.get(i);
+                break;
+            case "size":
+                size = values.get(i);
+                break;
+            case "modified_time":
+                modifiedTime = values.get(i);
+                break;
+            default:
+                // ignored
+            }
+        }
+        if (path == null || path.isEmpty()) {
+            throw new DataException(String.format("Line %d of manifest '%s' has no path", lineNumber, manifestPath));
+        }
+        return new FileEntry(path, parseSize(size, manifestPath, lineNumber), parseModifiedTime(modifiedTime, manifestPath, lineNumber));
+    }
+
+    private static FileEntry parseJsonEntry(final String line, final String manifestPath, final int lineNumber)
+        throws IOException
+    {
+        final JsonNode node = MAPPER.readTree(line);
+        if (node == null || !node.isObject()) {
+            throw new DataException(String.format("Line %d of manifest '%s' is not a JSON object", lineNumber, manifestPath));
+        }
+        final JsonNode path = node.get("path");
+        if (path == null || !path.isTextual() || path.asText().isEmpty()) {
+            throw new DataException(String.format("Line %d of manifest '%s' has no path", lineNumber, manifestPath));
+        }
+        return new FileEntry(path.asText(),
+                parseSize(textOf(node.get("size")), manifestPath, lineNumber),
+                parseModifiedTime(textOf(node.get("modified_time")), manifestPath, lineNumber));
+    }
+
+    private static String textOf(final JsonNode node)
+    {
+        return node == null || node.isNull() ? null : node.asText();
+    }
+
+    private static long parseSize(final String value, final String manifestPath, final int lineNumber)
+    {
+        if (value == null || value.isEmpty()) {
+            return FileEntry.UNKNOWN;
+        }
+        try {
+            return Long.parseLong(value);
+        }
+        catch (final NumberFormatException ex) {
+            throw new DataException(String.format("Invalid size '%s' at line %d of manifest '%s'", value, lineNumber, manifestPath), ex);
+        }
+    }
+
+    private static long parseModifiedTime(final String value, final String manifestPath, final int lineNumber)
+    {
+        if (value == null || value.isEmpty()) {
+            return FileEntry.UNKNOWN;
+        }
+        try {
+            return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+        }
+        catch (final DateTimeParseException ex) {
+            throw new DataException(String.format("Invalid modified_time '%s' at line %d of manifest '%s'", value, lineNumber, manifestPath), ex);
+        }
+    }
+
+    // Splits a line of RFC 4180 CSV. Quoted fields can contain commas and "" but not line breaks.
+    static List<String> parseCsvLine(final String line)
+    {
+        final List<String> values = new ArrayList<>();
+        final StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        value.append('"');
+                        i++;
+                    }
+                    else {
+                        quoted = false;
+                    }
+                }
+                else {
+                    value.append(c);
+                }
+            }
+            else if (c == '"') {
+                quoted = true;
+            }
+            else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            }
+            else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    /**
+     * Checks the sizes and the modification times of randomly chosen entries with {@code SIZE} and
+     * {@code MDTM}, so that a stale or broken manifest fails the job before loading.
+     */
+    public static void verify(final Logger log, final FTPClient client, final List<FileEntry> entries,
+            final int samples, final Random random)
+    {
+        final List<FileEntry> shuffled = new ArrayList<>(entries);
+        Collections.shuffle(shuffled, random);
+        for (final FileEntry entry : shuffled.subList(0, Math.min(samples, shuffled.size()))) {
+            try {
+                if (entry.getSize() != FileEntry.UNKNOWN) {
+                    final long size = client.fileSize(entry.getPath());
+                    if (size != entry.getSize()) {
+                        throw new DataException(String.format("Size of file '%s' is %d but the manifest says %d",
+                                entry.getPath(), size, entry.getSize()));
+                    }
+                }
+                if (entry.getModifiedTime() != FileEntry.UNKNOWN) {
+                    // MDTM has a precision of seconds
+                    final long modifiedTime = client.modifiedDate(entry.getPath()).getTime();
+                    if (modifiedTime / 1000 != entry.getModifiedTime() / 1000) {
+                        throw new DataException(String.format("Modification time of file '%s' is %d but the manifest says %d",
+                                entry.getPath(), modifiedTime, entry.getModifiedTime()));
+                    }
+                }
+            }
+            catch (final FTPException ex) {
+                log.info("FTP command failed: " + ex.getCode() + " " + ex.getMessage());
+                throw new DataException(String.format("File '%s' in the manifest can't be checked", entry.getPath()), ex);
+            }
+            catch (final FTPIllegalReplyException ex) {
+                log.info("FTP protocol error");
+                throw new RuntimeException(ex);
+            }
+            catch (final IOException ex) {
+                log.info("FTP network error: " + ex);
+                throw new UncheckedIOException(ex);
+            }
+        }
+        log.info("Checked {} files in the manifest", Math.min(samples, shuffled.size()));
+    }
+}
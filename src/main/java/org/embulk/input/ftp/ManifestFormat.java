@@ -0,0 +1,64 @@
+package org.embulk.input.ftp;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import org.embulk.config.ConfigException;
+
+import java.util.Locale;
+
+/**
+ * The format of a manifest given by {@code manifest_path}.
+ */
+public enum ManifestFormat
+{
+    /** CSV with a header line naming the columns. */
+    CSV("csv"),
+
+    /** One JSON object per line. */
+    JSONL("jsonl");
+
+    private final String name;
+
+    ManifestFormat(final String name)
+    {
+        this.name = name;
+    }
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+    @JsonCreator
+    public static ManifestFormat fromString(final String value)
+    {
+        for (final ManifestFormat format : values()) {
+            if (format.name.equals(value)) {
+                return format;
+            }
+        }
+        throw new ConfigException(String.format("Unknown manifest_format '%s'. Supported values are 'csv' and 'jsonl'", value));
+    }
+
+    /**
+     * Guesses the format from the file extension of the manifest, ignoring {@code .gz}.
+     */
+    public static ManifestFormat detect(final String manifestPath)
+    {
+        String name = manifestPath.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".gz")) {
+            name = name.substring(0, name.length() - ".gz".length());
+        }
+        if (name.endsWith(".csv")) {
+            return CSV;
+        }
+        if (name.endsWith(".jsonl") || name.endsWith(".ndjson") || name.endsWith(".json")) {
+            return JSONL;
+        }
+        throw new ConfigException(String.format(
+                "Can't guess the format of manifest '%s' from its file extension. Set 'manifest_format' to 'csv' or 'jsonl'", manifestPath));
+    }
+}
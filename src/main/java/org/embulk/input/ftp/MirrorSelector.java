@@ -0,0 +1,264 @@
+package org.embulk.input.ftp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Chooses a mirror in {@code hosts} for each download.
+ *
+ * The state of the servers is shared by every task in the JVM. A download goes to the server with
+ * the least connections per throughput measured so far. A server that failed is not chosen until
+ * its backoff expires, and the backoff doubles while it keeps failing.
+ */
+public class MirrorSelector
+{
+    private static final Map<FtpHost, HostState> SHARED_STATES = new HashMap<>();
+
+    static final long INITIAL_BACKOFF_NANOS = 30L * 1000 * 1000 * 1000;
+    static final long MAX_BACKOFF_NANOS = 10L * 60 * 1000 * 1000 * 1000;
+    private static final double THROUGHPUT_WEIGHT = 0.3;
+
+    private final List<FtpHost> hosts;
+    private final Map<FtpHost, HostState> states;
+    private final LongSupplier nanoClock;
+
+    MirrorSelector(final List<FtpHost> hosts, final Map<FtpHost, HostState> states, final LongSupplier nanoClock)
+    {
+        this.hosts = hosts;
+        this.states = states;
+        this.nanoClock = nanoClock;
+        synchronized (states) {
+            for (final FtpHost host : hosts) {
+                if (!states.containsKey(host)) {
+                    states.put(host, new HostState());
+                }
+            }
+        }
+    }
+
+    public static MirrorSelector of(final List<FtpHost> hosts)
+    {
+        return new MirrorSelector(hosts, SHARED_STATES, new LongSupplier() {
+                @Override
+                public long getAsLong()
+                {
+                    return System.nanoTime();
+                }
+            });
+    }
+
+    public boolean hasMirrors()
+    {
+        return hosts.size() > 1;
+    }
+
+    /**
+     * Returns the servers in the order to try, available ones first.
+     */
+    public List<FtpHost> ordered()
+    {
+        synchronized (states) {
+            final long now = nanoClock.getAsLong();
+            final List<FtpHost> available = new ArrayList<>();
+            final List<FtpHost> failing = new ArrayList<>();
+            for (final FtpHost host : hosts) {
+                (states.get(host).isAvailable(now) ? available : failing).add(host);
+            }
+            available.addAll(failing);
+            return Collections.unmodifiableList(available);
+        }
+    }
+
+    /**
+     * Starts a download on the best server except {@code excluded}. If every other server is
+     * backing off, the one recovering first is chosen.
+     */
+    public Lease acquire(final Set<FtpHost> excluded)
+    {
+        synchronized (states) {
+            final long now = nanoClock.getAsLong();
+            final double defaultThroughput = averageThroughput();
+            FtpHost best = null;
+            double bestScore = Double.MAX_VALUE;
+            FtpHost recovering = null;
+            for (final FtpHost host : hosts) {
+                if (excluded.contains(host) && excluded.size() < hosts.size()) {
+                    continue;
+                }
+                final HostState state = states.get(host);
+                if (!state.isAvailable(now)) {
+                    if (recovering == null || state.failedUntil < states.get(recovering).failedUntil) {
+                        recovering = host;
+                    }
+                    continue;
+                }
+                final double throughput = state.throughput > 0 ? state.throughput : defaultThroughput;
+                final double score = (state.active + 1) / throughput;
+                if (score < bestScore) {
+                    best = host;
+                    bestScore = score;
+                }
+            }
+            final FtpHost chosen = best != null ? best : recovering;
+            states.get(chosen).active++;
+            return new Lease(chosen);
+        }
+    }
+
+    // The throughput assumed for a server not measured yet, so that it gets downloads too.
+    private double averageThroughput()
+    {
+        double sum = 0.0;
+        int count = 0;
+        for (final FtpHost host : hosts) {
+            final HostState state = states.get(host);
+            if (state.throughput > 0) {
+                sum += state.throughput;
+                count++;
+            }
+        }
+        return count == 0 ? 1.0 : sum / count;
+    }
+
+    /**
+     * Records that connecting to the server failed, before a lease is taken.
+     */
+    public void failed(final FtpHost host)
+    {
+        synchronized (states) {
+            states.get(host).fail(nanoClock.getAsLong());
+        }
+    }
+
+    static class HostState
+    {
+        int active;
+        double throughput;  // bytes per second
+        long backoffNanos;
+        long failedUntil;
+        boolean failing;
+
+        boolean isAvailable(final long now)
+        {
+            return !failing || now - failedUntil >= 0;
+        }
+
+        void fail(final long now)
+        {
+            backoffNanos = backoffNanos == 0 ? INITIAL_BACKOFF_NANOS : Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+            failedUntil = now + backoffNanos;
+            failing = true;
+        }
+
+        void succeed(final long bytes, final long elapsedNanos)
+        {
+            backoffNanos = 0;
+            failing = false;
+            if (bytes > 0 && elapsedNanos > 0) {
+                final double rate = bytes * 1e9 / elapsedNanos;
+                throughput = throughput > 0 ? (1 - THROUGHPUT_WEIGHT) * throughput + THROUGHPUT_WEIGHT * rate : rate;
+            }
+        }
+    }
+
+    /**
+     * A download on a server. Closing the lease records the throughput of the download.
+     *
+     * The throughput is of the time spent in reading the stream, not of the time the reader spends
+     * in processing the bytes. It is counted in the lease and added to the state of the server once
+     * on close, without locking the shared states for each read.
+     */
+    public class Lease
+            implements AutoCloseable
+    {
+        private final FtpHost host;
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder transferNanos = new LongAdder();
+        private boolean failed;
+        private boolean closed;
+
+        private Lease(final FtpHost host)
+        {
+            this.host = host;
+        }
+
+        public FtpHost getHost()
+        {
+            return host;
+        }
+
+        /**
+         * Counts the bytes read from the stream as bytes downloaded from this server.
+         */
+        public InputStream count(final InputStream in)
+        {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException
+                {
+                    final long startedAt = nanoClock.getAsLong();
+                    final int b = super.read();
+                    if (b >= 0) {
+                        transferred(1, nanoClock.getAsLong() - startedAt);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException
+                {
+                    final long startedAt = nanoClock.getAsLong();
+                    final int n = super.read(b, off, len);
+                    if (n > 0) {
+                        transferred(n, nanoClock.getAsLong() - startedAt);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        void transferred(final long n, final long elapsedNanos)
+        {
+            bytes.add(n);
+            transferNanos.add(elapsedNanos);
+        }
+
+        /**
+         * Takes the server out of rotation until its backoff expires.
+         */
+        public void fail()
+        {
+            synchronized (states) {
+                failed = true;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            synchronized (states) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                final HostState state = states.get(host);
+                state.active--;
+                if (failed) {
+                    state.fail(nanoClock.getAsLong());
+                }
+                else {
+                    state.succeed(bytes.sum(), transferNanos.sum());
+                }
+            }
+        }
+    }
+}
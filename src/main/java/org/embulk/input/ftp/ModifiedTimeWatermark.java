@@ -0,0 +1,78 @@
+package org.embulk.input.ftp;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The newest (modification time, path) pair loaded so far in {@code incremental_mode: modified_time}.
+ *
+ * A file is loaded again when its modification time is newer than the watermark. The path breaks
+ * ties between files sharing the watermark's modification time.
+ */
+public class ModifiedTimeWatermark
+{
+    private final long modifiedTime;
+    private final String path;
+
+    public ModifiedTimeWatermark(final long modifiedTime, final String path)
+    {
+        this.modifiedTime = modifiedTime;
+        this.path = path;
+    }
+
+    public static Optional<ModifiedTimeWatermark> of(final Optional<String> lastModified, final Optional<String> lastModifiedPath)
+    {
+        final Optional<Instant> time = ListingFilter.parseTime("last_modified", lastModified);
+        if (!time.isPresent()) {
+            return Optional.empty();
+        }
+        return Optional.of(new ModifiedTimeWatermark(time.get().toEpochMilli(), lastModifiedPath.orElse("")));
+    }
+
+    public static Optional<ModifiedTimeWatermark> newest(final List<FileEntry> entries)
+    {
+        ModifiedTimeWatermark newest = null;
+        for (final FileEntry entry : entries) {
+            if (entry.getModifiedTime() == FileEntry.UNKNOWN) {
+                continue;
+            }
+            if (newest == null || newest.isOlderThan(entry.getModifiedTime(), entry.getPath())) {
+                newest = new ModifiedTimeWatermark(entry.getModifiedTime(), entry.getPath());
+            }
+        }
+        return Optional.ofNullable(newest);
+    }
+
+    public boolean isOlderThan(final long modifiedTime, final String path)
+    {
+        if (modifiedTime != this.modifiedTime) {
+            return this.modifiedTime < modifiedTime;
+        }
+        return this.path.compareTo(path) < 0;
+    }
+
+    /**
+     * Returns true if the file is newer than the watermark. A file without a modification time can't
+     * be compared, and isn't accepted.
+     */
+    public boolean accept(final FileEntry entry)
+    {
+        return entry.getModifiedTime() != FileEntry.UNKNOWN && isOlderThan(entry.getModifiedTime(), entry.getPath());
+    }
+
+    public long getModifiedTime()
+    {
+        return modifiedTime;
+    }
+
+    public String getLastModified()
+    {
+        return Instant.ofEpochMilli(modifiedTime).toString();
+    }
+
+    public String getPath()
+    {
+        return path;
+    }
+}
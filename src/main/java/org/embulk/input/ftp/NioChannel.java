@@ -0,0 +1,281 @@
+package org.embulk.input.ftp;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A non-blocking connection of {@link NioFtpEngine}, optionally layered on TLS by an SSLEngine.
+ *
+ * It is operated only in the thread of its loop. With TLS, a read may leave decrypted bytes or
+ * whole records buffered after the socket has nothing more to read, so that the selector doesn't
+ * report them. Readers keep reading while {@link #hasBufferedInput} is true.
+ */
+class NioChannel
+{
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel socket;
+    private SSLEngine engine;
+    private ByteBuffer netIn;   // read from the socket, in write mode
+    private ByteBuffer netOut;  // to write to the socket, in read mode
+    private ByteBuffer appIn;   // decrypted, in read mode
+    private boolean socketEof;
+
+    NioChannel(final SocketChannel socket)
+    {
+        this.socket = socket;
+    }
+
+    SocketChannel getSocket()
+    {
+        return socket;
+    }
+
+    /**
+     * Layers TLS on the connection. The handshake is advanced by {@link #handshake}.
+     */
+    void startTls(final SSLEngine engine) throws SSLException
+    {
+        this.engine = engine;
+        final int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packetSize);
+        netOut = ByteBuffer.allocate(packetSize);
+        netOut.flip();
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        appIn.flip();
+        engine.beginHandshake();
+    }
+
+    boolean isTls()
+    {
+        return engine != null;
+    }
+
+    /**
+     * Advances the TLS handshake as far as the socket allows, and returns true when it has finished.
+     */
+    boolean handshake() throws IOException
+    {
+        while (flush()) {
+            switch (engine.getHandshakeStatus()) {
+            case NEED_WRAP:
+                wrap(EMPTY);
+                break;
+            case NEED_UNWRAP:
+                if (!unwrap()) {
+                    if (socketEof || engine.isInboundDone()) {
+                        throw new EOFException("The server closed the connection in the TLS handshake");
+                    }
+                    if (fill() <= 0 && !socketEof) {
+                        return false;
+                    }
+                }
+                break;
+            case NEED_TASK:
+                runDelegatedTasks();
+                break;
+            default:
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads bytes into {@code dst}. Returns -1 at the end of the stream, or 0 if nothing is available.
+     */
+    int read(final ByteBuffer dst) throws IOException
+    {
+        if (engine == null) {
+            return socket.read(dst);
+        }
+        while (true) {
+            if (appIn.hasRemaining()) {
+                final int n = Math.min(appIn.remaining(), dst.remaining());
+                final ByteBuffer slice = appIn.duplicate();
+                slice.limit(slice.position() + n);
+                dst.put(slice);
+                appIn.position(appIn.position() + n);
+                return n;
+            }
+            if (engine.isInboundDone()) {
+                return -1;  // close_notify
+            }
+            if (unwrap()) {
+                // a post-handshake message, such as a new session ticket, may need an answer
+                afterUnwrap();
+                continue;
+            }
+            if (socketEof) {
+                return -1;  // closed without close_notify, as some servers do after a transfer
+            }
+            if (fill() == 0) {
+                return 0;
+            }
+        }
+    }
+
+    boolean hasBufferedInput()
+    {
+        return engine != null && (appIn.hasRemaining() || netIn.position() > 0);
+    }
+
+    /**
+     * Writes {@code src} entirely, and returns false if some of it is left to {@link #flush} when the
+     * socket becomes writable.
+     */
+    boolean write(final ByteBuffer src) throws IOException
+    {
+        if (engine == null) {
+            netOut = src;
+        }
+        else {
+            while (src.hasRemaining()) {
+                wrap(src);
+            }
+        }
+        return flush();
+    }
+
+    /**
+     * Writes bytes left by {@link #write}, and returns true when nothing is left.
+     */
+    boolean flush() throws IOException
+    {
+        if (netOut != null && netOut.hasRemaining()) {
+            socket.write(netOut);
+        }
+        return netOut == null || !netOut.hasRemaining();
+    }
+
+    boolean wantsWrite()
+    {
+        return (netOut != null && netOut.hasRemaining())
+                || (engine != null && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+    }
+
+    void close()
+    {
+        try {
+            if (engine != null && socket.isConnected()) {
+                // close_notify, on a best-effort basis
+                engine.closeOutbound();
+                wrap(EMPTY);
+                flush();
+            }
+        }
+        catch (final IOException ex) {
+            // do nothing
+        }
+        try {
+            socket.close();
+        }
+        catch (final IOException ex) {
+            // do nothing
+        }
+    }
+
+    private int fill() throws IOException
+    {
+        if (!netIn.hasRemaining()) {
+            // a record larger than the session announced
+            netIn.flip();
+            netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+            netIn.position(netIn.limit());
+            netIn.limit(netIn.capacity());
+        }
+        final int n = socket.read(netIn);
+        if (n < 0) {
+            socketEof = true;
+        }
+        return n;
+    }
+
+    // Unwraps a record into appIn, and returns false if a whole record hasn't been read yet
+    private boolean unwrap() throws IOException
+    {
+        final SSLEngineResult result;
+        netIn.flip();
+        appIn.compact();
+        try {
+            result = engine.unwrap(netIn, appIn);
+        }
+        finally {
+            netIn.compact();
+            appIn.flip();
+        }
+        switch (result.getStatus()) {
+        case BUFFER_OVERFLOW:
+            // appIn is read out before the next record, so the session asks for larger buffers
+            appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+            return true;
+        case BUFFER_UNDERFLOW:
+            return false;
+        default:
+            return result.bytesConsumed() > 0 || result.bytesProduced() > 0 || engine.isInboundDone();
+        }
+    }
+
+    private void afterUnwrap() throws IOException
+    {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+            case NEED_TASK:
+                runDelegatedTasks();
+                break;
+            case NEED_WRAP:
+                wrap(EMPTY);
+                flush();
+                break;
+            default:
+                return;
+            }
+        }
+    }
+
+    private void wrap(final ByteBuffer src) throws IOException
+    {
+        while (true) {
+            final SSLEngineResult result;
+            netOut.compact();
+            try {
+                result = engine.wrap(src, netOut);
+            }
+            finally {
+                netOut.flip();
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                // bytes are left to write, so a whole record doesn't fit
+                netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                continue;
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+            return;
+        }
+    }
+
+    private void runDelegatedTasks()
+    {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    // a buffer in read mode with the remaining bytes of buffer, and room for size more bytes
+    private static ByteBuffer enlarge(final ByteBuffer buffer, final int size)
+    {
+        final ByteBuffer larger = ByteBuffer.allocate(buffer.remaining() + size);
+        larger.put(buffer);
+        larger.flip();
+        return larger;
+    }
+}
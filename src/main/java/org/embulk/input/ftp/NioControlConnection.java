@@ -0,0 +1,508 @@
+package org.embulk.input.ftp;
+
+import org.embulk.input.ftp.FtpFileInputPlugin.DataChannelProtection;
+import org.slf4j.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A logged-in control connection of {@link NioFtpEngine}, optionally over TLS.
+ *
+ * FTP runs one transfer at a time on a control connection, so a connection serves one
+ * {@link NioDownload} at a time. A download releases the connection after its transfer completed,
+ * and the engine keeps it for {@code connection_idle_timeout} seconds for the next download to the
+ * same server, which saves the TCP and TLS handshakes and the login.
+ */
+class NioControlConnection
+{
+    /**
+     * Receives the events of the connection in the thread of its loop.
+     */
+    interface Listener
+    {
+        void ready();
+
+        void reply(FtpReplyParser.Reply reply) throws IOException;
+
+        void failed(IOException cause);
+    }
+
+    private enum Step
+    {
+        CONNECT, HANDSHAKE, BANNER, AUTH, USER, PASS, PBSZ, PROT, TYPE, READY, CLOSED
+    }
+
+    private final NioFtpEngine engine;
+    private final NioFtpEngine.IoLoop loop;
+    private final Logger log;
+    private final Optional<String> key;
+    private final String host;
+    private final InetSocketAddress address;
+    private final SSLContext sslContext;  // null without ssl
+    private final boolean sslExplicit;
+    private final boolean sslSessionReuse;
+    private final boolean verifyHostname;
+    private final List<String> cipherSuites;
+    private final boolean dataProtected;
+    private final Optional<String> user;
+    private final String password;
+    private final boolean ascii;
+    private final long connectTimeoutNanos;
+    private final long readTimeoutNanos;
+    private final long idleTimeoutNanos;
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+
+    // operated in the thread of the loop
+    private final NioFtpEngine.Session session = new NioFtpEngine.Session() {
+            @Override
+            public void checkTimeout(final long now)
+            {
+                NioControlConnection.this.checkTimeout(now);
+            }
+
+            @Override
+            public void failed(final RuntimeException cause)
+            {
+                fail(new IOException(cause));
+            }
+        };
+    private final FtpReplyParser parser = new FtpReplyParser();
+    private final ByteBuffer controlIn = ByteBuffer.allocate(4096);
+    private NioChannel channel;
+    private SelectionKey selectionKey;
+    private Step step = Step.CONNECT;
+    private Listener listener;
+    private long connectStartedAt;
+    private long lastActivity;
+    private boolean idle;
+
+    private volatile long roundTripNanos;
+
+    NioControlConnection(final NioFtpEngine engine, final NioFtpEngine.IoLoop loop, final Logger log,
+            final FtpFileInputPlugin.PluginTask task, final Optional<String> key, final String host, final int port,
+            final SSLContext sslContext)
+    {
+        this.engine = engine;
+        this.loop = loop;
+        this.log = log;
+        this.key = key;
+        this.host = host;
+        this.address = new InetSocketAddress(host, port);
+        this.sslContext = sslContext;
+        this.sslExplicit = task.getSsl() && task.getSslExplicit();
+        this.sslSessionReuse = task.getSsl() && task.getSslSessionReuse();
+        this.verifyHostname = task.getSsl() && task.getSslVerify().orElse(true) && task.getSslVerifyHostname();
+        this.cipherSuites = task.getSsl() ? task.getSslCipherSuites() : null;
+        this.dataProtected = task.getSsl() && task.getSslDataChannelProtection() != DataChannelProtection.CLEAR;
+        this.user = task.getUser();
+        this.password = task.getPassword().orElse("");
+        this.ascii = task.getAsciiMode();
+        this.connectTimeoutNanos = task.getConnectTimeout() * 1000L * 1000L * 1000L;
+        this.readTimeoutNanos = task.getReadTimeout() * 1000L * 1000L * 1000L;
+        this.idleTimeoutNanos = task.getConnectionIdleTimeout() * 1000L * 1000L * 1000L;
+        this.tcpNoDelay = task.getTcpNoDelay();
+        this.keepAlive = task.getTcpKeepAlive();
+    }
+
+    NioFtpEngine.IoLoop getLoop()
+    {
+        return loop;
+    }
+
+    long getRoundTripNanos()
+    {
+        return roundTripNanos;
+    }
+
+    boolean isDataProtected()
+    {
+        return dataProtected;
+    }
+
+    InetAddress getRemoteAddress() throws IOException
+    {
+        return ((InetSocketAddress) channel.getSocket().getRemoteAddress()).getAddress();
+    }
+
+    void configure(final SocketChannel socket) throws IOException
+    {
+        socket.configureBlocking(false);
+        socket.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        socket.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+    }
+
+    /**
+     * Connects and logs in, and then calls {@link Listener#ready}. Called in the thread of the loop.
+     */
+    void open(final Listener listener)
+    {
+        this.listener = listener;
+        loop.add(session);
+        lastActivity = System.nanoTime();
+        try {
+            final SocketChannel socket = SocketChannel.open();
+            configure(socket);
+            channel = new NioChannel(socket);
+            connectStartedAt = System.nanoTime();
+            selectionKey = loop.register(socket, session, new NioFtpEngine.Handler() {
+                    @Override
+                    public void ready(final SelectionKey key)
+                    {
+                        controlReady(key);
+                    }
+                });
+            if (socket.connect(address)) {
+                connected();
+            }
+            else {
+                selectionKey.interestOps(SelectionKey.OP_CONNECT);
+            }
+        }
+        catch (final IOException | RuntimeException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * Gives the idle connection taken from the engine to {@code listener}, and calls
+     * {@link Listener#ready}. Returns false if the server has closed it meanwhile. Called in the
+     * thread of the loop.
+     */
+    boolean attach(final Listener listener)
+    {
+        if (step != Step.READY) {
+            return false;
+        }
+        idle = false;
+        this.listener = listener;
+        lastActivity = System.nanoTime();
+        listener.ready();
+        return true;
+    }
+
+    /**
+     * Keeps the connection for the next download to the server, or quits it. The listener must
+     * have no command in progress.
+     */
+    void release()
+    {
+        listener = null;
+        if (step != Step.READY || idleTimeoutNanos <= 0 || !key.isPresent()) {
+            quit();
+            return;
+        }
+        idle = true;
+        lastActivity = System.nanoTime();
+        engine.park(key.get(), this);
+    }
+
+    void send(final String command) throws IOException
+    {
+        log.debug("FTP command: {}", command.startsWith("PASS ") ? "PASS ********" : command);
+        if (!channel.write(ByteBuffer.wrap((command + "\r\n").getBytes(StandardCharsets.UTF_8)))) {
+            selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Creates the TLS engine of a data connection to {@code port}. With {@code ssl_session_reuse},
+     * it is created for the address of the control connection, so that it resumes its session as
+     * servers requiring session reuse expect.
+     */
+    SSLEngine newDataEngine(final int port)
+    {
+        return newEngine(sslSessionReuse ? address.getPort() : port);
+    }
+
+    private SSLEngine newEngine(final int port)
+    {
+        final SSLEngine engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        if (verifyHostname) {
+            final SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        if (!cipherSuites.isEmpty()) {
+            engine.setEnabledCipherSuites(TlsSocketFactory.orderCipherSuites(cipherSuites, engine.getSupportedCipherSuites(), engine.getEnabledCipherSuites()));
+        }
+        return engine;
+    }
+
+    private void controlReady(final SelectionKey key)
+    {
+        try {
+            lastActivity = System.nanoTime();
+            if (key.isConnectable()) {
+                if (channel.getSocket().finishConnect()) {
+                    connected();
+                }
+                return;
+            }
+            if (step == Step.HANDSHAKE) {
+                handshake();
+                return;
+            }
+            if (key.isWritable() && channel.flush()) {
+                selectionKey.interestOps(SelectionKey.OP_READ);
+            }
+            if (key.isReadable()) {
+                readReplies();
+            }
+        }
+        catch (final IOException | RuntimeException ex) {
+            fail(ex);
+        }
+    }
+
+    private void readReplies() throws IOException
+    {
+        int n;
+        while ((n = channel.read(controlIn)) > 0) {
+            controlIn.flip();
+            parser.feed(controlIn);
+            controlIn.clear();
+        }
+        FtpReplyParser.Reply reply;
+        while (step != Step.CLOSED && step != Step.HANDSHAKE && (reply = parser.poll()) != null) {
+            onReply(reply);
+        }
+        if (n < 0 && step != Step.CLOSED) {
+            // after the replies, such as 421, which tell why
+            throw new EOFException("FTP server closed the control connection");
+        }
+    }
+
+    private void connected() throws IOException
+    {
+        // a TCP handshake takes one round trip
+        roundTripNanos = System.nanoTime() - connectStartedAt;
+        if (sslContext != null && !sslExplicit) {
+            // implicit FTPS
+            startTls();
+        }
+        else {
+            step = Step.BANNER;
+            selectionKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void startTls() throws IOException
+    {
+        step = Step.HANDSHAKE;
+        channel.startTls(newEngine(address.getPort()));
+        handshake();
+    }
+
+    private void handshake() throws IOException
+    {
+        if (!channel.handshake()) {
+            selectionKey.interestOps(SelectionKey.OP_READ | (channel.wantsWrite() ? SelectionKey.OP_WRITE : 0));
+            return;
+        }
+        selectionKey.interestOps(SelectionKey.OP_READ);
+        if (sslExplicit) {
+            login();
+        }
+        else {
+            step = Step.BANNER;
+        }
+        if (channel.hasBufferedInput()) {
+            // the banner may have come with the last message of the handshake
+            readReplies();
+        }
+    }
+
+    private void onReply(final FtpReplyParser.Reply reply) throws IOException
+    {
+        if (step == Step.READY) {
+            if (listener != null) {
+                listener.reply(reply);
+            }
+            else {
+                log.debug("FTP reply on an idle connection: {}", reply);
+            }
+            return;
+        }
+        log.debug("FTP reply: {}", reply);
+        switch (step) {
+        case BANNER:
+            if (reply.isPreliminary()) {
+                return;  // 120 service ready in n minutes
+            }
+            expectSuccess(reply);
+            if (sslExplicit) {
+                step = Step.AUTH;
+                send("AUTH TLS");
+            }
+            else {
+                login();
+            }
+            return;
+        case AUTH:
+            expectSuccess(reply);
+            startTls();
+            return;
+        case USER:
+            if (reply.isIntermediate()) {
+                step = Step.PASS;
+                send("PASS " + password);
+                return;
+            }
+            expectSuccess(reply);
+            loggedIn();
+            return;
+        case PASS:
+            expectSuccess(reply);
+            loggedIn();
+            return;
+        case PBSZ:
+            expectSuccess(reply);
+            step = Step.PROT;
+            send(dataProtected ? "PROT P" : "PROT C");
+            return;
+        case PROT:
+            expectSuccess(reply);
+            sendType();
+            return;
+        case TYPE:
+            expectSuccess(reply);
+            step = Step.READY;
+            listener.ready();
+            return;
+        default:
+            throw new IOException("Unexpected FTP reply: " + reply);
+        }
+    }
+
+    private void login() throws IOException
+    {
+        if (user.isPresent()) {
+            step = Step.USER;
+            send("USER " + user.get());
+        }
+        else {
+            loggedIn();
+        }
+    }
+
+    private void loggedIn() throws IOException
+    {
+        if (sslContext != null) {
+            step = Step.PBSZ;
+            send("PBSZ 0");
+        }
+        else {
+            sendType();
+        }
+    }
+
+    private void sendType() throws IOException
+    {
+        step = Step.TYPE;
+        send(ascii ? "TYPE A" : "TYPE I");
+    }
+
+    static void expectSuccess(final FtpReplyParser.Reply reply) throws IOException
+    {
+        if (!reply.isSuccess()) {
+            throw new IOException("FTP command failed: " + reply);
+        }
+    }
+
+    private void checkTimeout(final long now)
+    {
+        if (idle) {
+            if (now - lastActivity > idleTimeoutNanos && engine.unpark(this)) {
+                log.debug("Closing a connection idle for {} seconds", idleTimeoutNanos / 1000 / 1000 / 1000);
+                quit();
+            }
+            return;
+        }
+        if (step == Step.READY || step == Step.CLOSED) {
+            return;  // the download checks its own timeouts
+        }
+        final long timeout = step == Step.CONNECT ? connectTimeoutNanos : readTimeoutNanos;
+        if (timeout > 0 && now - lastActivity > timeout) {
+            fail(new SocketTimeoutException(String.format("FTP server didn't respond in %d seconds", timeout / 1000 / 1000 / 1000)));
+        }
+    }
+
+    private void fail(final Exception cause)
+    {
+        if (step == Step.CLOSED) {
+            return;
+        }
+        if (idle) {
+            // closed by the server, or its timeout
+            // closed by the server, or by its timeout. if a download has just taken the connection,
+            // its attach fails
+            log.debug("Idle connection closed", cause);
+            engine.unpark(this);
+            close();
+            return;
+        }
+        final Listener failed = listener;
+        close();
+        if (failed != null) {
+            failed.failed(cause instanceof IOException ? (IOException) cause : new IOException(cause));
+        }
+    }
+
+    /**
+     * Quits the idle connection in the thread of its loop.
+     */
+    void quitLater()
+    {
+        loop.execute(session, new Runnable() {
+                @Override
+                public void run()
+                {
+                    quit();
+                }
+            });
+    }
+
+    /**
+     * Sends QUIT on a best-effort basis, and closes the connection.
+     */
+    void quit()
+    {
+        if (step == Step.READY) {
+            try {
+                send("QUIT");
+            }
+            catch (final IOException ex) {
+                // closed anyway
+            }
+        }
+        close();
+    }
+
+    void close()
+    {
+        step = Step.CLOSED;
+        idle = false;
+        listener = null;
+        loop.remove(session);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
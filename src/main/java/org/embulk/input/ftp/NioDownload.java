@@ -0,0 +1,649 @@
+package org.embulk.input.ftp;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads a file over a control connection of {@link NioFtpEngine}, and reads it as an
+ * InputStream. The control connection is an idle one left by a download to the same server, or a
+ * new one, and is given back to the engine when the transfer completed.
+ *
+ * The engine pushes received data into a queue of this stream. When the queued chunks reach
+ * {@link #MAX_BUFFERED_BYTES}, the engine stops reading the data connection until the reader
+ * catches up, so that TCP flow control slows down the server. It also stops when the chunks of the
+ * {@link TransferBufferPool} are used up. Closing the stream before EOF closes the connections.
+ */
+public class NioDownload
+        extends InputStream
+{
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final long MAX_BUFFERED_BYTES = 4L * 1024 * 1024;
+
+    private static final Pattern PASV_REPLY = Pattern.compile("(\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)");
+    private static final Pattern EPSV_REPLY = Pattern.compile("\\(\\|\\|\\|(\\d+)\\|\\)");
+
+    private enum Step
+    {
+        CONNECT, PASV, REST, RETR, TRANSFER, DONE
+    }
+
+    private final NioFtpEngine.IoLoop loop;
+    private final Logger log;
+    private final Supplier<NioControlConnection> connector;
+    private final String path;
+    private final long offset;
+    private final long connectTimeoutNanos;
+    private final long readTimeoutNanos;
+    private final int receiveBufferSize;
+    private final long targetBytesPerSecond;
+    private final TransferBufferPool.Account buffers;
+
+    // operated in the thread of the loop
+    private final NioFtpEngine.Session session = new NioFtpEngine.Session() {
+            @Override
+            public void checkTimeout(final long now)
+            {
+                NioDownload.this.checkTimeout(now);
+            }
+
+            @Override
+            public void failed(final RuntimeException cause)
+            {
+                fail(cause);
+            }
+        };
+    private final NioControlConnection.Listener listener = new NioControlConnection.Listener() {
+            @Override
+            public void ready()
+            {
+                controlReady();
+            }
+
+            @Override
+            public void reply(final FtpReplyParser.Reply reply) throws IOException
+            {
+                onReply(reply);
+            }
+
+            @Override
+            public void failed(final IOException cause)
+            {
+                controlFailed(cause);
+            }
+        };
+    private NioControlConnection control;
+    private boolean reused;
+    private boolean replied;
+    private NioChannel data;
+    private SelectionKey dataKey;
+    private Step step = Step.CONNECT;
+    private boolean dataConnecting;
+    private boolean dataDone;
+    private boolean controlDone;
+    private long lastActivity;
+    private boolean waitingForBuffer;
+    private ByteBuffer incoming;  // a chunk to read the data connection into
+
+    private volatile long roundTripNanos;
+    private volatile int effectiveWindow;
+
+    // shared with the reader, guarded by this
+    private final Deque<ByteBuffer> queue = new ArrayDeque<>();
+    private long buffered;
+    private long queuedCapacity;
+    private boolean paused;
+    private boolean eof;
+    private boolean closed;
+    private IOException failure;
+
+    NioDownload(final NioFtpEngine.IoLoop loop, final Logger log, final FtpFileInputPlugin.PluginTask task,
+            final NioControlConnection idle, final Supplier<NioControlConnection> connector,
+            final int receiveBufferSize, final String path, final long offset, final TransferBufferPool pool)
+    {
+        this.loop = loop;
+        this.log = log;
+        this.control = idle;
+        this.connector = connector;
+        this.path = path;
+        this.offset = offset;
+        this.connectTimeoutNanos = task.getConnectTimeout() * 1000L * 1000L * 1000L;
+        this.readTimeoutNanos = task.getReadTimeout() * 1000L * 1000L * 1000L;
+        this.receiveBufferSize = receiveBufferSize;
+        this.targetBytesPerSecond = task.getTargetBandwidthMbps() * 1000L * 1000L / 8;
+        this.buffers = pool.newAccount();
+    }
+
+    void start()
+    {
+        loop.execute(session, new Runnable() {
+                @Override
+                public void run()
+                {
+                    open();
+                }
+            });
+    }
+
+    public long getRoundTripNanos()
+    {
+        return roundTripNanos;
+    }
+
+    /**
+     * Returns the receive buffer size the OS gave to the data connection, or 0.
+     */
+    public int getEffectiveWindow()
+    {
+        return effectiveWindow;
+    }
+
+    public int getRequestedWindow()
+    {
+        if (receiveBufferSize != TunedConnector.AUTO) {
+            return receiveBufferSize;
+        }
+        if (roundTripNanos <= 0) {
+            return TunedConnector.DEFAULT_BUFFER_SIZE;
+        }
+        return TunedConnector.autoBufferSize(roundTripNanos, targetBytesPerSecond);
+    }
+
+    private void open()
+    {
+        loop.add(session);
+        lastActivity = System.nanoTime();
+        if (control != null) {
+            reused = true;
+            if (control.attach(listener)) {
+                return;
+            }
+            log.debug("The idle connection was closed by the server. Connecting");
+        }
+        connect();
+    }
+
+    private void connect()
+    {
+        reused = false;
+        control = connector.get();
+        control.open(listener);
+    }
+
+    private void controlReady()
+    {
+        try {
+            lastActivity = System.nanoTime();
+            roundTripNanos = control.getRoundTripNanos();
+            step = Step.PASV;
+            control.send(control.getRemoteAddress() instanceof Inet6Address ? "EPSV" : "PASV");
+        }
+        catch (final IOException ex) {
+            controlFailed(ex);
+        }
+    }
+
+    private void controlFailed(final IOException cause)
+    {
+        if (reused && !replied && step != Step.DONE) {
+            // the server closed the idle connection, or sent 421 just before, so nothing was done
+            log.debug("The idle connection failed. Connecting", cause);
+            control.close();
+            closeData();
+            step = Step.CONNECT;
+            connect();
+            return;
+        }
+        fail(cause);
+    }
+
+    private void onReply(final FtpReplyParser.Reply reply) throws IOException
+    {
+        lastActivity = System.nanoTime();
+        log.debug("FTP reply: {}", reply);
+        switch (step) {
+        case PASV:
+            NioControlConnection.expectSuccess(reply);
+            replied = true;
+            openData(passivePort(reply));
+            if (offset > 0) {
+                step = Step.REST;
+                control.send("REST " + offset);
+            }
+            else {
+                step = Step.RETR;
+                control.send("RETR " + path);
+            }
+            return;
+        case REST:
+            if (!reply.isIntermediate()) {
+                throw new IOException("FTP command failed: " + reply);
+            }
+            step = Step.RETR;
+            control.send("RETR " + path);
+            return;
+        case RETR:
+            if (reply.isPreliminary()) {
+                step = Step.TRANSFER;
+                return;
+            }
+            NioControlConnection.expectSuccess(reply);
+            transferReplied();
+            return;
+        case TRANSFER:
+            NioControlConnection.expectSuccess(reply);
+            transferReplied();
+            return;
+        default:
+            throw new IOException("Unexpected FTP reply: " + reply);
+        }
+    }
+
+    static int passivePort(final FtpReplyParser.Reply reply) throws IOException
+    {
+        final String text = reply.toString();
+        if (reply.getCode() == 229) {
+            final Matcher m = EPSV_REPLY.matcher(text);
+            if (m.find()) {
+                return Integer.parseInt(m.group(1));
+            }
+        }
+        else {
+            final Matcher m = PASV_REPLY.matcher(text);
+            if (m.find()) {
+                return Integer.parseInt(m.group(5)) * 256 + Integer.parseInt(m.group(6));
+            }
+        }
+        throw new IOException("Illegal FTP reply to passive mode: " + text);
+    }
+
+    // connects to the address of the control connection as ftp4j does, which works behind NAT
+    private void openData(final int port) throws IOException
+    {
+        final SocketChannel socket = SocketChannel.open();
+        data = new NioChannel(socket);
+        control.configure(socket);
+        // window scaling is negotiated in the handshake, so this must precede connect
+        socket.setOption(StandardSocketOptions.SO_RCVBUF, getRequestedWindow());
+        dataKey = loop.register(socket, session, new NioFtpEngine.Handler() {
+                @Override
+                public void ready(final SelectionKey key)
+                {
+                    dataReady(key);
+                }
+            });
+        dataConnecting = true;
+        if (socket.connect(new InetSocketAddress(control.getRemoteAddress(), port))) {
+            dataConnected(port);
+        }
+        else {
+            dataKey.interestOps(SelectionKey.OP_CONNECT);
+        }
+    }
+
+    private void dataConnected(final int port) throws IOException
+    {
+        effectiveWindow = data.getSocket().getOption(StandardSocketOptions.SO_RCVBUF);
+        if (control.isDataProtected()) {
+            data.startTls(control.newDataEngine(port));
+            handshakeData();
+            return;
+        }
+        dataConnecting = false;
+        synchronized (this) {
+            dataKey.interestOps(paused ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    // The server starts TLS on the data connection after RETR, so the handshake may wait for it
+    private void handshakeData() throws IOException
+    {
+        if (!data.handshake()) {
+            dataKey.interestOps(SelectionKey.OP_READ | (data.wantsWrite() ? SelectionKey.OP_WRITE : 0));
+            return;
+        }
+        dataConnecting = false;
+        synchronized (this) {
+            if (paused) {
+                dataKey.interestOps(0);
+                return;
+            }
+        }
+        dataKey.interestOps(SelectionKey.OP_READ);
+        readData();
+    }
+
+    private void dataReady(final SelectionKey key)
+    {
+        try {
+            lastActivity = System.nanoTime();
+            if (key.isConnectable()) {
+                if (data.getSocket().finishConnect()) {
+                    dataConnected(((InetSocketAddress) data.getSocket().getRemoteAddress()).getPort());
+                }
+                return;
+            }
+            if (dataConnecting) {
+                handshakeData();
+                return;
+            }
+            readData();
+        }
+        catch (final IOException | RuntimeException ex) {
+            fail(ex);
+        }
+    }
+
+    // Reads the data connection until the socket has no more bytes. With TLS, bytes decrypted
+    // before a pause are read here when resumed, as the selector doesn't report them.
+    private void readData() throws IOException
+    {
+        while (true) {
+            if (incoming == null) {
+                incoming = buffers.acquire(new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            loop.execute(session, new Runnable() {
+                                    @Override
+                                    public void run()
+                                    {
+                                        resumeAfterBuffer();
+                                    }
+                                });
+                        }
+                    });
+                if (incoming == null) {
+                    // the budget of the JVM is used up until another download returns a chunk
+                    waitingForBuffer = true;
+                    dataKey.interestOps(0);
+                    return;
+                }
+            }
+            final int n = data.read(incoming);
+            if (n < 0) {
+                dataDone = true;
+                closeData();
+                finishIfDone();
+                return;
+            }
+            if (n == 0) {
+                return;
+            }
+            incoming.flip();
+            if (push()) {
+                dataKey.interestOps(0);
+                return;
+            }
+            if (!data.hasBufferedInput()) {
+                return;  // the selector reports the rest
+            }
+        }
+    }
+
+    private void transferReplied() throws IOException
+    {
+        controlDone = true;
+        finishIfDone();
+    }
+
+    private void finishIfDone() throws IOException
+    {
+        if (!dataDone || !controlDone) {
+            return;
+        }
+        step = Step.DONE;
+        loop.remove(session);
+        releaseIncoming();
+        // the file is already downloaded, so the connection is kept for another download
+        final NioControlConnection released = control;
+        control = null;
+        released.release();
+        synchronized (this) {
+            eof = true;
+            notifyAll();
+        }
+    }
+
+    // Queues the bytes read into the incoming chunk, and returns true if the reader has fallen
+    // behind. Bytes of a short read are copied into the last chunk while it has room, so that a
+    // slow server doesn't fill the queue with chunks holding a few bytes each. Chunks are counted
+    // by their capacity, so the queue holds at most MAX_BUFFERED_BYTES of chunks.
+    private synchronized boolean push()
+    {
+        if (closed) {
+            incoming.clear();
+            return false;
+        }
+        final int n = incoming.remaining();
+        final ByteBuffer last = queue.peekLast();
+        if (last != null && last.capacity() - last.limit() >= n) {
+            // the reader reads the chunk only while holding the lock
+            final int limit = last.limit();
+            last.limit(limit + n);
+            final ByteBuffer appended = last.duplicate();
+            appended.position(limit);
+            appended.put(incoming);
+            incoming.clear();
+        }
+        else {
+            queue.addLast(incoming);
+            queuedCapacity += incoming.capacity();
+            incoming = null;
+        }
+        buffered += n;
+        notifyAll();
+        if (queuedCapacity >= MAX_BUFFERED_BYTES) {
+            paused = true;
+        }
+        return paused;
+    }
+
+    private void resumeAfterBuffer()
+    {
+        if (!waitingForBuffer) {
+            return;
+        }
+        waitingForBuffer = false;
+        synchronized (this) {
+            if (paused) {
+                return;  // resumed when the reader catches up
+            }
+        }
+        resume();
+    }
+
+    private void resume()
+    {
+        if (dataKey != null && dataKey.isValid() && !dataConnecting) {
+            lastActivity = System.nanoTime();
+            dataKey.interestOps(SelectionKey.OP_READ);
+            if (data.hasBufferedInput()) {
+                try {
+                    readData();
+                }
+                catch (final IOException ex) {
+                    fail(ex);
+                }
+            }
+        }
+    }
+
+    void checkTimeout(final long now)
+    {
+        if (step == Step.CONNECT || step == Step.DONE) {
+            return;  // the control connection checks the timeouts of login
+        }
+        synchronized (this) {
+            if (paused) {
+                return;  // waiting for the reader, not for the server
+            }
+        }
+        if (waitingForBuffer) {
+            return;  // waiting for other downloads
+        }
+        final long timeout = dataConnecting ? connectTimeoutNanos : readTimeoutNanos;
+        if (timeout > 0 && now - lastActivity > timeout) {
+            fail(new SocketTimeoutException(String.format("FTP server didn't respond in %d seconds", timeout / 1000 / 1000 / 1000)));
+        }
+    }
+
+    private void fail(final Exception cause)
+    {
+        step = Step.DONE;
+        closeChannels();
+        synchronized (this) {
+            if (!eof && failure == null) {
+                failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+            notifyAll();
+        }
+    }
+
+    private void closeChannels()
+    {
+        loop.remove(session);
+        closeData();
+        if (control != null) {
+            control.close();
+        }
+        releaseIncoming();
+    }
+
+    private void closeData()
+    {
+        if (data != null) {
+            if (dataKey != null) {
+                dataKey.cancel();
+            }
+            data.close();
+            data = null;
+            dataKey = null;
+        }
+        dataConnecting = false;
+    }
+
+    private void releaseIncoming()
+    {
+        if (incoming != null) {
+            buffers.release(incoming);
+            incoming = null;
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        final byte[] b = new byte[1];
+        final int n = read(b, 0, 1);
+        return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        final int n;
+        boolean resume = false;
+        ByteBuffer consumed = null;
+        synchronized (this) {
+            while (queue.isEmpty()) {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (eof) {
+                    return -1;
+                }
+                try {
+                    wait();
+                }
+                catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            final ByteBuffer head = queue.peekFirst();
+            n = Math.min(len, head.remaining());
+            head.get(b, off, n);
+            if (!head.hasRemaining()) {
+                consumed = queue.pollFirst();
+                queuedCapacity -= consumed.capacity();
+            }
+            buffered -= n;
+            if (paused && queuedCapacity <= MAX_BUFFERED_BYTES / 2) {
+                paused = false;
+                resume = true;
+            }
+        }
+        if (consumed != null) {
+            buffers.release(consumed);
+        }
+        if (resume) {
+            loop.execute(session, new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        resume();
+                    }
+                });
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized int available()
+    {
+        return (int) Math.min(Integer.MAX_VALUE, buffered);
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (final ByteBuffer chunk : queue) {
+                buffers.release(chunk);
+            }
+            queue.clear();
+            queuedCapacity = 0;
+            notifyAll();
+            if (eof) {
+                return;
+            }
+        }
+        loop.execute(session, new Runnable() {
+                @Override
+                public void run()
+                {
+                    if (step != Step.DONE) {
+                        // the transfer is in progress, so the control connection can't be reused
+                        step = Step.DONE;
+                        closeChannels();
+                    }
+                }
+            });
+    }
+}
@@ -0,0 +1,362 @@
+package org.embulk.input.ftp;
+
+import org.slf4j.Logger;
+
+import javax.net.ssl.SSLContext;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.Provider;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the control and data connections of {@link NioDownload}s on a few selector threads shared
+ * by every task in the JVM, instead of two threads for each transfer.
+ *
+ * It also keeps the control connections of completed downloads for {@code connection_idle_timeout}
+ * seconds, and gives them to later downloads with the same connection settings, in the same way as
+ * {@link IdleConnections} does for ftp4j.
+ */
+public class NioFtpEngine
+{
+    private static NioFtpEngine shared;
+
+    private static final long TIMEOUT_CHECK_MILLIS = 1000;
+
+    private final List<IoLoop> loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Map<String, Deque<NioControlConnection>> idle = new HashMap<>();  // guarded by itself
+    private final Map<String, SSLContext> sslContexts = new ConcurrentHashMap<>();
+
+    NioFtpEngine(final int threads)
+    {
+        final List<IoLoop> loops = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final IoLoop loop = new IoLoop();
+            final Thread thread = new Thread(loop, "embulk-input-ftp-nio-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            loops.add(loop);
+        }
+        this.loops = Collections.unmodifiableList(loops);
+    }
+
+    /**
+     * Returns the engine of the JVM. The number of threads is decided by the first call.
+     */
+    public static synchronized NioFtpEngine shared(final int threads)
+    {
+        if (shared == null) {
+            shared = new NioFtpEngine(threads);
+        }
+        return shared;
+    }
+
+    /**
+     * Returns the engine of the JVM, or null if no task has used it.
+     */
+    public static synchronized NioFtpEngine sharedIfCreated()
+    {
+        return shared;
+    }
+
+    /**
+     * Starts downloading {@code path} from {@code offset}.
+     */
+    public NioDownload download(final Logger log, final FtpFileInputPlugin.PluginTask task, final FtpHost host, final int port,
+            final int receiveBufferSize, final String path, final long offset)
+    {
+        return download(log, task, host, port, receiveBufferSize, path, offset,
+                TransferBufferPool.shared(task.getTransferBufferBudget().orElse(TransferBufferPool.defaultBudget()), task.getTransferBufferDirect()));
+    }
+
+    NioDownload download(final Logger log, final FtpFileInputPlugin.PluginTask task, final FtpHost host, final int port,
+            final int receiveBufferSize, final String path, final long offset, final TransferBufferPool pool)
+    {
+        final Optional<String> key = connectionKey(log, task, host, port);
+        final NioControlConnection reused = key.isPresent() ? takeIdle(key.get()) : null;
+        if (reused != null) {
+            log.info("Reusing a logged-in connection to {}:{}", host.getHost(), port);
+        }
+        // a download runs on the loop of the connection it reuses
+        final IoLoop loop = reused != null ? reused.getLoop() : nextLoop();
+        final SSLContext sslContext = task.getSsl() ? sslContext(log, task) : null;
+        final Supplier<NioControlConnection> connector = new Supplier<NioControlConnection>() {
+            @Override
+            public NioControlConnection get()
+            {
+                return new NioControlConnection(NioFtpEngine.this, loop, log, task, key, host.getHost(), port, sslContext);
+            }
+        };
+        final NioDownload download = new NioDownload(loop, log, task, reused, connector, receiveBufferSize, path, offset, pool);
+        download.start();
+        return download;
+    }
+
+    /**
+     * Closes the idle connections to {@code host} left by the tasks of a job.
+     */
+    public void closeIdle(final Logger log, final FtpFileInputPlugin.PluginTask task, final FtpHost host, final int port)
+    {
+        final Optional<String> key = connectionKey(log, task, host, port);
+        if (!key.isPresent()) {
+            return;
+        }
+        final Deque<NioControlConnection> connections;
+        synchronized (idle) {
+            connections = idle.remove(key.get());
+        }
+        if (connections != null) {
+            for (final NioControlConnection connection : connections) {
+                connection.quitLater();
+            }
+        }
+    }
+
+    // Identifies connections which can be used in place of each other, or returns empty if they
+    // are not kept
+    private static Optional<String> connectionKey(final Logger log, final FtpFileInputPlugin.PluginTask task, final FtpHost host,
+            final int port)
+    {
+        if (task.getConnectionIdleTimeout() <= 0) {
+            return Optional.empty();
+        }
+        final Optional<String> key = FtpFileInputPlugin.connectionKey(log, task, host.getHost(), port, task.getUser().orElse(null));
+        return key.isPresent() ? Optional.of(key.get() + " nio") : key;
+    }
+
+    NioControlConnection takeIdle(final String key)
+    {
+        synchronized (idle) {
+            final Deque<NioControlConnection> connections = idle.get(key);
+            if (connections == null) {
+                return null;
+            }
+            final NioControlConnection connection = connections.pollFirst();
+            if (connections.isEmpty()) {
+                idle.remove(key);
+            }
+            return connection;
+        }
+    }
+
+    void park(final String key, final NioControlConnection connection)
+    {
+        synchronized (idle) {
+            Deque<NioControlConnection> connections = idle.get(key);
+            if (connections == null) {
+                connections = new ArrayDeque<>();
+                idle.put(key, connections);
+            }
+            connections.addFirst(connection);  // the most recently used first
+        }
+    }
+
+    /**
+     * Removes {@code connection} from the idle ones, and returns false if a download took it.
+     */
+    boolean unpark(final NioControlConnection connection)
+    {
+        synchronized (idle) {
+            for (final Iterator<Deque<NioControlConnection>> it = idle.values().iterator(); it.hasNext(); ) {
+                final Deque<NioControlConnection> connections = it.next();
+                if (connections.remove(connection)) {
+                    if (connections.isEmpty()) {
+                        it.remove();
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Connections to a server share the context, so that they share its session cache
+    private SSLContext sslContext(final Logger log, final FtpFileInputPlugin.PluginTask task)
+    {
+        final Optional<String> key = FtpFileInputPlugin.sslConfigKey(log, task);
+        if (!key.isPresent()) {
+            return newSSLContext(log, task);
+        }
+        SSLContext context = sslContexts.get(key.get());
+        if (context == null) {
+            context = newSSLContext(log, task);
+            final SSLContext existing = sslContexts.putIfAbsent(key.get(), context);
+            if (existing != null) {
+                context = existing;
+            }
+        }
+        return context;
+    }
+
+    SSLContext newSSLContext(final Logger log, final FtpFileInputPlugin.PluginTask task)
+    {
+        final Provider provider = task.getSslProvider().isPresent() ? TlsSocketFactory.findProvider(task.getSslProvider().get()) : null;
+        return TlsSocketFactory.newSSLContext(log, provider, task.getSSLConfig().newTrustManager());
+    }
+
+    IoLoop nextLoop()
+    {
+        return loops.get(Math.floorMod(next.getAndIncrement(), loops.size()));
+    }
+
+    interface Handler
+    {
+        void ready(SelectionKey key);
+    }
+
+    /**
+     * A download or a connection running on a loop. The loop fails it when its tasks, handlers or
+     * timeout checks throw, so that the other sessions of the loop go on.
+     */
+    interface Session
+    {
+        void checkTimeout(long now);
+
+        void failed(RuntimeException cause);
+    }
+
+    /**
+     * A selector thread. Channels registered to it must be operated only in the thread, by tasks
+     * given to {@link #execute(Session, Runnable)}.
+     */
+    static class IoLoop
+            implements Runnable
+    {
+        private final Selector selector;
+        private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+        private final Set<Session> sessions = new HashSet<>();
+
+        IoLoop()
+        {
+            try {
+                this.selector = Selector.open();
+            }
+            catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        SelectionKey register(final SelectableChannel channel, final Session session, final Handler handler)
+            throws ClosedChannelException
+        {
+            return channel.register(selector, 0, new Task(session, handler));
+        }
+
+        void execute(final Session session, final Runnable runnable)
+        {
+            tasks.add(new Task(session, runnable));
+            selector.wakeup();
+        }
+
+        void add(final Session session)
+        {
+            sessions.add(session);
+        }
+
+        void remove(final Session session)
+        {
+            sessions.remove(session);
+        }
+
+        @Override
+        public void run()
+        {
+            while (true) {
+                try {
+                    selector.select(TIMEOUT_CHECK_MILLIS);
+                }
+                catch (final IOException ex) {
+                    // retry. the selected keys are still processed
+                }
+                Task task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.runnable.run();
+                    }
+                    catch (final RuntimeException ex) {
+                        fail(task.session, ex);
+                    }
+                }
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final Task registered = (Task) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            registered.handler.ready(key);
+                        }
+                    }
+                    catch (final CancelledKeyException ex) {
+                        // closed by the session
+                    }
+                    catch (final RuntimeException ex) {
+                        fail(registered.session, ex);
+                    }
+                }
+                final long now = System.nanoTime();
+                for (final Session session : new ArrayList<>(sessions)) {
+                    try {
+                        session.checkTimeout(now);
+                    }
+                    catch (final RuntimeException ex) {
+                        fail(session, ex);
+                    }
+                }
+            }
+        }
+
+        private static void fail(final Session session, final RuntimeException cause)
+        {
+            try {
+                session.failed(cause);
+            }
+            catch (final RuntimeException ex) {
+                // the loop must go on for the other sessions
+            }
+        }
+    }
+
+    // a task or a registered channel of a session
+    private static class Task
+    {
+        private final Session session;
+        private final Runnable runnable;
+        private final Handler handler;
+
+        Task(final Session session, final Runnable runnable)
+        {
+            this.session = session;
+            this.runnable = runnable;
+            this.handler = null;
+        }
+
+        Task(final Session session, final Handler handler)
+        {
+            this.session = session;
+            this.runnable = null;
+            this.handler = handler;
+        }
+    }
+}
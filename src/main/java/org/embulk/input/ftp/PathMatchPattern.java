@@ -0,0 +1,60 @@
+package org.embulk.input.ftp;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Wraps {@code path_match_pattern} so that listing can decide not only whether a file matches,
+ * but also whether a directory may contain a matching file at all.
+ *
+ * A directory is pruned only when the pattern is anchored at the beginning of the path
+ * (starts with {@code ^} or {@code \A}). For such a pattern, a failed match against
+ * {@code "directory/"} that did not hit the end of the input means that no longer path
+ * beginning with {@code "directory/"} can match either.
+ */
+public class PathMatchPattern
+{
+    private final Pattern pattern;
+    private final boolean prunable;
+
+    public PathMatchPattern(final Pattern pattern)
+    {
+        this.pattern = pattern;
+        final String source = pattern.pattern();
+        this.prunable = source.startsWith("^") || source.startsWith("\\A");
+    }
+
+    public static PathMatchPattern compile(final String regex)
+    {
+        return new PathMatchPattern(Pattern.compile(regex));
+    }
+
+    public Pattern getPattern()
+    {
+        return pattern;
+    }
+
+    public boolean matches(final String path)
+    {
+        return pattern.matcher(path).find();
+    }
+
+    public boolean mayMatchUnder(final String directoryPath)
+    {
+        if (!prunable) {
+            return true;
+        }
+        final String prefix = directoryPath.endsWith("/") ? directoryPath : directoryPath + "/";
+        final Matcher matcher = pattern.matcher(prefix);
+        if (matcher.find()) {
+            return true;
+        }
+        return matcher.hitEnd();
+    }
+
+    @Override
+    public String toString()
+    {
+        return pattern.pattern();
+    }
+}
@@ -0,0 +1,114 @@
+package org.embulk.input.ftp;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Optional;
+
+/**
+ * An element of {@code path_prefixes}: a prefix listed like {@code path_prefix}, with its own
+ * {@code path_match_pattern}, and {@code last_path} or {@code last_modified} and
+ * {@code last_modified_path} of the incremental mode.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PathPrefix
+{
+    private final String prefix;
+    private final String pathMatchPattern;
+    private final String lastPath;
+    private final String lastModified;
+    private final String lastModifiedPath;
+
+    @JsonCreator
+    public PathPrefix(
+            @JsonProperty("prefix") final String prefix,
+            @JsonProperty("path_match_pattern") final String pathMatchPattern,
+            @JsonProperty("last_path") final String lastPath,
+            @JsonProperty("last_modified") final String lastModified,
+            @JsonProperty("last_modified_path") final String lastModifiedPath)
+    {
+        this.prefix = prefix;
+        this.pathMatchPattern = pathMatchPattern;
+        this.lastPath = lastPath;
+        this.lastModified = lastModified;
+        this.lastModifiedPath = lastModifiedPath;
+    }
+
+    /**
+     * Allows a plain string as the prefix.
+     */
+    @JsonCreator
+    public static PathPrefix of(final String prefix)
+    {
+        return new PathPrefix(prefix, null, null, null, null);
+    }
+
+    @JsonProperty("prefix")
+    public String getPrefix()
+    {
+        return prefix;
+    }
+
+    @JsonProperty("path_match_pattern")
+    public String getPathMatchPatternString()
+    {
+        return pathMatchPattern;
+    }
+
+    @JsonProperty("last_path")
+    public String getLastPathString()
+    {
+        return lastPath;
+    }
+
+    @JsonProperty("last_modified")
+    public String getLastModifiedString()
+    {
+        return lastModified;
+    }
+
+    @JsonProperty("last_modified_path")
+    public String getLastModifiedPathString()
+    {
+        return lastModifiedPath;
+    }
+
+    @JsonIgnore
+    public Optional<String> getPathMatchPattern()
+    {
+        return Optional.ofNullable(pathMatchPattern);
+    }
+
+    @JsonIgnore
+    public Optional<String> getLastPath()
+    {
+        return Optional.ofNullable(lastPath);
+    }
+
+    /**
+     * Returns the watermark of this prefix, or empty if no file under it has been loaded.
+     */
+    @JsonIgnore
+    public Optional<ModifiedTimeWatermark> getWatermark()
+    {
+        return ModifiedTimeWatermark.of(Optional.ofNullable(lastModified), Optional.ofNullable(lastModifiedPath));
+    }
+
+    public PathPrefix withLastPath(final String lastPath)
+    {
+        return new PathPrefix(prefix, pathMatchPattern, lastPath, lastModified, lastModifiedPath);
+    }
+
+    public PathPrefix withWatermark(final ModifiedTimeWatermark watermark)
+    {
+        return new PathPrefix(prefix, pathMatchPattern, lastPath, watermark.getLastModified(), watermark.getPath());
+    }
+
+    @Override
+    public String toString()
+    {
+        return prefix;
+    }
+}
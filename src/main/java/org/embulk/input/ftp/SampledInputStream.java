@@ -0,0 +1,95 @@
+package org.embulk.input.ftp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads at most the first bytes of a stream for preview and guess.
+ *
+ * When the stream is truncated, {@code onTruncated} runs once before the stream is closed, so that
+ * the rest of the transfer can be aborted instead of being read to its end.
+ */
+public class SampledInputStream
+        extends FilterInputStream
+{
+    private final Runnable onTruncated;
+    private long remaining;
+    private boolean finished;
+
+    public SampledInputStream(final InputStream in, final long sampleBytes, final Runnable onTruncated)
+    {
+        super(in);
+        this.remaining = sampleBytes;
+        this.onTruncated = onTruncated;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        final byte[] b = new byte[1];
+        final int n = read(b, 0, 1);
+        return n < 0 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (finished) {
+            return -1;
+        }
+        if (remaining <= 0) {
+            truncate();
+            return -1;
+        }
+        final int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n < 0) {
+            finished = true;
+            return -1;
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException
+    {
+        final byte[] b = new byte[(int) Math.min(Math.max(n, 0L), 8192L)];
+        final int skipped = read(b, 0, b.length);
+        return skipped < 0 ? 0L : skipped;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return finished ? 0 : (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            if (!finished) {
+                truncate();
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private void truncate()
+    {
+        finished = true;
+        onTruncated.run();
+    }
+}
@@ -0,0 +1,266 @@
+package org.embulk.input.ftp;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+import it.sauronsoftware.ftp4j.FTPReply;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Checksums of files computed by the server, with the HASH command or the older XSHA256, XSHA1,
+ * XMD5 and XCRC commands, whichever FEAT reports.
+ *
+ * A checksum is formatted as {@code <algorithm>:<lowercase hex>}, such as {@code sha-256:9f86d0...},
+ * so that checksums of different algorithms never match.
+ */
+public class ServerChecksum
+{
+    public enum Algorithm
+    {
+        // in the order of preference
+        SHA_256("SHA-256", "XSHA256", 64),
+        SHA_1("SHA-1", "XSHA1", 40),
+        MD5("MD5", "XMD5", 32),
+        CRC32("CRC32", "XCRC", 8);
+
+        private final String name;
+        private final String command;
+        private final int hexLength;
+
+        Algorithm(final String name, final String command, final int hexLength)
+        {
+            this.name = name;
+            this.command = command;
+            this.hexLength = hexLength;
+        }
+
+        public Digest newDigest()
+        {
+            if (this == CRC32) {
+                final CRC32 crc = new CRC32();
+                return new Digest() {
+                    @Override
+                    public void update(final byte[] b, final int off, final int len)
+                    {
+                        crc.update(b, off, len);
+                    }
+
+                    @Override
+                    public String format()
+                    {
+                        return ServerChecksum.format(Algorithm.this, String.format("%08x", crc.getValue()));
+                    }
+                };
+            }
+            final MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance(name);
+            }
+            catch (final NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return new Digest() {
+                @Override
+                public void update(final byte[] b, final int off, final int len)
+                {
+                    digest.update(b, off, len);
+                }
+
+                @Override
+                public String format()
+                {
+                    final StringBuilder hex = new StringBuilder();
+                    for (final byte b : digest.digest()) {
+                        hex.append(String.format("%02x", b & 0xff));
+                    }
+                    return ServerChecksum.format(Algorithm.this, hex.toString());
+                }
+            };
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    /**
+     * Computes the checksum of the bytes of a file, to compare with the one from the server.
+     */
+    public interface Digest
+    {
+        void update(byte[] b, int off, int len);
+
+        String format();
+    }
+
+    // the method of each server, so that FEAT is sent once for each server in the JVM
+    private static final Map<String, Optional<ServerChecksum>> METHODS = new ConcurrentHashMap<>();
+
+    private final Algorithm algorithm;
+    private final boolean hashCommand;
+    private final boolean selected;
+
+    ServerChecksum(final Algorithm algorithm, final boolean hashCommand, final boolean selected)
+    {
+        this.algorithm = algorithm;
+        this.hashCommand = hashCommand;
+        this.selected = selected;
+    }
+
+    public Algorithm getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    /**
+     * Returns the checksum method the server of {@code client} supports, asking it with FEAT once.
+     */
+    public static Optional<ServerChecksum> of(final Logger log, final FTPClient client)
+    {
+        final String key = client.getHost() + ":" + client.getPort();
+        final Optional<ServerChecksum> known = METHODS.get(key);
+        if (known != null) {
+            return known;
+        }
+        final Optional<ServerChecksum> method = negotiate(Arrays.asList(sendCommand(log, client, "FEAT").getMessages()));
+        if (method.isPresent()) {
+            log.info("Using {} checksums of server {} with {}", method.get().algorithm, key,
+                    method.get().hashCommand ? "HASH" : method.get().algorithm.command);
+        }
+        else {
+            log.warn("Server {} supports none of HASH, XSHA256, XSHA1, XMD5 and XCRC. Checksums are not verified", key);
+        }
+        METHODS.put(key, method);
+        return method;
+    }
+
+    /**
+     * Chooses the strongest algorithm in the reply lines of FEAT, preferring the HASH command.
+     */
+    static Optional<ServerChecksum> negotiate(final List<String> features)
+    {
+        for (final String line : features) {
+            final String feature = line.trim();
+            if (!feature.toUpperCase(Locale.ENGLISH).startsWith("HASH ")) {
+                continue;
+            }
+            // e.g. "HASH SHA-256;SHA-1*;MD5;CRC32", where * marks the current algorithm
+            final String[] names = feature.substring(5).trim().split(";");
+            for (final Algorithm algorithm : Algorithm.values()) {
+                for (final String name : names) {
+                    final boolean current = name.endsWith("*");
+                    final String bare = current ? name.substring(0, name.length() - 1) : name;
+                    if (bare.trim().equalsIgnoreCase(algorithm.name)) {
+                        return Optional.of(new ServerChecksum(algorithm, true, current));
+                    }
+                }
+            }
+        }
+        for (final Algorithm algorithm : Algorithm.values()) {
+            for (final String line : features) {
+                if (line.trim().equalsIgnoreCase(algorithm.command)) {
+                    return Optional.of(new ServerChecksum(algorithm, false, true));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Asks the server for the checksum of the whole file at {@code path}.
+     */
+    public String query(final Logger log, final FTPClient client, final String path)
+    {
+        if (hashCommand && !selected) {
+            // OPTS HASH changes the algorithm for the session, so it's sent for each query
+            sendCommand(log, client, "OPTS HASH " + algorithm.name);
+        }
+        final FTPReply reply = sendCommand(log, client, (hashCommand ? "HASH " : algorithm.command + " ") + path);
+        final Optional<String> hex = parseReply(algorithm, hashCommand, reply.getMessages());
+        if (!hex.isPresent()) {
+            throw new RuntimeException(String.format("Unexpected reply to the checksum command of file '%s': %d %s",
+                    path, reply.getCode(), String.join(" ", reply.getMessages())));
+        }
+        return format(algorithm, hex.get());
+    }
+
+    // HASH replies "213 SHA-256 0-49 <hex> <path>", and the others reply "250 <hex>" or "213 <hex>"
+    static Optional<String> parseReply(final Algorithm algorithm, final boolean hashCommand, final String[] messages)
+    {
+        if (messages.length == 0) {
+            return Optional.empty();
+        }
+        final String[] tokens = messages[messages.length - 1].trim().split("\\s+");
+        if (hashCommand) {
+            return tokens.length >= 3 && isHex(algorithm, tokens[2]) ? Optional.of(tokens[2]) : Optional.<String>empty();
+        }
+        for (final String token : tokens) {
+            if (isHex(algorithm, token)) {
+                return Optional.of(token);
+            }
+        }
+        return Optional.empty();
+    }
+
+    // A digest has all of its digits, so that an echoed path such as "2024" isn't taken for one.
+    // Only a CRC may omit leading zeros.
+    private static boolean isHex(final Algorithm algorithm, final String token)
+    {
+        if (algorithm == Algorithm.CRC32 ? token.isEmpty() || token.length() > algorithm.hexLength : token.length() != algorithm.hexLength) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if (Character.digit(token.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String format(final Algorithm algorithm, final String hex)
+    {
+        final StringBuilder padded = new StringBuilder();
+        // XCRC may omit leading zeros
+        for (int i = hex.length(); i < algorithm.hexLength; i++) {
+            padded.append('0');
+        }
+        return algorithm.name.toLowerCase(Locale.ENGLISH) + ":" + padded.append(hex.toLowerCase(Locale.ENGLISH));
+    }
+
+    private static FTPReply sendCommand(final Logger log, final FTPClient client, final String command)
+    {
+        try {
+            final FTPReply reply = client.sendCustomCommand(command);
+            if (!reply.isSuccessCode()) {
+                throw new FTPException(reply);
+            }
+            return reply;
+        }
+        catch (final FTPException ex) {
+            log.info("FTP command failed: " + ex.getCode() + " " + ex.getMessage());
+            throw new RuntimeException(ex);
+        }
+        catch (final FTPIllegalReplyException ex) {
+            log.info("FTP protocol error");
+            throw new RuntimeException(ex);
+        }
+        catch (final IOException ex) {
+            log.info("FTP network error: " + ex);
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.embulk.input.ftp;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Lets FTPS data channels resume the TLS session of the control channel.
+ *
+ * JSSE resumes a session only for the same host and port. ftp4j layers TLS on a data connection
+ * with the host and the port given by PASV, so this factory replaces them with those of the control
+ * connection. Factories are shared by every connection to the same server in the JVM, so that a new
+ * control connection resumes a session of another connection too.
+ *
+ * Resumption is counted by session ID. A handshake that returns a session ID seen before is a hit.
+ */
+public class SessionResumingSSLSocketFactory
+        extends SSLSocketFactory
+{
+    private static final ConcurrentMap<String, SessionResumingSSLSocketFactory> SHARED = new ConcurrentHashMap<>();
+    private static final int MAX_SESSION_IDS = 1024;
+
+    private final SSLSocketFactory delegate;
+    private final String host;
+    private final int port;
+    private final Set<String> sessionIds = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest)
+            {
+                return size() > MAX_SESSION_IDS;
+            }
+        });
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    SessionResumingSSLSocketFactory(final SSLSocketFactory delegate, final String host, final int port)
+    {
+        this.delegate = delegate;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Returns the factory shared for the server. {@code key} identifies the TLS configuration, and
+     * {@code factory} creates the underlying factory the first time.
+     */
+    public static SessionResumingSSLSocketFactory shared(final String key, final String host, final int port,
+            final Supplier<SSLSocketFactory> factory)
+    {
+        final String sharedKey = host + ":" + port + " " + key;
+        SessionResumingSSLSocketFactory shared = SHARED.get(sharedKey);
+        if (shared == null) {
+            final SessionResumingSSLSocketFactory created = new SessionResumingSSLSocketFactory(factory.get(), host, port);
+            shared = SHARED.putIfAbsent(sharedKey, created);
+            if (shared == null) {
+                shared = created;
+            }
+        }
+        return shared;
+    }
+
+    static Collection<SessionResumingSSLSocketFactory> sharedFactories()
+    {
+        return Collections.unmodifiableCollection(SHARED.values());
+    }
+
+    public long getResumedHandshakes()
+    {
+        return hits.get();
+    }
+
+    public long getFullHandshakes()
+    {
+        return misses.get();
+    }
+
+    @Override
+    public Socket createSocket(final Socket socket, final String host, final int port, final boolean autoClose)
+        throws IOException
+    {
+        return watch(delegate.createSocket(socket, this.host, this.port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port) throws IOException
+    {
+        return watch(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port, final InetAddress localHost, final int localPort)
+        throws IOException
+    {
+        return watch(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress host, final int port) throws IOException
+    {
+        return watch(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort)
+        throws IOException
+    {
+        return watch(delegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites()
+    {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites()
+    {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    private Socket watch(final Socket socket)
+    {
+        if (socket instanceof SSLSocket) {
+            ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(final HandshakeCompletedEvent event)
+                    {
+                        countHandshake(event.getSession().getId());
+                    }
+                });
+        }
+        return socket;
+    }
+
+    void countHandshake(final byte[] sessionId)
+    {
+        if (sessionId.length == 0) {
+            // not resumable
+            misses.incrementAndGet();
+            return;
+        }
+        final String id = new BigInteger(1, sessionId).toString(16) + "/" + sessionId.length;
+        final boolean added;
+        synchronized (sessionIds) {
+            added = sessionIds.add(id);
+        }
+        (added ? misses : hits).incrementAndGet();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("TLS sessions to %s:%d: %d resumed, %d full handshakes", host, port, hits.get(), misses.get());
+    }
+}
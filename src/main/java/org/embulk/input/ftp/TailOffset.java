@@ -0,0 +1,79 @@
+package org.embulk.input.ftp;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * How far a file was loaded in {@code incremental_mode: tail}, and its size and modification time
+ * when it was listed.
+ */
+public class TailOffset
+{
+    private final long offset;
+    private final long size;
+    private final long modifiedTime;
+
+    @JsonCreator
+    public TailOffset(
+            @JsonProperty("offset") final long offset,
+            @JsonProperty("size") final long size,
+            @JsonProperty("modified_time") final long modifiedTime)
+    {
+        this.offset = offset;
+        this.size = size;
+        this.modifiedTime = modifiedTime;
+    }
+
+    @JsonProperty("offset")
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    @JsonProperty("size")
+    public long getSize()
+    {
+        return size;
+    }
+
+    @JsonProperty("modified_time")
+    public long getModifiedTime()
+    {
+        return modifiedTime;
+    }
+
+    /**
+     * Returns the offset to continue reading the listed file from, or -1 if it has no new bytes.
+     */
+    public long nextStart(final FileEntry entry)
+    {
+        if (isReplaced(entry)) {
+            return 0L;
+        }
+        if (entry.getSize() == FileEntry.UNKNOWN) {
+            return offset;
+        }
+        if (entry.getSize() < offset) {
+            // truncated or replaced by a shorter file
+            return 0L;
+        }
+        if (entry.getSize() == offset) {
+            return -1L;
+        }
+        return offset;
+    }
+
+    // An older file was rotated in, or the file was rewritten without being appended to. Only
+    // appending makes it modified and larger.
+    private boolean isReplaced(final FileEntry entry)
+    {
+        if (modifiedTime == FileEntry.UNKNOWN || entry.getModifiedTime() == FileEntry.UNKNOWN) {
+            return false;
+        }
+        if (entry.getModifiedTime() < modifiedTime) {
+            return true;
+        }
+        return entry.getModifiedTime() != modifiedTime
+                && entry.getSize() != FileEntry.UNKNOWN && size != FileEntry.UNKNOWN && entry.getSize() <= size;
+    }
+}
@@ -0,0 +1,151 @@
+package org.embulk.input.ftp;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import org.embulk.config.ConfigException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The order of files (or splits of files) passed to tasks.
+ *
+ * Executors start tasks in the order of task indexes, so starting large files first keeps a single
+ * large file from running alone at the end of a job. The order doesn't change which files are loaded,
+ * nor {@code last_path} and the other values in the config diff.
+ */
+public enum TaskOrder
+{
+    /** The order of the listing. */
+    LISTING("listing"),
+
+    /** Larger files first. */
+    LARGEST_FIRST("largest_first"),
+
+    /** One file from each directory in turn. */
+    ROUND_ROBIN_DIRECTORIES("round_robin_directories"),
+
+    /** The largest, the smallest, the second largest, the second smallest, and so on. */
+    SIZE_INTERLEAVED("size_interleaved");
+
+    private final String name;
+
+    TaskOrder(final String name)
+    {
+        this.name = name;
+    }
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+    @JsonCreator
+    public static TaskOrder fromString(final String value)
+    {
+        for (final TaskOrder order : values()) {
+            if (order.name.equals(value)) {
+                return order;
+            }
+        }
+        throw new ConfigException(String.format(
+                "Unknown task_order '%s'. Supported values are 'listing', 'largest_first', 'round_robin_directories' and 'size_interleaved'", value));
+    }
+
+    public List<FileEntry> apply(final List<FileEntry> entries)
+    {
+        switch (this) {
+        case LARGEST_FIRST:
+            return largestFirst(entries);
+        case ROUND_ROBIN_DIRECTORIES:
+            return roundRobinDirectories(entries);
+        case SIZE_INTERLEAVED:
+            return sizeInterleaved(entries);
+        default:
+            return entries;
+        }
+    }
+
+    private static List<FileEntry> largestFirst(final List<FileEntry> entries)
+    {
+        final List<FileEntry> sorted = new ArrayList<>(entries);
+        // stable, so that entries of the same size stay in the listing order
+        Collections.sort(sorted, new Comparator<FileEntry>() {
+                @Override
+                public int compare(final FileEntry a, final FileEntry b)
+                {
+                    return Long.compare(taskSize(b), taskSize(a));
+                }
+            });
+        return sorted;
+    }
+
+    private static List<FileEntry> roundRobinDirectories(final List<FileEntry> entries)
+    {
+        final Map<String, Iterator<FileEntry>> directories = new LinkedHashMap<>();
+        {
+            final Map<String, List<FileEntry>> groups = new LinkedHashMap<>();
+            for (final FileEntry entry : entries) {
+                final String path = entry.getPath();
+                final String directory = path.substring(0, path.lastIndexOf('/') + 1);
+                List<FileEntry> group = groups.get(directory);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.put(directory, group);
+                }
+                group.add(entry);
+            }
+            for (final Map.Entry<String, List<FileEntry>> group : groups.entrySet()) {
+                directories.put(group.getKey(), group.getValue().iterator());
+            }
+        }
+
+        final List<FileEntry> ordered = new ArrayList<>(entries.size());
+        while (!directories.isEmpty()) {
+            final Iterator<Iterator<FileEntry>> it = directories.values().iterator();
+            while (it.hasNext()) {
+                final Iterator<FileEntry> group = it.next();
+                ordered.add(group.next());
+                if (!group.hasNext()) {
+                    it.remove();
+                }
+            }
+        }
+        return ordered;
+    }
+
+    private static List<FileEntry> sizeInterleaved(final List<FileEntry> entries)
+    {
+        final List<FileEntry> sorted = largestFirst(entries);
+        final List<FileEntry> ordered = new ArrayList<>(sorted.size());
+        int head = 0;
+        int tail = sorted.size() - 1;
+        while (head <= tail) {
+            ordered.add(sorted.get(head++));
+            if (head <= tail) {
+                ordered.add(sorted.get(tail--));
+            }
+        }
+        return ordered;
+    }
+
+    // Returns the number of bytes a task reads. Unknown sizes are taken as 0.
+    static long taskSize(final FileEntry entry)
+    {
+        if (entry.getEnd() != FileEntry.UNKNOWN) {
+            return entry.getEnd() - entry.getStart();
+        }
+        if (entry.getSize() == FileEntry.UNKNOWN) {
+            return 0L;
+        }
+        return entry.getSize() - entry.getStart();
+    }
+}
@@ -0,0 +1,222 @@
+package org.embulk.input.ftp;
+
+import org.embulk.config.ConfigException;
+import org.slf4j.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Applies {@code ssl_cipher_suites} and {@code ssl_data_channel_protection} to the TLS sockets of
+ * one connection. It also creates the sockets of {@code ssl_provider}.
+ *
+ * The control connection is layered on TLS before login, so once the client sends {@code PROT C}
+ * and {@link #setClearDataChannel} is called, every later layered socket is a data connection and
+ * is left in cleartext.
+ */
+public class TlsSocketFactory
+        extends SSLSocketFactory
+{
+    private final SSLSocketFactory delegate;
+    private final List<String> preferredCipherSuites;
+    private final boolean verifyHostname;
+    private volatile boolean clearDataChannel;
+
+    public TlsSocketFactory(final SSLSocketFactory delegate, final List<String> preferredCipherSuites)
+    {
+        this(delegate, preferredCipherSuites, false);
+    }
+
+    TlsSocketFactory(final SSLSocketFactory delegate, final List<String> preferredCipherSuites, final boolean verifyHostname)
+    {
+        this.delegate = delegate;
+        this.preferredCipherSuites = preferredCipherSuites;
+        this.verifyHostname = verifyHostname;
+    }
+
+    /**
+     * Returns the security provider named {@code provider}, which is the name of a registered
+     * provider or the class name of a provider on the classpath. The providers of the JVM are left
+     * as they are.
+     */
+    public static Provider findProvider(final String provider)
+    {
+        final Provider registered = Security.getProvider(provider);
+        if (registered != null) {
+            return registered;
+        }
+        for (final Provider p : Security.getProviders()) {
+            if (p.getClass().getName().equals(provider)) {
+                return p;
+            }
+        }
+        try {
+            return (Provider) Class.forName(provider).getDeclaredConstructor().newInstance();
+        }
+        catch (final ReflectiveOperationException | ClassCastException | LinkageError ex) {
+            throw new ConfigException(String.format("Unknown ssl_provider '%s'", provider), ex);
+        }
+    }
+
+    /**
+     * Creates a factory of TLS sockets implemented by {@code provider}, which verifies servers with
+     * {@code trustManagers}, and their host names too if {@code verifyHostname}.
+     */
+    public static SSLSocketFactory newSSLSocketFactory(final Logger log, final Provider provider, final TrustManager[] trustManagers,
+            final boolean verifyHostname)
+    {
+        final SSLContext context = newSSLContext(log, provider, trustManagers);
+        return new TlsSocketFactory(context.getSocketFactory(), Collections.<String>emptyList(), verifyHostname);
+    }
+
+    /**
+     * Creates a TLS context of {@code provider}, or of the most preferred provider of the JVM if
+     * null, which verifies servers with {@code trustManagers}.
+     */
+    public static SSLContext newSSLContext(final Logger log, final Provider provider, final TrustManager[] trustManagers)
+    {
+        final SSLContext context;
+        try {
+            context = provider != null ? SSLContext.getInstance("TLS", provider) : SSLContext.getInstance("TLS");
+            context.init(null, trustManagers, null);
+        }
+        catch (final NoSuchAlgorithmException ex) {
+            throw new ConfigException(String.format("ssl_provider '%s' doesn't implement TLS", provider != null ? provider.getName() : ""), ex);
+        }
+        catch (final KeyManagementException ex) {
+            throw new ConfigException(ex);
+        }
+        log.debug("Using security provider {} {}", context.getProvider().getName(), context.getProvider().getInfo());
+        return context;
+    }
+
+    /**
+     * Returns the cipher suites to enable: the supported ones of {@code preferred} in that order,
+     * followed by the rest of {@code enabled}.
+     */
+    static String[] orderCipherSuites(final List<String> preferred, final String[] supported, final String[] enabled)
+    {
+        final Set<String> supportedSet = new LinkedHashSet<>(Arrays.asList(supported));
+        final Set<String> ordered = new LinkedHashSet<>();
+        for (final String suite : preferred) {
+            if (supportedSet.contains(suite)) {
+                ordered.add(suite);
+            }
+        }
+        ordered.addAll(Arrays.asList(enabled));
+        return ordered.toArray(new String[0]);
+    }
+
+    SSLSocketFactory getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * Returns the names in {@code ssl_cipher_suites} which the JVM doesn't support.
+     */
+    public List<String> getUnsupportedCipherSuites()
+    {
+        final Set<String> supported = new LinkedHashSet<>(Arrays.asList(delegate.getSupportedCipherSuites()));
+        final List<String> unsupported = new ArrayList<>();
+        for (final String suite : preferredCipherSuites) {
+            if (!supported.contains(suite)) {
+                unsupported.add(suite);
+            }
+        }
+        return unsupported;
+    }
+
+    public void setClearDataChannel(final boolean clearDataChannel)
+    {
+        this.clearDataChannel = clearDataChannel;
+    }
+
+    @Override
+    public Socket createSocket(final Socket socket, final String host, final int port, final boolean autoClose)
+        throws IOException
+    {
+        if (clearDataChannel) {
+            return socket;
+        }
+        return configure(delegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port) throws IOException
+    {
+        return configure(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port, final InetAddress localHost, final int localPort)
+        throws IOException
+    {
+        return configure(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress host, final int port) throws IOException
+    {
+        return configure(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort)
+        throws IOException
+    {
+        return configure(delegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites()
+    {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites()
+    {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    private Socket configure(final Socket socket)
+    {
+        if (verifyHostname && socket instanceof SSLSocket) {
+            // checks the certificate against the host the socket was created for, which is the
+            // host of the control connection for data connections too
+            final SSLParameters parameters = ((SSLSocket) socket).getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            ((SSLSocket) socket).setSSLParameters(parameters);
+        }
+        if (!preferredCipherSuites.isEmpty() && socket instanceof SSLSocket) {
+            final SSLSocket ssl = (SSLSocket) socket;
+            // the handshake starts at the first read or write, so the order is still effective
+            ssl.setEnabledCipherSuites(orderCipherSuites(preferredCipherSuites, ssl.getSupportedCipherSuites(), ssl.getEnabledCipherSuites()));
+        }
+        return socket;
+    }
+
+    @Override
+    public String toString()
+    {
+        return delegate.toString();
+    }
+}
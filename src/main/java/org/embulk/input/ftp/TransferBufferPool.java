@@ -0,0 +1,157 @@
+package org.embulk.input.ftp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Chunks which {@link NioDownload}s queue received data in, shared by every download in the JVM
+ * under one memory budget.
+ *
+ * A download that can't get a chunk within the budget stops reading its data connection until
+ * another chunk is returned, so that TCP flow control slows down the servers while the readers
+ * keep going. A download holding no chunk always gets one, so that every download makes progress,
+ * and the budget may be exceeded by a chunk for each download. Returned chunks are kept for reuse
+ * while they fit in the budget, so direct buffers aren't allocated again.
+ */
+public class TransferBufferPool
+{
+    public static final long UNLIMITED = 0L;
+    // returned chunks kept without a budget
+    static final long MAX_IDLE_BYTES = 16L * 1024 * 1024;
+
+    private static TransferBufferPool shared;
+
+    private final int chunkSize;
+    private final long budget;
+    private final boolean direct;
+
+    // guarded by this
+    private final Deque<ByteBuffer> idle = new ArrayDeque<>();
+    private final List<Runnable> waiters = new ArrayList<>();
+    private long used;
+    private long peak;
+    private long waits;
+
+    TransferBufferPool(final int chunkSize, final long budget, final boolean direct)
+    {
+        this.chunkSize = chunkSize;
+        this.budget = budget;
+        this.direct = direct;
+    }
+
+    /**
+     * Returns the pool of the JVM. The budget and the kind of buffers are decided by the first call.
+     *
+     * @param budget bytes of chunks in use, or {@link #UNLIMITED}
+     * @param direct allocates direct buffers outside the heap
+     */
+    public static synchronized TransferBufferPool shared(final long budget, final boolean direct)
+    {
+        if (shared == null) {
+            shared = new TransferBufferPool(NioDownload.CHUNK_SIZE, budget, direct);
+        }
+        return shared;
+    }
+
+    /**
+     * Returns the budget used without {@code transfer_buffer_budget}, an eighth of the maximum heap.
+     */
+    public static long defaultBudget()
+    {
+        return Math.max(NioDownload.CHUNK_SIZE, Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    // null until a download has used it
+    static synchronized TransferBufferPool sharedIfCreated()
+    {
+        return shared;
+    }
+
+    public Account newAccount()
+    {
+        return new Account();
+    }
+
+    public long getBudget()
+    {
+        return budget;
+    }
+
+    public synchronized long getUsedBytes()
+    {
+        return used;
+    }
+
+    public synchronized long getPeakBytes()
+    {
+        return peak;
+    }
+
+    public synchronized long getIdleBytes()
+    {
+        return (long) idle.size() * chunkSize;
+    }
+
+    /**
+     * Returns how many times a download waited for the budget.
+     */
+    public synchronized long getWaits()
+    {
+        return waits;
+    }
+
+    /**
+     * The chunks of a download.
+     */
+    public class Account
+    {
+        private int held;  // guarded by the pool
+
+        /**
+         * Returns a cleared chunk, or null if the budget is used up while this download holds a
+         * chunk. Then {@code onAvailable} runs once, in the thread which returns a chunk.
+         */
+        public ByteBuffer acquire(final Runnable onAvailable)
+        {
+            ByteBuffer chunk;
+            synchronized (TransferBufferPool.this) {
+                if (budget != UNLIMITED && used + chunkSize > budget && held > 0) {
+                    waiters.add(onAvailable);
+                    waits++;
+                    return null;
+                }
+                held++;
+                used += chunkSize;
+                peak = Math.max(peak, used);
+                chunk = idle.pollFirst();
+            }
+            if (chunk == null) {
+                chunk = direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+            }
+            chunk.clear();
+            return chunk;
+        }
+
+        public void release(final ByteBuffer chunk)
+        {
+            final List<Runnable> woken;
+            synchronized (TransferBufferPool.this) {
+                held--;
+                used -= chunkSize;
+                final long keep = budget == UNLIMITED ? MAX_IDLE_BYTES : budget - used;
+                if ((long) (idle.size() + 1) * chunkSize <= keep) {
+                    idle.addFirst(chunk);
+                }
+                // all of them, as one may have been closed meanwhile
+                woken = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            for (final Runnable waiter : woken) {
+                waiter.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package org.embulk.input.ftp;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import org.slf4j.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Adds up the progress of every task in the JVM: files listed, queued, active and done, bytes
+ * downloaded out of the known total, the current rate, open connections and the time left.
+ *
+ * It is registered as an MBean, and logs a summary line at a fixed interval while there are files
+ * to download. Files are queued by the transaction, so a task running in another JVM than its
+ * transaction has no total. The counts are reset by each transaction, and previews use
+ * {@link #detached} progress instead.
+ */
+public class TransferProgress
+        implements TransferProgressMBean
+{
+    static final String OBJECT_NAME = "org.embulk.input.ftp:type=TransferProgress";
+    static final long RATE_WINDOW_NANOS = 5L * 1000 * 1000 * 1000;
+
+    private static TransferProgress shared;
+
+    private final LongSupplier nanoClock;
+    private final AtomicLong filesListed = new AtomicLong();
+    private final AtomicLong filesQueued = new AtomicLong();
+    private final AtomicLong filesActive = new AtomicLong();
+    private final AtomicLong filesDone = new AtomicLong();
+    private final AtomicLong filesFailed = new AtomicLong();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final AtomicLong bytesTotal = new AtomicLong();
+    private final Set<FTPClient> connections = Collections.newSetFromMap(new WeakHashMap<FTPClient, Boolean>());
+
+    private long windowStartedAt;
+    private long windowStartBytes;
+    private long lastRate = -1L;  // until the first window passes
+
+    TransferProgress(final LongSupplier nanoClock)
+    {
+        this.nanoClock = nanoClock;
+        this.windowStartedAt = nanoClock.getAsLong();
+    }
+
+    /**
+     * Returns the progress of the JVM. The log interval is decided by the first call, and 0 doesn't log.
+     */
+    public static synchronized TransferProgress shared(final Logger log, final int logIntervalSeconds)
+    {
+        if (shared == null) {
+            shared = detached();
+            shared.register(log);
+            if (logIntervalSeconds > 0) {
+                shared.startLogging(log, logIntervalSeconds);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Returns progress which is neither exposed nor logged, such as for a preview.
+     */
+    public static TransferProgress detached()
+    {
+        return new TransferProgress(new LongSupplier() {
+                @Override
+                public long getAsLong()
+                {
+                    return System.nanoTime();
+                }
+            });
+    }
+
+    /**
+     * Starts counting a job from zero. Jobs running at once in the JVM share the counts.
+     */
+    public synchronized void reset()
+    {
+        filesListed.set(0L);
+        filesQueued.set(0L);
+        filesActive.set(0L);
+        filesDone.set(0L);
+        filesFailed.set(0L);
+        bytesDone.set(0L);
+        bytesTotal.set(0L);
+        windowStartedAt = nanoClock.getAsLong();
+        windowStartBytes = 0L;
+        lastRate = -1L;
+    }
+
+    /**
+     * Forgets the files a job left queued, such as when it failed, so that the summary isn't logged
+     * between jobs.
+     */
+    public void ended()
+    {
+        filesQueued.set(0L);
+    }
+
+    public void listed(final int files)
+    {
+        filesListed.addAndGet(files);
+    }
+
+    public void queued(final List<FileEntry> entries)
+    {
+        long bytes = 0;
+        for (final FileEntry entry : entries) {
+            bytes += Math.max(0L, bytesOf(entry));
+        }
+        filesQueued.addAndGet(entries.size());
+        bytesTotal.addAndGet(bytes);
+    }
+
+    /**
+     * Counts a queued file which needn't be downloaded as done, taking its bytes out of the total.
+     */
+    public void skipped(final FileEntry entry)
+    {
+        filesQueued.decrementAndGet();
+        filesDone.incrementAndGet();
+        bytesTotal.addAndGet(-Math.max(0L, bytesOf(entry)));
+    }
+
+    public void started()
+    {
+        filesQueued.decrementAndGet();
+        filesActive.incrementAndGet();
+    }
+
+    public void finished(final boolean succeeded)
+    {
+        filesActive.decrementAndGet();
+        if (succeeded) {
+            filesDone.incrementAndGet();
+        }
+        else {
+            filesFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts {@code client} as an open connection until it is disconnected.
+     */
+    public void connected(final FTPClient client)
+    {
+        synchronized (connections) {
+            connections.add(client);
+        }
+    }
+
+    /**
+     * Counts the bytes read from the stream as bytes downloaded.
+     */
+    public InputStream count(final InputStream in)
+    {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException
+            {
+                final int b = super.read();
+                if (b >= 0) {
+                    bytesDone.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException
+            {
+                final int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytesDone.addAndGet(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    // the bytes to download of the file or its range, or FileEntry.UNKNOWN
+    static long bytesOf(final FileEntry entry)
+    {
+        if (entry.getEnd() != FileEntry.UNKNOWN) {
+            return entry.getEnd() - entry.getStart();
+        }
+        if (entry.getSize() != FileEntry.UNKNOWN) {
+            return entry.getSize() - entry.getStart();
+        }
+        return FileEntry.UNKNOWN;
+    }
+
+    @Override
+    public long getFilesListed()
+    {
+        return filesListed.get();
+    }
+
+    @Override
+    public long getFilesQueued()
+    {
+        // negative when the tasks run in another JVM than the transaction
+        return Math.max(0L, filesQueued.get());
+    }
+
+    @Override
+    public long getFilesActive()
+    {
+        return filesActive.get();
+    }
+
+    @Override
+    public long getFilesDone()
+    {
+        return filesDone.get();
+    }
+
+    @Override
+    public long getFilesFailed()
+    {
+        return filesFailed.get();
+    }
+
+    @Override
+    public long getBytesDone()
+    {
+        return bytesDone.get();
+    }
+
+    @Override
+    public long getBytesTotal()
+    {
+        return bytesTotal.get();
+    }
+
+    @Override
+    public synchronized long getBytesPerSecond()
+    {
+        final long now = nanoClock.getAsLong();
+        final long bytes = bytesDone.get();
+        final long elapsed = now - windowStartedAt;
+        if (elapsed >= RATE_WINDOW_NANOS) {
+            lastRate = (long) ((bytes - windowStartBytes) * 1e9 / elapsed);
+            windowStartedAt = now;
+            windowStartBytes = bytes;
+        }
+        if (lastRate < 0) {
+            return elapsed <= 0 ? 0L : (long) ((bytes - windowStartBytes) * 1e9 / elapsed);
+        }
+        return lastRate;
+    }
+
+    @Override
+    public long getActiveConnections()
+    {
+        final List<FTPClient> clients;
+        synchronized (connections) {
+            clients = new ArrayList<>(connections);
+        }
+        long open = 0;
+        for (final FTPClient client : clients) {
+            if (client.isConnected()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    @Override
+    public long getEtaSeconds()
+    {
+        return etaSeconds(getBytesPerSecond());
+    }
+
+    private long etaSeconds(final long bytesPerSecond)
+    {
+        final long total = bytesTotal.get();
+        if (total <= 0 || bytesPerSecond <= 0) {
+            return -1L;
+        }
+        return Math.max(0L, total - bytesDone.get()) / bytesPerSecond;
+    }
+
+    @Override
+    public long getBufferBudgetBytes()
+    {
+        final TransferBufferPool pool = TransferBufferPool.sharedIfCreated();
+        return pool == null ? 0L : pool.getBudget();
+    }
+
+    @Override
+    public long getBufferUsedBytes()
+    {
+        final TransferBufferPool pool = TransferBufferPool.sharedIfCreated();
+        return pool == null ? 0L : pool.getUsedBytes();
+    }
+
+    @Override
+    public long getBufferPeakBytes()
+    {
+        final TransferBufferPool pool = TransferBufferPool.sharedIfCreated();
+        return pool == null ? 0L : pool.getPeakBytes();
+    }
+
+    @Override
+    public long getBufferIdleBytes()
+    {
+        final TransferBufferPool pool = TransferBufferPool.sharedIfCreated();
+        return pool == null ? 0L : pool.getIdleBytes();
+    }
+
+    @Override
+    public long getBufferWaits()
+    {
+        final TransferBufferPool pool = TransferBufferPool.sharedIfCreated();
+        return pool == null ? 0L : pool.getWaits();
+    }
+
+    @Override
+    public String getSummary()
+    {
+        final long rate = getBytesPerSecond();
+        final long done = bytesDone.get();
+        final long total = bytesTotal.get();
+        final long eta = etaSeconds(rate);
+        final TransferBufferPool pool = TransferBufferPool.sharedIfCreated();
+        return String.format("Progress: %,d of %,d files done, %,d active, %,d queued, %,d failed, %s of %s%s, %s/s, %,d connections,%s ETA %s",
+                getFilesDone(), getFilesDone() + getFilesActive() + getFilesQueued() + getFilesFailed(),
+                getFilesActive(), getFilesQueued(), getFilesFailed(),
+                megabytes(done), megabytes(total), total > 0 ? String.format(" (%.1f%%)", Math.min(100.0, 100.0 * done / total)) : "",
+                megabytes(rate), getActiveConnections(),
+                pool == null ? "" : String.format(" %s in buffers,", megabytes(pool.getUsedBytes())),
+                eta < 0 ? "unknown" : String.format("%d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60));
+    }
+
+    private static String megabytes(final long bytes)
+    {
+        return String.format("%,.1f MB", bytes / 1e6);
+    }
+
+    private void register(final Logger log)
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch (final InstanceAlreadyExistsException ex) {
+            // by the plugin in another class loader
+            log.info("MBean {} is already registered. Progress of this plugin instance isn't exposed", OBJECT_NAME);
+        }
+        catch (final JMException ex) {
+            log.warn("Failed to register MBean {}", OBJECT_NAME, ex);
+        }
+    }
+
+    private void startLogging(final Logger log, final int intervalSeconds)
+    {
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable)
+                {
+                    final Thread thread = new Thread(runnable, "embulk-input-ftp-progress");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run()
+                {
+                    // quiet between jobs
+                    if (getFilesActive() > 0 || getFilesQueued() > 0) {
+                        log.info(getSummary());
+                    }
+                }
+            }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+}
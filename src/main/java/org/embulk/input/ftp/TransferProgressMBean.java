@@ -0,0 +1,55 @@
+package org.embulk.input.ftp;
+
+/**
+ * The JMX view of {@link TransferProgress}, registered as
+ * {@code org.embulk.input.ftp:type=TransferProgress}.
+ */
+public interface TransferProgressMBean
+{
+    long getFilesListed();
+
+    long getFilesQueued();
+
+    long getFilesActive();
+
+    long getFilesDone();
+
+    long getFilesFailed();
+
+    long getBytesDone();
+
+    /**
+     * Returns the bytes of the queued files whose size is known.
+     */
+    long getBytesTotal();
+
+    /**
+     * Returns the bytes per second downloaded by all tasks over the last few seconds.
+     */
+    long getBytesPerSecond();
+
+    long getActiveConnections();
+
+    /**
+     * Returns the seconds to download the rest at the current rate, or -1 if it's unknown.
+     */
+    long getEtaSeconds();
+
+    /**
+     * Returns the budget of {@link TransferBufferPool} in bytes, or 0 if it's unlimited or not used.
+     */
+    long getBufferBudgetBytes();
+
+    long getBufferUsedBytes();
+
+    long getBufferPeakBytes();
+
+    long getBufferIdleBytes();
+
+    /**
+     * Returns how many times a download waited for the buffer budget.
+     */
+    long getBufferWaits();
+
+    String getSummary();
+}
@@ -0,0 +1,144 @@
+package org.embulk.input.ftp;
+
+import it.sauronsoftware.ftp4j.FTPConnector;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Connects with the socket options of the task.
+ *
+ * The receive buffer of a data connection limits the TCP window, so it is set before connecting.
+ * In auto mode it is sized to the bandwidth-delay product of {@code target_bandwidth_mbps} and the
+ * round trip time measured while connecting the control connection.
+ */
+public class TunedConnector
+        extends FTPConnector
+{
+    public static final int AUTO = 0;
+    static final int DEFAULT_BUFFER_SIZE = 512 * 1024;  // as ftp4j
+    static final int MIN_AUTO_BUFFER_SIZE = 64 * 1024;
+    static final int MAX_AUTO_BUFFER_SIZE = 64 * 1024 * 1024;
+
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+    private final int receiveBufferSize;
+    private final long targetBytesPerSecond;
+
+    private volatile Socket connecting;
+    private volatile long roundTripNanos;
+    private volatile int effectiveWindow;
+
+    /**
+     * @param receiveBufferSize the receive buffer size of data connections in bytes, or {@link #AUTO}
+     */
+    public TunedConnector(final boolean tcpNoDelay, final boolean keepAlive, final int receiveBufferSize, final long targetBytesPerSecond)
+    {
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+        this.receiveBufferSize = receiveBufferSize;
+        this.targetBytesPerSecond = targetBytesPerSecond;
+    }
+
+    /**
+     * Returns the round trip time measured by connecting the control connection, or 0.
+     */
+    public long getRoundTripNanos()
+    {
+        return roundTripNanos;
+    }
+
+    /**
+     * Returns the receive buffer size the OS gave to the last data connection, or 0.
+     */
+    public int getEffectiveWindow()
+    {
+        return effectiveWindow;
+    }
+
+    /**
+     * Returns the receive buffer size requested for data connections.
+     */
+    public int getRequestedWindow()
+    {
+        if (receiveBufferSize != AUTO) {
+            return receiveBufferSize;
+        }
+        if (roundTripNanos <= 0) {
+            return DEFAULT_BUFFER_SIZE;
+        }
+        return autoBufferSize(roundTripNanos, targetBytesPerSecond);
+    }
+
+    static int autoBufferSize(final long roundTripNanos, final long targetBytesPerSecond)
+    {
+        final double product = (double) targetBytesPerSecond * roundTripNanos / 1e9;
+        return (int) Math.max(MIN_AUTO_BUFFER_SIZE, Math.min(MAX_AUTO_BUFFER_SIZE, product));
+    }
+
+    @Override
+    public Socket connectForCommunicationChannel(final String host, final int port) throws IOException
+    {
+        final Socket socket = newSocket();
+        connecting = socket;
+        try {
+            final InetSocketAddress address = new InetSocketAddress(host, port);
+            final long startedAt = System.nanoTime();
+            socket.connect(address, connectionTimeout * 1000);
+            // a TCP handshake takes one round trip
+            roundTripNanos = System.nanoTime() - startedAt;
+            return socket;
+        }
+        catch (final IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        finally {
+            connecting = null;
+        }
+    }
+
+    @Override
+    public Socket connectForDataTransferChannel(final String host, final int port) throws IOException
+    {
+        final Socket socket = newSocket();
+        try {
+            final int size = getRequestedWindow();
+            // window scaling is negotiated in the handshake, so this must precede connect
+            socket.setReceiveBufferSize(size);
+            socket.setSendBufferSize(size);
+            socket.connect(new InetSocketAddress(host, port), connectionTimeout * 1000);
+            effectiveWindow = socket.getReceiveBufferSize();
+            return socket;
+        }
+        catch (final IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void abortConnectForCommunicationChannel()
+    {
+        final Socket socket = connecting;
+        if (socket != null) {
+            try {
+                socket.close();
+            }
+            catch (final IOException ex) {
+                // do nothing
+            }
+        }
+    }
+
+    private Socket newSocket() throws IOException
+    {
+        final Socket socket = new Socket();
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setKeepAlive(keepAlive);
+        socket.setSoTimeout(readTimeout * 1000);
+        socket.setSoLinger(true, closeTimeout);
+        return socket;
+    }
+}
@@ -0,0 +1,225 @@
+package org.embulk.input.ftp;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A minimal FTP server serving files from memory, with the commands ftp4j sends to download.
+ *
+ * It accepts any user and supports passive mode only.
+ */
+class FakeFtpServer
+        implements Closeable
+{
+    private final Map<String, byte[]> files;
+    private final ServerSocket listener;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Set<Closeable> connections = ConcurrentHashMap.newKeySet();
+
+    private FakeFtpServer(final Map<String, byte[]> files) throws IOException
+    {
+        this.files = files;
+        this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    static FakeFtpServer start(final Map<String, byte[]> files) throws IOException
+    {
+        final FakeFtpServer server = new FakeFtpServer(files);
+        server.executor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    server.accept();
+                }
+            });
+        return server;
+    }
+
+    int getPort()
+    {
+        return listener.getLocalPort();
+    }
+
+    private void accept()
+    {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = listener.accept();
+            }
+            catch (final IOException ex) {
+                return;  // closed
+            }
+            connections.add(socket);
+            executor.execute(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            new Session(socket).serve();
+                        }
+                        catch (final IOException ex) {
+                            // the client has gone
+                        }
+                        finally {
+                            closeQuietly(socket);
+                            connections.remove(socket);
+                        }
+                    }
+                });
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        listener.close();
+        for (final Closeable connection : connections) {
+            closeQuietly(connection);
+        }
+        executor.shutdownNow();
+    }
+
+    static void closeQuietly(final Closeable closeable)
+    {
+        try {
+            closeable.close();
+        }
+        catch (final IOException ex) {
+            // do nothing
+        }
+    }
+
+    private class Session
+    {
+        private final BufferedReader in;
+        private final OutputStream out;
+        private ServerSocket passive;
+        private long restart;
+
+        Session(final Socket socket) throws IOException
+        {
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = socket.getOutputStream();
+        }
+
+        void serve() throws IOException
+        {
+            try {
+                reply("220 Fake FTP server ready.");
+                String line;
+                while ((line = in.readLine()) != null) {
+                    final int space = line.indexOf(' ');
+                    final String verb = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+                    final String argument = space < 0 ? "" : line.substring(space + 1);
+                    if (!command(verb, argument)) {
+                        return;
+                    }
+                }
+            }
+            finally {
+                if (passive != null) {
+                    closeQuietly(passive);
+                }
+            }
+        }
+
+        // Returns false after QUIT
+        private boolean command(final String verb, final String argument) throws IOException
+        {
+            switch (verb) {
+            case "USER":
+                reply("331 Password required.");
+                return true;
+            case "PASS":
+                reply("230 Logged in.");
+                return true;
+            case "TYPE":
+                reply("200 Type set.");
+                return true;
+            case "NOOP":
+                reply("200 OK.");
+                return true;
+            case "PWD":
+                reply("257 \"/\" is the current directory.");
+                return true;
+            case "SIZE":
+                if (!files.containsKey(argument)) {
+                    reply("550 No such file.");
+                    return true;
+                }
+                reply("213 " + files.get(argument).length);
+                return true;
+            case "PASV":
+                if (passive != null) {
+                    closeQuietly(passive);
+                }
+                passive = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                connections.add(passive);
+                final int port = passive.getLocalPort();
+                reply(String.format("227 Entering Passive Mode (127,0,0,1,%d,%d).", port / 256, port % 256));
+                return true;
+            case "REST":
+                restart = Long.parseLong(argument);
+                reply("350 Restarting at " + restart + ".");
+                return true;
+            case "RETR":
+                retrieve(argument);
+                return true;
+            case "QUIT":
+                reply("221 Goodbye.");
+                return false;
+            default:
+                reply("502 Command not implemented.");
+                return true;
+            }
+        }
+
+        private void retrieve(final String path) throws IOException
+        {
+            final long offset = restart;
+            restart = 0L;
+            final byte[] data = files.get(path);
+            if (data == null || passive == null) {
+                reply(data == null ? "550 No such file." : "425 Use PASV first.");
+                return;
+            }
+            try (final ServerSocket listening = passive; final Socket socket = accept(listening)) {
+                passive = null;
+                reply("150 Opening BINARY mode data connection.");
+                try {
+                    socket.getOutputStream().write(data, (int) offset, data.length - (int) offset);
+                }
+                catch (final IOException ex) {
+                    reply("426 Connection closed; transfer aborted.");
+                    return;
+                }
+            }
+            reply("226 Transfer complete.");
+        }
+
+        private Socket accept(final ServerSocket listening) throws IOException
+        {
+            listening.setSoTimeout(10 * 1000);
+            return listening.accept();
+        }
+
+        private void reply(final String reply) throws IOException
+        {
+            out.write((reply + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+}
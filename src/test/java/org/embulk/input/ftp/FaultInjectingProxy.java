@@ -0,0 +1,519 @@
+package org.embulk.input.ftp;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A TCP proxy in front of an FTP server that injects faults, for testing retries and resumes.
+ *
+ * The control connection is forwarded line by line, and the replies to PASV and EPSV are rewritten
+ * so that data connections pass through the proxy too. Data connections go to the host of the
+ * control connection, as ftp4j does, and active mode (PORT) isn't supported.
+ *
+ * A data fault applies to the bytes from the server of the next data connection, in the order of
+ * PASV and EPSV commands. A control fault applies once to the next command with its verb. The
+ * proxy counts the bytes it forwarded from the server on data connections and the offsets of REST
+ * commands, so that a test can measure how much a recovery downloaded again.
+ */
+class FaultInjectingProxy
+        implements Closeable
+{
+    private static final Pattern PASV_REPLY = Pattern.compile("^227 .*\\d+,\\d+,\\d+,\\d+,(\\d+),(\\d+)");
+    private static final Pattern EPSV_REPLY = Pattern.compile("^229 .*\\(\\|\\|\\|(\\d+)\\|\\)");
+    private static final int DATA_ACCEPT_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final String upstreamHost;
+    private final int upstreamPort;
+    private final ServerSocket listener;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Set<Closeable> connections = ConcurrentHashMap.newKeySet();
+    private final Queue<DataFault> dataFaults = new ConcurrentLinkedQueue<>();
+    private final List<ControlFault> controlFaults = new ArrayList<>();
+    private final List<Long> restOffsets = Collections.synchronizedList(new ArrayList<Long>());
+    private final AtomicLong dataBytes = new AtomicLong();
+    private final AtomicInteger dataConnections = new AtomicInteger();
+    private final AtomicInteger controlConnections = new AtomicInteger();
+    private volatile long latencyMillis;
+    private volatile long bytesPerSecond;
+    private volatile boolean closed;
+
+    private FaultInjectingProxy(final String upstreamHost, final int upstreamPort) throws IOException
+    {
+        this.upstreamHost = upstreamHost;
+        this.upstreamPort = upstreamPort;
+        this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Starts a proxy on a loopback port, forwarding to the FTP server at {@code host:port}.
+     */
+    static FaultInjectingProxy start(final String host, final int port) throws IOException
+    {
+        final FaultInjectingProxy proxy = new FaultInjectingProxy(host, port);
+        proxy.executor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    proxy.accept();
+                }
+            });
+        return proxy;
+    }
+
+    int getPort()
+    {
+        return listener.getLocalPort();
+    }
+
+    /**
+     * Delays every reply on the control connection and the first bytes of every data connection.
+     */
+    FaultInjectingProxy withLatency(final long millis)
+    {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Caps the bytes per second from the server on each data connection, or 0 to not cap them.
+     */
+    FaultInjectingProxy withBandwidth(final long bytesPerSecond)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Resets the next data connection with a TCP RST after forwarding {@code bytes} bytes and then
+     * waiting for {@code read}, which the test counts down when the client has read them. The RST
+     * discards the bytes the client hasn't read, so this makes the offset of the resume known.
+     */
+    FaultInjectingProxy resetDataAfter(final long bytes, final CountDownLatch read)
+    {
+        dataFaults.add(new DataFault(bytes, false, read));
+        return this;
+    }
+
+    /**
+     * Stops forwarding the next data connection after {@code bytes} bytes, keeping it open until
+     * the client closes it.
+     */
+    FaultInjectingProxy stallDataAfter(final long bytes)
+    {
+        dataFaults.add(new DataFault(bytes, true, null));
+        return this;
+    }
+
+    /**
+     * Answers the next command with {@code verb} by {@code reply} instead of forwarding it. A 421
+     * reply closes the control connection after it, as a server shutting down does.
+     */
+    FaultInjectingProxy replyOnce(final String verb, final String reply)
+    {
+        synchronized (controlFaults) {
+            controlFaults.add(new ControlFault(verb, reply));
+        }
+        return this;
+    }
+
+    /**
+     * Closes the control connection when the client sends the next command with {@code verb}.
+     */
+    FaultInjectingProxy dropOnce(final String verb)
+    {
+        synchronized (controlFaults) {
+            controlFaults.add(new ControlFault(verb, null));
+        }
+        return this;
+    }
+
+    /**
+     * Returns the bytes forwarded from the server on all data connections.
+     */
+    long getDataBytes()
+    {
+        return dataBytes.get();
+    }
+
+    int getDataConnections()
+    {
+        return dataConnections.get();
+    }
+
+    int getControlConnections()
+    {
+        return controlConnections.get();
+    }
+
+    List<Long> getRestOffsets()
+    {
+        synchronized (restOffsets) {
+            return new ArrayList<>(restOffsets);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        listener.close();
+        for (final Closeable connection : connections) {
+            closeQuietly(connection);
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept()
+    {
+        while (true) {
+            final Socket client;
+            try {
+                client = listener.accept();
+            }
+            catch (final IOException ex) {
+                return;  // closed
+            }
+            connections.add(client);
+            executor.execute(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        Socket server = null;
+                        try {
+                            server = connect(upstreamPort);
+                            controlConnections.incrementAndGet();
+                            forwardCommands(client, server);
+                        }
+                        catch (final IOException ex) {
+                            // either side has gone
+                        }
+                        finally {
+                            closeQuietly(client);
+                            if (server != null) {
+                                closeQuietly(server);
+                            }
+                        }
+                    }
+                });
+        }
+    }
+
+    private Socket connect(final int port) throws IOException
+    {
+        final Socket socket = new Socket();
+        connections.add(socket);
+        socket.connect(new InetSocketAddress(upstreamHost, port));
+        return socket;
+    }
+
+    private void forwardCommands(final Socket client, final Socket server) throws IOException
+    {
+        final BufferedReader commands = reader(client);
+        final OutputStream toServer = server.getOutputStream();
+        final OutputStream toClient = client.getOutputStream();
+        executor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        forwardReplies(server, toClient);
+                    }
+                    catch (final IOException ex) {
+                        // either side has gone
+                    }
+                    finally {
+                        closeQuietly(client);
+                        closeQuietly(server);
+                    }
+                }
+            });
+
+        String line;
+        while ((line = commands.readLine()) != null) {
+            final int space = line.indexOf(' ');
+            final String verb = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ENGLISH);
+            if (verb.equals("REST")) {
+                restOffsets.add(Long.parseLong(line.substring(space + 1).trim()));
+            }
+            final ControlFault fault = takeControlFault(verb);
+            if (fault != null && fault.reply == null) {
+                return;
+            }
+            if (fault != null) {
+                writeLine(toClient, fault.reply);
+                if (fault.reply.startsWith("421")) {
+                    return;
+                }
+                continue;
+            }
+            writeLine(toServer, line);
+        }
+    }
+
+    private void forwardReplies(final Socket server, final OutputStream toClient) throws IOException
+    {
+        final BufferedReader replies = reader(server);
+        String multiLineEnd = null;
+        String line;
+        while ((line = replies.readLine()) != null) {
+            if (multiLineEnd == null) {
+                // the first line of a reply
+                sleep(latencyMillis);
+                if (line.length() > 3 && line.charAt(3) == '-') {
+                    multiLineEnd = line.substring(0, 3) + " ";
+                }
+            }
+            else if (line.startsWith(multiLineEnd)) {
+                multiLineEnd = null;
+            }
+            writeLine(toClient, rewritePassiveReply(line));
+        }
+    }
+
+    private String rewritePassiveReply(final String line) throws IOException
+    {
+        final Matcher pasv = PASV_REPLY.matcher(line);
+        if (pasv.find()) {
+            final int port = relayData(Integer.parseInt(pasv.group(1)) * 256 + Integer.parseInt(pasv.group(2)));
+            return String.format("227 Entering Passive Mode (127,0,0,1,%d,%d).", port / 256, port % 256);
+        }
+        final Matcher epsv = EPSV_REPLY.matcher(line);
+        if (epsv.find()) {
+            final int port = relayData(Integer.parseInt(epsv.group(1)));
+            return String.format("229 Entering Extended Passive Mode (|||%d|)", port);
+        }
+        return line;
+    }
+
+    // Listens for the data connection of the client and relays it to the port of the server
+    private int relayData(final int serverPort) throws IOException
+    {
+        final DataFault fault = dataFaults.poll();
+        final ServerSocket relay = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        connections.add(relay);
+        relay.setSoTimeout(DATA_ACCEPT_TIMEOUT_MILLIS);
+        executor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    Socket client = null;
+                    Socket server = null;
+                    try {
+                        client = relay.accept();
+                        connections.add(client);
+                        server = connect(serverPort);
+                        dataConnections.incrementAndGet();
+                        forwardData(client, server, fault);
+                    }
+                    catch (final IOException ex) {
+                        // either side has gone
+                    }
+                    finally {
+                        closeQuietly(relay);
+                        if (client != null) {
+                            closeQuietly(client);
+                        }
+                        if (server != null) {
+                            closeQuietly(server);
+                        }
+                    }
+                }
+            });
+        return relay.getLocalPort();
+    }
+
+    private void forwardData(final Socket client, final Socket server, final DataFault fault) throws IOException
+    {
+        // bytes from the client, as of STOR, pass without faults
+        executor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        final InputStream in = client.getInputStream();
+                        final OutputStream out = server.getOutputStream();
+                        final byte[] buffer = new byte[8192];
+                        int n;
+                        while ((n = in.read(buffer)) >= 0) {
+                            out.write(buffer, 0, n);
+                        }
+                    }
+                    catch (final IOException ex) {
+                        // either side has gone
+                    }
+                    finally {
+                        closeQuietly(client);
+                        closeQuietly(server);
+                    }
+                }
+            });
+
+        final InputStream in = server.getInputStream();
+        final OutputStream out = client.getOutputStream();
+        final byte[] buffer = new byte[8192];
+        final long startedAt = System.nanoTime();
+        long forwarded = 0;
+        sleep(latencyMillis);
+        while (true) {
+            if (fault != null && forwarded >= fault.offset) {
+                out.flush();
+                injectDataFault(client, fault);
+                return;
+            }
+            final int limit = fault == null ? buffer.length : (int) Math.min(buffer.length, fault.offset - forwarded);
+            final int n = in.read(buffer, 0, limit);
+            if (n < 0) {
+                return;
+            }
+            // counted before written, so that a client at EOF sees all of its bytes counted
+            dataBytes.addAndGet(n);
+            out.write(buffer, 0, n);
+            forwarded += n;
+            throttle(startedAt, forwarded);
+        }
+    }
+
+    private void injectDataFault(final Socket client, final DataFault fault) throws IOException
+    {
+        if (!fault.stall) {
+            if (fault.read != null) {
+                await(fault.read);
+            }
+            // a zero linger timeout sends RST instead of FIN
+            client.setSoLinger(true, 0);
+            client.close();
+            return;
+        }
+        // the thread forwarding the other direction closes the socket when the client gives up
+        while (!client.isClosed() && !closed) {
+            sleep(50);
+        }
+    }
+
+    private void throttle(final long startedAt, final long forwarded)
+    {
+        final long rate = bytesPerSecond;
+        if (rate <= 0) {
+            return;
+        }
+        final long dueNanos = startedAt + TimeUnit.SECONDS.toNanos(1) * forwarded / rate;
+        final long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            sleep(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        }
+    }
+
+    private ControlFault takeControlFault(final String verb)
+    {
+        synchronized (controlFaults) {
+            final Iterator<ControlFault> faults = controlFaults.iterator();
+            while (faults.hasNext()) {
+                final ControlFault fault = faults.next();
+                if (fault.verb.equalsIgnoreCase(verb)) {
+                    faults.remove();
+                    return fault;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static BufferedReader reader(final Socket socket) throws IOException
+    {
+        // ISO-8859-1 passes the bytes of UTF-8 paths unchanged
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+    }
+
+    private static void writeLine(final OutputStream out, final String line) throws IOException
+    {
+        synchronized (out) {
+            out.write((line + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+    }
+
+    private static void await(final CountDownLatch latch)
+    {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        }
+        catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(final long millis)
+    {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        }
+        catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable)
+    {
+        try {
+            closeable.close();
+        }
+        catch (final IOException ex) {
+            // do nothing
+        }
+    }
+
+    private static class DataFault
+    {
+        private final long offset;
+        private final boolean stall;
+        private final CountDownLatch read;  // null not to wait for the client
+
+        DataFault(final long offset, final boolean stall, final CountDownLatch read)
+        {
+            this.offset = offset;
+            this.stall = stall;
+            this.read = read;
+        }
+    }
+
+    private static class ControlFault
+    {
+        private final String verb;
+        private final String reply;  // null to drop the connection
+
+        ControlFault(final String verb, final String reply)
+        {
+            this.verb = verb;
+            this.reply = reply;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestBatchLimit
+{
+    @Test
+    public void testMaxFiles()
+    {
+        final BatchLimit limit = new BatchLimit(Optional.of(2), Optional.<Long>empty()).newCounter();
+        assertTrue(limit.tryAdd(100L));
+        assertTrue(limit.tryAdd(100L));
+        assertFalse(limit.tryAdd(100L));
+    }
+
+    @Test
+    public void testMaxBytes()
+    {
+        final BatchLimit limit = new BatchLimit(Optional.<Integer>empty(), Optional.of(150L)).newCounter();
+        assertTrue(limit.tryAdd(100L));
+        assertTrue(limit.tryAdd(FileEntry.UNKNOWN));
+        assertFalse(limit.tryAdd(100L));
+        assertTrue(limit.tryAdd(50L));
+    }
+
+    @Test
+    public void testAlwaysAcceptsFirstFile()
+    {
+        final BatchLimit limit = new BatchLimit(Optional.of(0), Optional.of(10L)).newCounter();
+        assertTrue(limit.tryAdd(1000L));
+        assertFalse(limit.tryAdd(1L));
+    }
+}
@@ -1,5 +1,211 @@
 package org.embulk.input.ftp;
 
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class TestBlockingTransfer
 {
+    @Test
+    public void testReadsUntilTransferReturns() throws Exception
+    {
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final BlockingTransfer transfer = BlockingTransfer.submit(executor, writer(new Writing() {
+                    @Override
+                    public void write(final OutputStream out) throws IOException
+                    {
+                        out.write("hello ".getBytes(StandardCharsets.UTF_8));
+                        out.write("world".getBytes(StandardCharsets.UTF_8));
+                    }
+                }));
+            assertEquals(readAll(Channels.newInputStream(transfer.getReaderChannel())), "hello world");
+            // the transfer thread doesn't wait for itself after closing the writer
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertTrue(transfer.isDone());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedTransferFailsReader() throws Exception
+    {
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final BlockingTransfer transfer = BlockingTransfer.submit(executor, writer(new Writing() {
+                    @Override
+                    public void write(final OutputStream out) throws IOException
+                    {
+                        out.write("partial".getBytes(StandardCharsets.UTF_8));
+                        throw new IOException("connection reset");
+                    }
+                }));
+            try {
+                readAll(Channels.newInputStream(transfer.getReaderChannel()));
+                fail();
+            }
+            catch (final UncheckedIOException ex) {
+                assertEquals(ex.getCause().getMessage(), "connection reset");
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInterruptedReaderClosesChannel() throws Exception
+    {
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final CountDownLatch written = new CountDownLatch(1);
+            final AtomicReference<IOException> writeFailure = new AtomicReference<>();
+            final BlockingTransfer transfer = BlockingTransfer.submit(executor, writer(new Writing() {
+                    @Override
+                    public void write(final OutputStream out) throws IOException
+                    {
+                        try {
+                            out.write(1);
+                            written.countDown();
+                            out.write(2);  // blocks until the reader reads or closes the channel
+                        }
+                        catch (final IOException ex) {
+                            writeFailure.set(ex);
+                            throw ex;
+                        }
+                    }
+                }));
+            final InputStream in = Channels.newInputStream(transfer.getReaderChannel());
+            assertEquals(in.read(), 1);
+            written.await();
+            Thread.currentThread().interrupt();
+            try {
+                in.read();
+                fail();
+            }
+            catch (final ClosedByInterruptException ex) {
+                assertTrue(Thread.interrupted());
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertTrue(writeFailure.get() instanceof ClosedByInterruptException);
+        }
+        finally {
+            Thread.interrupted();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInterruptedWriterStops() throws Exception
+    {
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final AtomicReference<IOException> writeFailure = new AtomicReference<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        BlockingTransfer.submit(executor, writer(new Writing() {
+                @Override
+                public void write(final OutputStream out) throws IOException
+                {
+                    started.countDown();
+                    try {
+                        out.write(1);  // nobody reads
+                    }
+                    catch (final IOException ex) {
+                        writeFailure.set(ex);
+                        throw ex;
+                    }
+                }
+            }));
+        started.await();
+        executor.shutdownNow();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(writeFailure.get() instanceof ClosedByInterruptException);
+    }
+
+    @Test
+    public void testWriterFailsAfterReaderCloses() throws Exception
+    {
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final AtomicReference<IOException> writeFailure = new AtomicReference<>();
+            final BlockingTransfer transfer = BlockingTransfer.submit(executor, writer(new Writing() {
+                    @Override
+                    public void write(final OutputStream out) throws IOException
+                    {
+                        try {
+                            out.write(1);
+                        }
+                        catch (final IOException ex) {
+                            writeFailure.set(ex);
+                            throw ex;
+                        }
+                    }
+                }));
+            transfer.getReaderChannel().close();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertTrue(writeFailure.get() instanceof ClosedChannelException);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface Writing
+    {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static Function<BlockingTransfer, Runnable> writer(final Writing writing)
+    {
+        return new Function<BlockingTransfer, Runnable>() {
+            @Override
+            public Runnable apply(final BlockingTransfer transfer)
+            {
+                return new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            writing.write(Channels.newOutputStream(transfer.getWriterChannel()));
+                        }
+                        catch (final IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    private static String readAll(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            out.write(b);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
 }
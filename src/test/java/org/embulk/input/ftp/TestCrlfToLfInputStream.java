@@ -0,0 +1,74 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestCrlfToLfInputStream
+{
+    @Test
+    public void testConvertsCrlf() throws IOException
+    {
+        assertEquals(convert("a\r\nb\r\n\r\nc", 1024, 1024), "a\nb\n\nc");
+    }
+
+    @Test
+    public void testKeepsLoneCrAndLf() throws IOException
+    {
+        assertEquals(convert("a\rb\nc\r\r\nd\r", 1024, 1024), "a\rb\nc\r\nd\r");
+    }
+
+    @Test
+    public void testCrlfAcrossReads() throws IOException
+    {
+        final String data = "ab\r\ncd\r\r\n\r\ne\r";
+        final String expected = "ab\ncd\r\n\ne\r";
+        for (int chunk = 1; chunk <= data.length(); chunk++) {
+            for (int buffer = 1; buffer <= data.length(); buffer++) {
+                assertEquals(convert(data, chunk, buffer), expected);
+            }
+        }
+    }
+
+    @Test
+    public void testReadsSingleBytes() throws IOException
+    {
+        final InputStream in = new CrlfToLfInputStream(new ByteArrayInputStream("a\r\n\rb".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(in.read(), 'a');
+        assertEquals(in.read(), '\n');
+        assertEquals(in.read(), '\r');
+        assertEquals(in.read(), 'b');
+        assertEquals(in.read(), -1);
+    }
+
+    private static String convert(final String data, final int chunk, final int buffer) throws IOException
+    {
+        final InputStream in = new CrlfToLfInputStream(chunked(data.getBytes(StandardCharsets.UTF_8), chunk));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] b = new byte[buffer];
+        int n;
+        while ((n = in.read(b, 0, b.length)) >= 0) {
+            out.write(b, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // returns at most chunk bytes for a read as a network stream does
+    private static InputStream chunked(final byte[] data, final int chunk)
+    {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException
+            {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+}
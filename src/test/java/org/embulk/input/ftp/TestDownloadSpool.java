@@ -0,0 +1,158 @@
+package org.embulk.input.ftp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongFunction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestDownloadSpool
+{
+    private static final Logger log = LoggerFactory.getLogger(TestDownloadSpool.class);
+
+    private static final byte[] DATA = new byte[100000];
+
+    static {
+        for (int i = 0; i < DATA.length; i++) {
+            DATA[i] = (byte) i;
+        }
+    }
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException
+    {
+        directory = Files.createTempDirectory("spool");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException
+    {
+        for (final File file : directory.toFile().listFiles()) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testDeletesSpoolAtEof() throws IOException
+    {
+        final List<Long> offsets = new ArrayList<>();
+        final InputStream in = spool(1000L).open(server(offsets, DATA.length));
+        assertArrayEquals(readAll(in), DATA);
+        in.close();
+        assertEquals(offsets.size(), 1);
+        assertEquals((long) offsets.get(0), 0L);
+        assertEquals(directory.toFile().listFiles().length, 0);
+    }
+
+    @Test
+    public void testResumesFromCheckpoint() throws IOException
+    {
+        final List<Long> offsets = new ArrayList<>();
+        final InputStream failing = spool(1000L).open(server(offsets, 30000));
+        final ByteArrayOutputStream firstRun = new ByteArrayOutputStream();
+        final byte[] b = new byte[4096];
+        try {
+            int n;
+            while ((n = failing.read(b, 0, b.length)) >= 0) {
+                firstRun.write(b, 0, n);
+            }
+            fail();
+        }
+        catch (final IOException ex) {
+            failing.close();
+        }
+        assertEquals(firstRun.size(), 30000);
+
+        // the next run reads the spooled bytes and downloads only the rest
+        final InputStream resumed = spool(1000L).open(server(offsets, DATA.length));
+        assertArrayEquals(readAll(resumed), DATA);
+        resumed.close();
+        assertEquals((long) offsets.get(1), 30000L);
+        assertEquals(directory.toFile().listFiles().length, 0);
+    }
+
+    @Test
+    public void testModifiedFileStartsOver() throws IOException
+    {
+        final List<Long> offsets = new ArrayList<>();
+        final InputStream failing = spool(1000L).open(server(offsets, 30000));
+        try {
+            readAll(failing);
+            fail();
+        }
+        catch (final IOException ex) {
+            failing.close();
+        }
+        final InputStream modified = spool(2000L).open(server(offsets, DATA.length));
+        // the spool of the old content is deleted
+        assertEquals(directory.toFile().listFiles().length, 1);
+        assertArrayEquals(readAll(modified), DATA);
+        modified.close();
+        assertEquals((long) offsets.get(1), 0L);
+    }
+
+    private DownloadSpool spool(final long modifiedTime)
+    {
+        return DownloadSpool.of(log, directory, "ftp.example.com", 21, new FileEntry("/in/large.csv", DATA.length, modifiedTime));
+    }
+
+    // serves DATA from the offset, failing after failAt bytes of the file
+    private static LongFunction<InputStream> server(final List<Long> offsets, final int failAt)
+    {
+        return new LongFunction<InputStream>() {
+            @Override
+            public InputStream apply(final long offset)
+            {
+                offsets.add(offset);
+                final InputStream data = new ByteArrayInputStream(DATA, (int) offset, failAt - (int) offset);
+                return new InputStream() {
+                    @Override
+                    public int read() throws IOException
+                    {
+                        final byte[] b = new byte[1];
+                        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                    }
+
+                    @Override
+                    public int read(final byte[] b, final int off, final int len) throws IOException
+                    {
+                        final int n = data.read(b, off, len);
+                        if (n < 0 && failAt < DATA.length) {
+                            throw new IOException("connection reset");
+                        }
+                        return n;
+                    }
+                };
+            }
+        };
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] b = new byte[4096];
+        int n;
+        while ((n = in.read(b, 0, b.length)) >= 0) {
+            out.write(b, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
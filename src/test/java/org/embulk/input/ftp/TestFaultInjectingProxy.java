@@ -0,0 +1,190 @@
+package org.embulk.input.ftp;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import org.embulk.util.file.ResumableInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads through FaultInjectingProxy with the retry path of the plugin, checking that each
+ * fault is recovered from and how many bytes the recovery downloaded again.
+ */
+public class TestFaultInjectingProxy
+{
+    private static final Logger log = LoggerFactory.getLogger(TestFaultInjectingProxy.class);
+
+    private static final String PATH = "/in/large.csv";
+    private static final byte[] DATA = new byte[200000];
+
+    static {
+        for (int i = 0; i < DATA.length; i++) {
+            DATA[i] = (byte) i;
+        }
+    }
+
+    private FakeFtpServer server;
+    private FaultInjectingProxy proxy;
+    private ExecutorService executor;
+
+    @Before
+    public void startProxy() throws IOException
+    {
+        server = FakeFtpServer.start(Collections.singletonMap(PATH, DATA));
+        proxy = FaultInjectingProxy.start("127.0.0.1", server.getPort());
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void stopProxy() throws IOException
+    {
+        executor.shutdownNow();
+        proxy.close();
+        server.close();
+    }
+
+    @Test
+    public void testResumesAfterDataReset() throws Exception
+    {
+        final CountDownLatch read = new CountDownLatch(1);
+        proxy.resetDataAfter(70000, read);
+        assertArrayEquals(download(70000, read), DATA);
+        // the client read every byte before the RST, so no byte is downloaded again
+        assertEquals(proxy.getRestOffsets(), Arrays.asList(70000L));
+        assertEquals(proxy.getDataBytes(), (long) DATA.length);
+        assertEquals(proxy.getControlConnections(), 1);
+    }
+
+    @Test
+    public void testResumesAfterStalledData() throws Exception
+    {
+        proxy.stallDataAfter(70000);
+        assertArrayEquals(download(), DATA);
+        assertEquals(proxy.getRestOffsets().size(), 1);
+        assertEquals(proxy.getDataConnections(), 2);
+    }
+
+    @Test
+    public void testRetriesRefusedTransfers() throws Exception
+    {
+        proxy.replyOnce("RETR", "425 Can't open data connection.")
+                .replyOnce("RETR", "450 Requested file action not taken.");
+        assertArrayEquals(download(), DATA);
+        assertEquals(proxy.getRestOffsets().size(), 0);
+        assertEquals(proxy.getDataBytes(), (long) DATA.length);
+        assertEquals(proxy.getControlConnections(), 1);
+    }
+
+    @Test
+    public void testReconnectsAfterServiceClosing() throws Exception
+    {
+        proxy.replyOnce("RETR", "421 Service not available, closing control connection.");
+        assertArrayEquals(download(), DATA);
+        assertEquals(proxy.getControlConnections(), 2);
+    }
+
+    @Test
+    public void testReconnectsAfterControlDrop() throws Exception
+    {
+        // the resume after the reset loses its control connection too
+        final CountDownLatch read = new CountDownLatch(1);
+        proxy.resetDataAfter(70000, read).dropOnce("REST");
+        assertArrayEquals(download(70000, read), DATA);
+        assertEquals(proxy.getRestOffsets(), Arrays.asList(70000L, 70000L));
+        assertEquals(proxy.getControlConnections(), 2);
+        assertEquals(proxy.getDataBytes(), (long) DATA.length);
+    }
+
+    @Test
+    public void testLatencyAndBandwidth() throws Exception
+    {
+        proxy.withLatency(50).withBandwidth(1000000);
+        final long startedAt = System.nanoTime();
+        assertArrayEquals(download(), DATA);
+        // 200 KB at 1 MB/s, after a few delayed replies
+        assertTrue(System.nanoTime() - startedAt >= 300L * 1000 * 1000);
+    }
+
+    private byte[] download() throws IOException
+    {
+        return download(Long.MAX_VALUE, new CountDownLatch(1));
+    }
+
+    // counts down read when the client has read readBytes bytes
+    private byte[] download(final long readBytes, final CountDownLatch read) throws IOException
+    {
+        final ProxiedDownloader downloader = new ProxiedDownloader();
+        final long startedAt = System.nanoTime();
+        try (final InputStream in = new ResumableInputStream(downloader.download(0L),
+                    new FtpFileInputPlugin.FtpInputStreamReopener(log, downloader, 0L))) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] b = new byte[4096];
+            int n;
+            while ((n = in.read(b, 0, b.length)) >= 0) {
+                out.write(b, 0, n);
+                if (out.size() >= readBytes) {
+                    read.countDown();
+                }
+            }
+            log.info(String.format("Downloaded %,d bytes in %,d ms with %,d bytes downloaded again",
+                    out.size(), (System.nanoTime() - startedAt) / 1000000, proxy.getDataBytes() - DATA.length));
+            return out.toByteArray();
+        }
+        finally {
+            FtpFileInputPlugin.disconnectClient(downloader.client);
+        }
+    }
+
+    // Reconnects with the code of SingleFileProvider for a single server
+    private class ProxiedDownloader
+            implements FtpFileInputPlugin.Downloader, Supplier<FTPClient>
+    {
+        private FTPClient client = get();
+
+        @Override
+        public InputStream download(final long offset)
+        {
+            return FtpFileInputPlugin.startDownload(log, client, PATH, offset, executor);
+        }
+
+        @Override
+        public void failover(final Exception cause)
+        {
+            client = FtpFileInputPlugin.reconnectIfLost(log, client, false, this);
+        }
+
+        @Override
+        public FTPClient get()
+        {
+            final TunedConnector connector = new TunedConnector(true, true, TunedConnector.DEFAULT_BUFFER_SIZE, 0L);
+            connector.setReadTimeout(1);
+            final FTPClient connecting = new FTPClient();
+            connecting.setConnector(connector);
+            try {
+                connecting.connect("127.0.0.1", proxy.getPort());
+                connecting.login("scott", "tiger");
+                connecting.setType(FTPClient.TYPE_BINARY);
+                return connecting;
+            }
+            catch (final Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+}
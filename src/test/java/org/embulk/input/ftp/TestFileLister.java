@@ -0,0 +1,266 @@
+package org.embulk.input.ftp;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPFile;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestFileLister
+{
+    @Test
+    public void testDirectoryBeforeLastPath()
+    {
+        assertTrue(FileLister.isDirectoryBefore("/data/2019/01", "/data/2019/02/a.csv"));
+        assertFalse(FileLister.isDirectoryBefore("/data/2019/02", "/data/2019/02/a.csv"));
+        assertFalse(FileLister.isDirectoryBefore("/data/2019/03", "/data/2019/02/a.csv"));
+        assertFalse(FileLister.isDirectoryBefore("/data/2019", "/data/2019/02/a.csv"));
+        assertFalse(FileLister.isDirectoryBefore("/data/a", "/data/a-b.csv"));  // "/data/a/" sorts after "/data/a-b.csv"
+        assertFalse(FileLister.isDirectoryBefore("/data", ""));
+    }
+
+    @Test
+    public void testFilterAppliesListingConditionsInPathOrder()
+    {
+        final List<FileEntry> files = Arrays.asList(
+                new FileEntry("/data/c.csv", 10L, FileEntry.UNKNOWN),
+                new FileEntry("/data/a.csv", 10L, FileEntry.UNKNOWN),
+                new FileEntry("/data/b.txt", 10L, FileEntry.UNKNOWN),
+                new FileEntry("/data/d.csv", 10L, FileEntry.UNKNOWN),
+                new FileEntry("/data/e.csv", 10L, FileEntry.UNKNOWN));
+        final List<FileEntry> filtered = FileLister.builder(LoggerFactory.getLogger(TestFileLister.class), null)
+                .withLastPath(Optional.of("/data/a.csv"))
+                .withPathMatchPattern(PathMatchPattern.compile("\\.csv$"))
+                .withBatchLimit(new BatchLimit(Optional.of(2), Optional.<Long>empty()))
+                .build()
+                .filter(files);
+        assertEquals(filtered.size(), 2);
+        assertEquals(filtered.get(0).getPath(), "/data/c.csv");
+        assertEquals(filtered.get(1).getPath(), "/data/d.csv");
+    }
+
+    @Test
+    public void testResolvesLinkTargets()
+    {
+        assertEquals(FileLister.resolve("/data/logs", ".."), "/data");
+        assertEquals(FileLister.resolve("/data", "logs/./b.csv"), "/data/logs/b.csv");
+        assertEquals(FileLister.resolve("/data", "/other//d.csv"), "/other/d.csv");
+        assertEquals(FileLister.resolve("/", "../.."), "/");
+    }
+
+    @Test
+    public void testFollowsSymlinksOnce()
+    {
+        final FakeClient client = new FakeClient();
+        client.file("/data", "a.csv", 10L);
+        client.directory("/data", "logs");
+        client.file("/data/logs", "b.csv", 20L);
+        client.link("/data/logs", "up", "..");  // a cycle
+        client.link("/data", "alias", "logs");
+        client.link("/data", "c.csv", "logs/b.csv");  // the same file as alias/b.csv
+        client.link("/data", "d.csv", "/other/d.csv");
+        client.file("/other", "d.csv", 30L);
+
+        final List<FileEntry> followed = FileLister.builder(LoggerFactory.getLogger(TestFileLister.class), client)
+                .withFollowSymlinks(true)
+                .build()
+                .listByPrefix("/data/");
+        assertEquals(paths(followed), Arrays.asList("/data/a.csv", "/data/alias/b.csv", "/data/d.csv"));
+        assertEquals(followed.get(2).getSize(), 30L);
+
+        final List<FileEntry> skipped = FileLister.builder(LoggerFactory.getLogger(TestFileLister.class), client)
+                .build()
+                .listByPrefix("/data/");
+        assertEquals(paths(skipped), Arrays.asList("/data/a.csv", "/data/logs/b.csv"));
+    }
+
+    @Test
+    public void testSortsLinksToDirectoriesAsDirectories()
+    {
+        final FakeClient client = new FakeClient();
+        client.link("/data", "x", "/other");
+        client.file("/data", "x-1.csv", 10L);  // "x-1.csv" is before "x/", but after "x"
+        client.file("/other", "b.csv", 20L);
+
+        final List<FileEntry> followed = FileLister.builder(LoggerFactory.getLogger(TestFileLister.class), client)
+                .withFollowSymlinks(true)
+                .build()
+                .listByPrefix("/data/");
+        assertEquals(paths(followed), Arrays.asList("/data/x-1.csv", "/data/x/b.csv"));
+    }
+
+    @Test
+    public void testFollowsChainedLinksOnce()
+    {
+        final FakeClient client = new FakeClient();
+        client.file("/a", "x.csv", 10L);
+        client.link("/a", "l", "l2");  // a link to a link to /a
+        client.link("/a", "l2", ".");
+
+        final List<FileEntry> followed = FileLister.builder(LoggerFactory.getLogger(TestFileLister.class), client)
+                .withFollowSymlinks(true)
+                .build()
+                .listByPrefix("/a/");
+        assertEquals(paths(followed), Arrays.asList("/a/x.csv"));
+    }
+
+    @Test
+    public void testStopsAtRecentFiles()
+    {
+        final FakeClient client = new FakeClient();
+        client.file("/data", "a.csv", 10L, 1000L);
+        client.file("/data", "b.csv", 10L, 5000L);  // still being uploaded
+        client.file("/data", "c.csv", 10L, 1000L);
+        final ListingFilter filter = new ListingFilter(Optional.<Long>empty(), Optional.<Long>empty(),
+                Optional.<Instant>empty(), Optional.<Instant>empty(), Optional.of(Instant.ofEpochMilli(2000L)));
+
+        final List<FileEntry> stopped = FileLister.builder(LoggerFactory.getLogger(TestFileLister.class), client)
+                .withListingFilter(filter)
+                .withStopAtRecentFiles(true)
+                .build()
+                .listByPrefix("/data/");
+        assertEquals(paths(stopped), Arrays.asList("/data/a.csv"));
+
+        final List<FileEntry> skipped = FileLister.builder(LoggerFactory.getLogger(TestFileLister.class), client)
+                .withListingFilter(filter)
+                .build()
+                .listByPrefix("/data/");
+        assertEquals(paths(skipped), Arrays.asList("/data/a.csv", "/data/c.csv"));
+    }
+
+    private static List<String> paths(final List<FileEntry> entries)
+    {
+        final List<String> paths = new ArrayList<>();
+        for (final FileEntry entry : entries) {
+            paths.add(entry.getPath());
+        }
+        return paths;
+    }
+
+    // A server whose PWD shows the path with links resolved
+    private static class FakeClient
+            extends FTPClient
+    {
+        private final Map<String, List<FTPFile>> directories = new HashMap<>();
+        private final Map<String, String> links = new HashMap<>();
+        private String current = "/";
+
+        FakeClient()
+        {
+            directories.put("/", new ArrayList<FTPFile>());
+        }
+
+        void file(final String directory, final String name, final long size)
+        {
+            file(directory, name, size, 0L);
+        }
+
+        void file(final String directory, final String name, final long size, final long modifiedTime)
+        {
+            add(directory, name, FTPFile.TYPE_FILE, size, null).setModifiedDate(new Date(modifiedTime));
+        }
+
+        void directory(final String directory, final String name)
+        {
+            add(directory, name, FTPFile.TYPE_DIRECTORY, 0L, null);
+            directories.put(directory + "/" + name, new ArrayList<FTPFile>());
+        }
+
+        void link(final String directory, final String name, final String target)
+        {
+            add(directory, name, FTPFile.TYPE_LINK, target.length(), target);
+            links.put(directory + "/" + name, normalize(directory, target));
+        }
+
+        private FTPFile add(final String directory, final String name, final int type, final long size, final String target)
+        {
+            final FTPFile file = new FTPFile();
+            file.setName(name);
+            file.setType(type);
+            file.setSize(size);
+            file.setLink(target);
+            file.setModifiedDate(new Date(0L));
+            if (!directories.containsKey(directory)) {
+                directories.put(directory, new ArrayList<FTPFile>());
+            }
+            directories.get(directory).add(file);
+            return file;
+        }
+
+        private String physical(final String path)
+        {
+            String resolved = "/";
+            for (final String name : normalize(current, path).split("/")) {
+                if (name.isEmpty()) {
+                    continue;
+                }
+                resolved = normalize(resolved, name);
+                while (links.containsKey(resolved)) {
+                    resolved = links.get(resolved);
+                }
+            }
+            return resolved;
+        }
+
+        // independent of FileLister.resolve, which is under test
+        private static String normalize(final String directory, final String path)
+        {
+            return Paths.get(directory).resolve(path).normalize().toString();
+        }
+
+        @Override
+        public String currentDirectory()
+        {
+            return current;
+        }
+
+        @Override
+        public void changeDirectory(final String path) throws FTPException
+        {
+            final String resolved = physical(path);
+            if (!directories.containsKey(resolved)) {
+                throw new FTPException(550, "Not a directory");
+            }
+            current = resolved;
+        }
+
+        @Override
+        public FTPFile[] list()
+        {
+            return directories.get(current).toArray(new FTPFile[0]);
+        }
+
+        @Override
+        public long fileSize(final String path) throws FTPException
+        {
+            final String resolved = physical(path);
+            final int slash = resolved.lastIndexOf('/');
+            for (final FTPFile file : directories.get(resolved.substring(0, Math.max(slash, 1)))) {
+                if (file.getName().equals(resolved.substring(slash + 1))) {
+                    return file.getSize();
+                }
+            }
+            throw new FTPException(550, "No such file");
+        }
+
+        @Override
+        public Date modifiedDate(final String path)
+        {
+            return new Date(0L);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.embulk.input.ftp;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TestFtpClientPool
+{
+    @Test
+    public void testReusesReleasedConnection()
+    {
+        final AtomicInteger created = new AtomicInteger();
+        try (final FtpClientPool pool = new FtpClientPool(factory(created), 2)) {
+            final FTPClient first = pool.borrow();
+            pool.release(first);
+            assertSame(pool.borrow(), first);
+            assertEquals(created.get(), 1);
+        }
+    }
+
+    @Test
+    public void testReplacesInvalidatedConnection()
+    {
+        final AtomicInteger created = new AtomicInteger();
+        try (final FtpClientPool pool = new FtpClientPool(factory(created), 1)) {
+            final FTPClient first = pool.borrow();
+            pool.invalidate(first);
+            assertFalse(first.isConnected());
+            assertNotSame(pool.borrow(), first);
+            assertEquals(created.get(), 2);
+        }
+    }
+
+    @Test
+    public void testDisconnectsIdleConnectionsOnClose()
+    {
+        final FtpClientPool pool = new FtpClientPool(factory(new AtomicInteger()), 1);
+        final FTPClient client = pool.borrow();
+        pool.release(client);
+        pool.close();
+        assertFalse(client.isConnected());
+    }
+
+    private static Supplier<FTPClient> factory(final AtomicInteger created)
+    {
+        return new Supplier<FTPClient>() {
+            @Override
+            public FTPClient get()
+            {
+                created.incrementAndGet();
+                return new ConnectedClient();
+            }
+        };
+    }
+
+    // pretends to be connected without a server
+    private static class ConnectedClient
+            extends FTPClient
+    {
+        private boolean connected = true;
+
+        @Override
+        public boolean isConnected()
+        {
+            return connected;
+        }
+
+        @Override
+        public void disconnect(final boolean sendQuitCommand)
+        {
+            connected = false;
+        }
+    }
+}
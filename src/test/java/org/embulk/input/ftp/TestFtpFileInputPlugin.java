@@ -110,6 +110,7 @@ public class TestFtpFileInputPlugin
         final PluginTask task = configMapper.map(config(), PluginTask.class);
         task.setSSLConfig(sslConfig(task));
         task.setFiles(Arrays.asList("in/aa/a"));
+        task.setFileEntries(Arrays.asList(new FileEntry("in/aa/a", 10L, 0L)));
         final ConfigDiff configDiff = plugin.resume(task.toTaskSource(), 0, new FileInputPlugin.Control()
         {
             @Override
@@ -121,6 +122,90 @@ public class TestFtpFileInputPlugin
         assertEquals(configDiff.get(String.class, "last_path"), "in/aa/a");
     }
 
+    @Test
+    public void testResumeWithModifiedTimeWatermark()
+    {
+        final ConfigSource config = config().deepCopy()
+                .set("incremental_mode", "modified_time");
+        final ConfigMapper configMapper = CONFIG_MAPPER_FACTORY.createConfigMapper();
+        final PluginTask task = configMapper.map(config, PluginTask.class);
+        task.setSSLConfig(sslConfig(task));
+        task.setFiles(Arrays.asList("in/aa/a", "in/aa/b", "in/aa/c"));
+        task.setFileEntries(Arrays.asList(
+                new FileEntry("in/aa/a", 10L, 1546300800000L),
+                new FileEntry("in/aa/b", 10L, 1546304400000L),
+                new FileEntry("in/aa/c", 10L, 1546300800000L)));
+        final ConfigDiff configDiff = plugin.resume(task.toTaskSource(), 0, new FileInputPlugin.Control()
+        {
+            @Override
+            public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+            {
+                return emptyTaskReports(taskCount);
+            }
+        });
+        assertEquals(configDiff.get(String.class, "last_modified"), "2019-01-01T01:00:00Z");
+        assertEquals(configDiff.get(String.class, "last_modified_path"), "in/aa/b");
+        Assert.assertFalse(configDiff.has("last_path"));
+    }
+
+    @Test
+    public void testResumeWithModifiedTimeWatermarkOfPrefixes()
+    {
+        final ConfigSource config = config().deepCopy()
+                .set("incremental_mode", "modified_time");
+        final ConfigMapper configMapper = CONFIG_MAPPER_FACTORY.createConfigMapper();
+        final PluginTask task = configMapper.map(config, PluginTask.class);
+        task.setSSLConfig(sslConfig(task));
+        task.setFiles(Arrays.asList("in/aa/a"));
+        task.setFileEntries(Arrays.asList(new FileEntry("in/aa/a", 10L, 1546300800000L)));
+        // as advanced by listing
+        task.setPathPrefixes(Arrays.asList(
+                PathPrefix.of("in/aa/").withWatermark(new ModifiedTimeWatermark(1546300800000L, "in/aa/a")),
+                PathPrefix.of("in/bb/")));
+        final ConfigDiff configDiff = plugin.resume(task.toTaskSource(), 0, new FileInputPlugin.Control()
+        {
+            @Override
+            public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+            {
+                return emptyTaskReports(taskCount);
+            }
+        });
+        final PathPrefix[] prefixes = configDiff.get(PathPrefix[].class, "path_prefixes");
+        assertEquals(prefixes.length, 2);
+        assertEquals(prefixes[0].getWatermark().get().getLastModified(), "2019-01-01T00:00:00Z");
+        assertEquals(prefixes[0].getWatermark().get().getPath(), "in/aa/a");
+        Assert.assertFalse(prefixes[1].getWatermark().isPresent());
+        Assert.assertFalse(configDiff.has("last_modified"));
+        Assert.assertFalse(configDiff.has("last_path"));
+    }
+
+    @Test
+    public void testResumeWithChecksums()
+    {
+        final ConfigSource config = config().deepCopy()
+                .set("incremental_mode", "checksum")
+                .set("checksums", ImmutableMap.of("in/aa/a", "md5:aaaa", "in/aa/b", "md5:bbbb"));
+        final ConfigMapper configMapper = CONFIG_MAPPER_FACTORY.createConfigMapper();
+        final PluginTask task = configMapper.map(config, PluginTask.class);
+        task.setSSLConfig(sslConfig(task));
+        task.setFiles(Arrays.asList("in/aa/a", "in/aa/b"));
+        task.setFileEntries(Arrays.asList(new FileEntry("in/aa/a", 10L, 0L), new FileEntry("in/aa/b", 10L, 0L)));
+        final ConfigDiff configDiff = plugin.resume(task.toTaskSource(), 0, new FileInputPlugin.Control()
+        {
+            @Override
+            public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+            {
+                final TaskReport report = CONFIG_MAPPER_FACTORY.newTaskReport();
+                report.set("checksum_path", "in/aa/b");
+                report.set("checksum", "md5:cccc");
+                return Arrays.asList(report);
+            }
+        });
+        assertEquals(configDiff.getNested("checksums").get(String.class, "in/aa/a"), "md5:aaaa");
+        assertEquals(configDiff.getNested("checksums").get(String.class, "in/aa/b"), "md5:cccc");
+        Assert.assertFalse(configDiff.has("last_path"));
+    }
+
     @Test
     public void testCleanup()
     {
@@ -338,6 +423,32 @@ public class TestFtpFileInputPlugin
         assertEquals(configDiff.get(String.class, "last_path"), "");
     }
 
+    @Test
+    public void testListFilesWithPathPrefixes()
+    {
+        final ConfigSource config = config().deepCopy()
+                .remove("path_prefix")
+                .set("path_prefixes", Arrays.asList(
+                        FTP_TEST_PATH_PREFIX + "01",
+                        ImmutableMap.of("prefix", FTP_TEST_PATH_PREFIX, "path_match_pattern", "02\\.csv$"),
+                        ImmutableMap.of("prefix", FTP_TEST_DIRECTORY, "last_path", FTP_TEST_PATH_PREFIX + "02.csv")));
+        final ConfigDiff configDiff = plugin.transaction(config, new FileInputPlugin.Control() {
+            @Override
+            public List<TaskReport> run(final TaskSource taskSource, final int taskCount)
+            {
+                assertEquals(taskCount, 2);
+                return emptyTaskReports(taskCount);
+            }
+        });
+
+        final PathPrefix[] prefixes = configDiff.get(PathPrefix[].class, "path_prefixes");
+        assertEquals(prefixes.length, 3);
+        assertEquals(prefixes[0].getLastPath().get(), FTP_TEST_PATH_PREFIX + "01.csv");
+        assertEquals(prefixes[1].getLastPath().get(), FTP_TEST_PATH_PREFIX + "02.csv");
+        assertEquals(prefixes[2].getLastPath().get(), FTP_TEST_PATH_PREFIX + "02.csv");  // kept
+        Assert.assertFalse(configDiff.has("last_path"));
+    }
+
     @Test
     public void testListFilesByPrefixIncrementalFalse()
     {
@@ -0,0 +1,33 @@
+package org.embulk.input.ftp;
+
+import org.embulk.config.ConfigException;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestFtpHost
+{
+    @Test
+    public void testParse()
+    {
+        assertEquals(FtpHost.parse("ftp.example.com"), new FtpHost("ftp.example.com", Optional.<Integer>empty()));
+        assertEquals(FtpHost.parse(" ftp.example.com:2121 "), new FtpHost("ftp.example.com", Optional.of(2121)));
+        assertEquals(FtpHost.parse("[2001:db8::1]:2121"), new FtpHost("2001:db8::1", Optional.of(2121)));
+        assertEquals(FtpHost.parse("2001:db8::1"), new FtpHost("2001:db8::1", Optional.<Integer>empty()));
+    }
+
+    @Test
+    public void testToString()
+    {
+        assertEquals(FtpHost.parse("ftp.example.com:2121").toString(), "ftp.example.com:2121");
+        assertEquals(FtpHost.parse("[2001:db8::1]:2121").toString(), "[2001:db8::1]:2121");
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testInvalidPort()
+    {
+        FtpHost.parse("ftp.example.com:ftp");
+    }
+}
@@ -0,0 +1,79 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestFtpProbe
+{
+    @Test
+    public void testRecommendsThreadsWhereThroughputStopsGrowing()
+    {
+        final FtpProbe.Result result = capableServer();
+        result.singleStreamBytesPerSecond = 10e6;
+        result.streams = 4;
+        result.multiStreamBytesPerSecond = 25e6;
+        final List<String> lines = result.recommend();
+        assertTrue(lines.get(0), lines.get(0).startsWith("exec.max_threads: 3."));
+    }
+
+    @Test
+    public void testRecommendsMoreThreadsWhileThroughputGrows()
+    {
+        final FtpProbe.Result result = capableServer();
+        result.singleStreamBytesPerSecond = 10e6;
+        result.streams = 4;
+        result.multiStreamBytesPerSecond = 39e6;
+        assertTrue(result.recommend().get(0).startsWith("exec.max_threads: 4 or more."));
+    }
+
+    @Test
+    public void testLimitsThreadsAndListingBySessions()
+    {
+        final FtpProbe.Result result = capableServer();
+        result.maxSessions = 3;
+        result.sessionLimitReached = true;
+        final List<String> lines = result.recommend();
+        assertEquals(lines.get(0), "exec.max_threads: at most 2, under the limit of sessions");
+        assertEquals(lines.get(1), "max_listing_connections: 2");
+    }
+
+    @Test
+    public void testRecommendsAutoBufferWhenLimitedByWindow()
+    {
+        final FtpProbe.Result result = capableServer();
+        result.roundTripMillis = 100L;
+        result.requestedWindow = 524288;
+        result.singleStreamBytesPerSecond = 5e6;  // a 512 KiB window allows 5.2 MB/s over 100 ms
+        assertTrue(result.recommend().get(0).startsWith("socket_receive_buffer: auto."));
+    }
+
+    @Test
+    public void testWarnsOfMissingFeatures()
+    {
+        final FtpProbe.Result result = new FtpProbe.Result();
+        result.maxSessions = 16;
+        final List<String> lines = result.recommend();
+        assertEquals(lines.size(), 2);
+        assertTrue(lines.get(0).contains("REST STREAM"));
+        assertTrue(lines.get(1).startsWith("incremental_mode: path or checksum"));
+    }
+
+    @Test
+    public void testDefaultsSuit()
+    {
+        assertEquals(capableServer().recommend().get(0), "The defaults suit this server");
+    }
+
+    private static FtpProbe.Result capableServer()
+    {
+        final FtpProbe.Result result = new FtpProbe.Result();
+        result.mlsd = true;
+        result.rest = true;
+        result.maxSessions = 16;
+        return result;
+    }
+}
@@ -0,0 +1,103 @@
+package org.embulk.input.ftp;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+
+import org.junit.Test;
+
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TestIdleConnections
+{
+    private static final long SECOND = 1000L * 1000 * 1000;
+
+    private long now = 0L;
+
+    @Test
+    public void testTakesConnectionWithSameKey()
+    {
+        final IdleConnections connections = new IdleConnections(clock());
+        final FTPClient first = new ConnectedClient();
+        final FTPClient second = new ConnectedClient();
+        connections.park("a", first, 30 * SECOND);
+        connections.park("a", second, 30 * SECOND);
+        assertNull(connections.take("b", 3000));
+        assertSame(connections.take("a", 3000), second);
+        assertSame(connections.take("a", 3000), first);
+        assertNull(connections.take("a", 3000));
+    }
+
+    @Test
+    public void testDisconnectsExpiredConnections()
+    {
+        final IdleConnections connections = new IdleConnections(clock());
+        final FTPClient client = new ConnectedClient();
+        connections.park("a", client, 30 * SECOND);
+        now += 31 * SECOND;
+        assertNull(connections.take("a", 3000));
+        assertFalse(client.isConnected());
+        assertEquals(connections.size(), 0);
+    }
+
+    @Test
+    public void testSkipsClosedConnections()
+    {
+        final IdleConnections connections = new IdleConnections(clock());
+        final FTPClient live = new ConnectedClient();
+        final FTPClient closed = new ConnectedClient();
+        connections.park("a", live, 30 * SECOND);
+        connections.park("a", closed, 30 * SECOND);
+        FtpFileInputPlugin.disconnectClient(closed);
+        assertSame(connections.take("a", 3000), live);
+    }
+
+    @Test
+    public void testClosesConnectionsOfKey()
+    {
+        final IdleConnections connections = new IdleConnections(clock());
+        final FTPClient a = new ConnectedClient();
+        final FTPClient b = new ConnectedClient();
+        connections.park("a", a, 30 * SECOND);
+        connections.park("b", b, 30 * SECOND);
+        connections.close("a");
+        assertFalse(a.isConnected());
+        assertEquals(connections.size(), 1);
+        connections.closeAll();
+        assertFalse(b.isConnected());
+        assertEquals(connections.size(), 0);
+    }
+
+    private LongSupplier clock()
+    {
+        return new LongSupplier() {
+            @Override
+            public long getAsLong()
+            {
+                return now;
+            }
+        };
+    }
+
+    // pretends to be connected without a server
+    private static class ConnectedClient
+            extends FTPClient
+    {
+        private boolean connected = true;
+
+        @Override
+        public boolean isConnected()
+        {
+            return connected;
+        }
+
+        @Override
+        public void disconnect(final boolean sendQuitCommand)
+        {
+            connected = false;
+        }
+    }
+}
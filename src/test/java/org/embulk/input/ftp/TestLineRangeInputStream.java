@@ -0,0 +1,138 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestLineRangeInputStream
+{
+    private static final byte[] DATA = "aaa\nbbb\nccc".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testLimitsToRange() throws IOException
+    {
+        final LineRangeInputStream in = LineRangeInputStream.ofTail(stream(4), 4L, 9L, false);
+        assertEquals(readAll(in), "bbb\nc");
+        assertEquals(in.getCommittedOffset(), 9L);
+    }
+
+    @Test
+    public void testDropsIncompleteLastLine() throws IOException
+    {
+        final LineRangeInputStream in = LineRangeInputStream.ofTail(stream(0), 0L, -1L, true);
+        assertEquals(readAll(in), "aaa\nbbb\n");
+        assertEquals(in.getCommittedOffset(), 8L);
+    }
+
+    @Test
+    public void testDropsIncompleteLineAtEndOfRange() throws IOException
+    {
+        final LineRangeInputStream in = LineRangeInputStream.ofTail(stream(4), 4L, 10L, true);
+        assertEquals(readAll(in), "bbb\n");
+        assertEquals(in.getCommittedOffset(), 8L);
+    }
+
+    @Test
+    public void testNoCompleteLine() throws IOException
+    {
+        final LineRangeInputStream in = LineRangeInputStream.ofTail(stream(8), 8L, 11L, true);
+        assertEquals(readAll(in), "");
+        assertEquals(in.getCommittedOffset(), 8L);
+    }
+
+    @Test
+    public void testLongLineAcrossReads() throws IOException
+    {
+        final StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            line.append('x');
+        }
+        final byte[] data = (line + "\n" + line).getBytes(StandardCharsets.UTF_8);
+        final LineRangeInputStream in = LineRangeInputStream.ofTail(new ByteArrayInputStream(data), 0L, -1L, true);
+        assertEquals(readAll(in), line + "\n");
+        assertEquals(in.getCommittedOffset(), 200001L);
+    }
+
+    @Test
+    public void testSplits() throws IOException
+    {
+        assertEquals(readSplit(DATA, 0L, 2L), "aaa\n");
+        assertEquals(readSplit(DATA, 2L, 4L), "");
+        assertEquals(readSplit(DATA, 4L, 5L), "bbb\n");  // begins at the beginning of a line
+        assertEquals(readSplit(DATA, 5L, 9L), "ccc");
+        assertEquals(readSplit(DATA, 9L, 11L), "");
+    }
+
+    @Test
+    public void testSplitsReadEveryLineOnce() throws IOException
+    {
+        final Random random = new Random(0);
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            final int length = random.nextInt(300);
+            for (int j = 0; j < length; j++) {
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+            text.append(random.nextInt(10) == 0 ? "\r\n" : "\n");
+        }
+        text.append("last line without newline");
+        final byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        for (final long splitSize : new long[] { 1L, 7L, 150L, 4096L, 100000L, data.length }) {
+            final StringBuilder joined = new StringBuilder();
+            for (long start = 0; start < data.length; start += splitSize) {
+                joined.append(readSplit(data, start, Math.min(start + splitSize, data.length)));
+            }
+            assertEquals("split size " + splitSize, joined.toString(), text.toString());
+        }
+    }
+
+    @Test
+    public void testTailOffsetNextStart()
+    {
+        final TailOffset last = new TailOffset(8L, 11L, 0L);
+        assertEquals(last.nextStart(new FileEntry("a", 20L, 0L)), 8L);
+        assertEquals(last.nextStart(new FileEntry("a", 8L, 0L)), -1L);
+        assertEquals(last.nextStart(new FileEntry("a", 4L, 0L)), 0L);
+        assertEquals(last.nextStart(new FileEntry("a", FileEntry.UNKNOWN, 0L)), 8L);
+
+        final TailOffset modified = new TailOffset(8L, 11L, 1000L);
+        // appended
+        assertEquals(modified.nextStart(new FileEntry("a", 20L, 2000L)), 8L);
+        // rotated to an older file, or rewritten without growing
+        assertEquals(modified.nextStart(new FileEntry("a", 20L, 500L)), 0L);
+        assertEquals(modified.nextStart(new FileEntry("a", 11L, 2000L)), 0L);
+        assertEquals(modified.nextStart(new FileEntry("a", 9L, 2000L)), 0L);
+        assertEquals(modified.nextStart(new FileEntry("a", 11L, 1000L)), 8L);
+        assertEquals(modified.nextStart(new FileEntry("a", 20L, FileEntry.UNKNOWN)), 8L);
+    }
+
+    private static String readSplit(final byte[] data, final long start, final long end) throws IOException
+    {
+        final int from = (int) LineRangeInputStream.splitDownloadStart(start);
+        return readAll(LineRangeInputStream.ofSplit(new ByteArrayInputStream(data, from, data.length - from), start, end));
+    }
+
+    private static InputStream stream(final int offset)
+    {
+        return new ByteArrayInputStream(DATA, offset, DATA.length - offset);
+    }
+
+    private static String readAll(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[3];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
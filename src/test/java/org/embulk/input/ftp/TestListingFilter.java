@@ -0,0 +1,72 @@
+package org.embulk.input.ftp;
+
+import org.embulk.config.ConfigException;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestListingFilter
+{
+    private static final Date MODIFIED = Date.from(Instant.parse("2019-06-01T12:00:00Z"));
+
+    @Test
+    public void testAcceptAll()
+    {
+        assertTrue(ListingFilter.ACCEPT_ALL.accept(0L, MODIFIED));
+        assertTrue(ListingFilter.ACCEPT_ALL.accept(-1L, null));
+    }
+
+    @Test
+    public void testSize()
+    {
+        final ListingFilter filter = new ListingFilter(Optional.of(1L), Optional.of(100L), Optional.<Instant>empty(), Optional.<Instant>empty());
+        assertFalse(filter.accept(0L, MODIFIED));
+        assertTrue(filter.accept(1L, MODIFIED));
+        assertTrue(filter.accept(100L, MODIFIED));
+        assertFalse(filter.accept(101L, MODIFIED));
+        assertTrue(filter.accept(-1L, MODIFIED));  // unknown size
+    }
+
+    @Test
+    public void testModifiedTime()
+    {
+        final ListingFilter filter = new ListingFilter(Optional.<Long>empty(), Optional.<Long>empty(),
+                Optional.of(Instant.parse("2019-06-01T00:00:00Z")), Optional.of(Instant.parse("2019-06-02T00:00:00Z")));
+        assertTrue(filter.accept(10L, MODIFIED));
+        assertFalse(filter.accept(10L, Date.from(Instant.parse("2019-06-01T00:00:00Z"))));
+        assertFalse(filter.accept(10L, Date.from(Instant.parse("2019-06-02T00:00:00Z"))));
+        assertTrue(filter.accept(10L, null));  // unknown modification time
+    }
+
+    @Test
+    public void testRecentFiles()
+    {
+        final ListingFilter filter = new ListingFilter(Optional.<Long>empty(), Optional.<Long>empty(),
+                Optional.<Instant>empty(), Optional.<Instant>empty(), Optional.of(Instant.parse("2019-06-01T12:00:00Z")));
+        assertFalse(filter.accept(10L, MODIFIED));
+        assertTrue(filter.isRecent(new FileEntry("/in/a.csv", 10L, MODIFIED.getTime())));
+        assertTrue(filter.accept(10L, Date.from(Instant.parse("2019-06-01T11:59:59Z"))));
+        assertFalse(filter.isRecent(new FileEntry("/in/a.csv", 10L, Instant.parse("2019-06-01T11:59:59Z").toEpochMilli())));
+        assertFalse(filter.isRecent(new FileEntry("/in/a.csv", 10L, FileEntry.UNKNOWN)));
+        assertFalse(ListingFilter.ACCEPT_ALL.isRecent(new FileEntry("/in/a.csv", 10L, MODIFIED.getTime())));
+    }
+
+    @Test
+    public void testParseTime()
+    {
+        assertEquals(Optional.of(Instant.parse("2019-05-31T15:00:00Z")),
+                ListingFilter.parseTime("modified_after", Optional.of("2019-06-01T00:00:00+09:00")));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testParseInvalidTime()
+    {
+        ListingFilter.parseTime("modified_after", Optional.of("2019-06-01"));
+    }
+}
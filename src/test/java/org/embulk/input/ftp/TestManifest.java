@@ -0,0 +1,87 @@
+package org.embulk.input.ftp;
+
+import org.embulk.config.ConfigException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestManifest
+{
+    private static final String CSV = "path,size,checksum,modified_time\n"
+            + "a.csv,100,0123abcd,2019-01-01T00:00:00Z\n"
+            + "\"/other/b,c.csv\",,89abcdef,\n"
+            + "a.csv,200,4567abcd,\n";
+
+    @Test
+    public void testReadsCsv() throws IOException
+    {
+        final List<FileEntry> entries = Manifest.read(stream(CSV.getBytes(StandardCharsets.UTF_8)), "/batch/manifest.csv", ManifestFormat.CSV);
+        assertEquals(entries.size(), 2);
+        assertEquals(entries.get(0).getPath(), "/other/b,c.csv");
+        assertEquals(entries.get(0).getSize(), FileEntry.UNKNOWN);
+        assertEquals(entries.get(1).getPath(), "/batch/a.csv");
+        assertEquals(entries.get(1).getSize(), 200L);  // the last one is used
+        assertEquals(entries.get(1).getModifiedTime(), FileEntry.UNKNOWN);
+    }
+
+    @Test
+    public void testReadsGzippedCsv() throws IOException
+    {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (final GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write("path,modified_time\nx/a.csv,2019-01-01T00:00:00Z\n".getBytes(StandardCharsets.UTF_8));
+        }
+        final List<FileEntry> entries = Manifest.read(stream(compressed.toByteArray()), "manifest.csv.gz", ManifestFormat.CSV);
+        assertEquals(entries.size(), 1);
+        assertEquals(entries.get(0).getPath(), "x/a.csv");
+        assertEquals(entries.get(0).getModifiedTime(), OffsetDateTime.parse("2019-01-01T00:00:00Z").toInstant().toEpochMilli());
+    }
+
+    @Test
+    public void testReadsJsonLines() throws IOException
+    {
+        final String jsonl = "{\"path\":\"a.csv\",\"size\":100,\"md5\":\"0123abcd\"}\n"
+                + "\n"
+                + "{\"path\":\"/other/b.csv\",\"modified_time\":\"2019-01-01T09:00:00+09:00\"}\n";
+        final List<FileEntry> entries = Manifest.read(stream(jsonl.getBytes(StandardCharsets.UTF_8)), "/batch/manifest.jsonl", ManifestFormat.JSONL);
+        assertEquals(entries.size(), 2);
+        assertEquals(entries.get(0).getPath(), "/batch/a.csv");
+        assertEquals(entries.get(0).getSize(), 100L);
+        assertEquals(entries.get(1).getPath(), "/other/b.csv");
+        assertEquals(entries.get(1).getModifiedTime(), OffsetDateTime.parse("2019-01-01T00:00:00Z").toInstant().toEpochMilli());
+    }
+
+    @Test
+    public void testParsesQuotedCsvFields()
+    {
+        assertEquals(Manifest.parseCsvLine("a,\"b,\"\"c\"\"\",,d"), Arrays.asList("a", "b,\"c\"", "", "d"));
+    }
+
+    @Test
+    public void testDetectsFormat()
+    {
+        assertEquals(ManifestFormat.detect("/batch/MANIFEST.CSV"), ManifestFormat.CSV);
+        assertEquals(ManifestFormat.detect("/batch/manifest.jsonl.gz"), ManifestFormat.JSONL);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testUnknownFormat()
+    {
+        ManifestFormat.detect("/batch/manifest.txt");
+    }
+
+    private static InputStream stream(final byte[] bytes)
+    {
+        return new ByteArrayInputStream(bytes);
+    }
+}
@@ -0,0 +1,90 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestMirrorSelector
+{
+    private static final FtpHost A = new FtpHost("a.example.com", Optional.<Integer>empty());
+    private static final FtpHost B = new FtpHost("b.example.com", Optional.<Integer>empty());
+    private static final List<FtpHost> HOSTS = Arrays.asList(A, B);
+
+    private long now = 0L;
+
+    @Test
+    public void testSpreadsConnections()
+    {
+        final MirrorSelector selector = newSelector();
+        final MirrorSelector.Lease first = selector.acquire(Collections.<FtpHost>emptySet());
+        final MirrorSelector.Lease second = selector.acquire(Collections.<FtpHost>emptySet());
+        assertEquals(first.getHost(), A);
+        assertEquals(second.getHost(), B);
+    }
+
+    @Test
+    public void testPrefersFasterMirror()
+    {
+        final MirrorSelector selector = newSelector();
+        download(selector, A, 1000L);
+        download(selector, B, 4000L);
+        // b is 4 times faster, so it takes 3 downloads before a takes one
+        assertEquals(selector.acquire(Collections.<FtpHost>emptySet()).getHost(), B);
+        assertEquals(selector.acquire(Collections.<FtpHost>emptySet()).getHost(), B);
+        assertEquals(selector.acquire(Collections.<FtpHost>emptySet()).getHost(), B);
+        assertEquals(selector.acquire(Collections.<FtpHost>emptySet()).getHost(), A);
+    }
+
+    @Test
+    public void testSkipsFailedMirrorUntilBackoffExpires()
+    {
+        final MirrorSelector selector = newSelector();
+        final MirrorSelector.Lease lease = selector.acquire(Collections.<FtpHost>emptySet());
+        assertEquals(lease.getHost(), A);
+        lease.fail();
+        lease.close();
+
+        final MirrorSelector.Lease next = selector.acquire(Collections.<FtpHost>emptySet());
+        assertEquals(next.getHost(), B);
+        next.close();
+        assertEquals(selector.ordered(), Arrays.asList(B, A));
+
+        now += MirrorSelector.INITIAL_BACKOFF_NANOS;
+        assertEquals(selector.ordered(), Arrays.asList(A, B));
+    }
+
+    @Test
+    public void testExcludedMirror()
+    {
+        final MirrorSelector selector = newSelector();
+        assertEquals(selector.acquire(Collections.singleton(A)).getHost(), B);
+    }
+
+    private void download(final MirrorSelector selector, final FtpHost host, final long bytesPerSecond)
+    {
+        final MirrorSelector.Lease lease = selector.acquire(Collections.singleton(host == A ? B : A));
+        assertEquals(lease.getHost(), host);
+        lease.transferred(bytesPerSecond, 1000L * 1000 * 1000);
+        // time between reads isn't counted
+        now += 5000L * 1000 * 1000;
+        lease.close();
+    }
+
+    private MirrorSelector newSelector()
+    {
+        return new MirrorSelector(HOSTS, new HashMap<FtpHost, MirrorSelector.HostState>(), new LongSupplier() {
+                @Override
+                public long getAsLong()
+                {
+                    return now;
+                }
+            });
+    }
+}
@@ -0,0 +1,39 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestModifiedTimeWatermark
+{
+    @Test
+    public void testAccept()
+    {
+        final ModifiedTimeWatermark watermark = ModifiedTimeWatermark.of(
+                Optional.of("2019-01-01T00:00:00Z"), Optional.of("/data/b.csv")).get();
+        assertTrue(watermark.accept(new FileEntry("/data/a.csv", 1L, 1546300860000L)));  // newer
+        assertFalse(watermark.accept(new FileEntry("/data/z.csv", 1L, 1546300740000L)));  // older
+        assertFalse(watermark.accept(new FileEntry("/data/a.csv", 1L, 1546300800000L)));  // same time, earlier path
+        assertFalse(watermark.accept(new FileEntry("/data/b.csv", 1L, 1546300800000L)));  // the watermark itself
+        assertTrue(watermark.accept(new FileEntry("/data/c.csv", 1L, 1546300800000L)));  // same time, later path
+        assertFalse(watermark.accept(new FileEntry("/data/a.csv", 1L, FileEntry.UNKNOWN)));  // can't be compared
+    }
+
+    @Test
+    public void testNewest()
+    {
+        final ModifiedTimeWatermark newest = ModifiedTimeWatermark.newest(Arrays.asList(
+                new FileEntry("/data/b.csv", 1L, 1546300800000L),
+                new FileEntry("/data/a.csv", 1L, 1546300800000L),
+                new FileEntry("/data/c.csv", 1L, FileEntry.UNKNOWN))).get();
+        assertEquals(newest.getLastModified(), "2019-01-01T00:00:00Z");
+        assertEquals(newest.getPath(), "/data/b.csv");
+        assertFalse(ModifiedTimeWatermark.newest(Collections.<FileEntry>emptyList()).isPresent());
+    }
+}
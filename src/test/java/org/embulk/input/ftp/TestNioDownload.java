@@ -0,0 +1,470 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestNioDownload
+{
+    private static final Logger log = LoggerFactory.getLogger(TestNioDownload.class);
+
+    @Test
+    public void testParsesMultiLineReplies() throws Exception
+    {
+        final FtpReplyParser parser = new FtpReplyParser();
+        parser.feed(ByteBuffer.wrap("220-Welcome\r\n220-to the\r\n220 server\r\n331 Pass".getBytes(StandardCharsets.UTF_8)));
+        final FtpReplyParser.Reply banner = parser.poll();
+        assertEquals(banner.getCode(), 220);
+        assertEquals(banner.getLines(), Arrays.asList("220-Welcome", "220-to the", "220 server"));
+        assertEquals(parser.poll(), null);
+        parser.feed(ByteBuffer.wrap("word required\r\n".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(parser.poll().isIntermediate());
+    }
+
+    @Test
+    public void testParsesPassivePorts() throws Exception
+    {
+        assertEquals(NioDownload.passivePort(reply("227 Entering Passive Mode (192,0,2,1,195,80).")), 50000);
+        assertEquals(NioDownload.passivePort(reply("229 Entering Extended Passive Mode (|||50001|)")), 50001);
+    }
+
+    @Test
+    public void testDownloadsFromOffset() throws Exception
+    {
+        final byte[] content = new byte[3 * (int) NioDownload.MAX_BUFFERED_BYTES];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        try (final FakeServer server = new FakeServer(content, "226 Transfer complete")) {
+            final NioFtpEngine engine = new NioFtpEngine(1);
+            try (final InputStream in = engine.download(log, task(), new FtpHost("127.0.0.1", Optional.<Integer>empty()), server.getPort(),
+                        TunedConnector.DEFAULT_BUFFER_SIZE, "/file.csv", 100)) {
+                assertArrayEquals(readAll(in), Arrays.copyOfRange(content, 100, content.length));
+            }
+            assertEquals(server.getCommands(), Arrays.asList("USER user", "PASS secret", "TYPE I", "PASV", "REST 100", "RETR /file.csv"));
+        }
+    }
+
+    @Test
+    public void testDownloadsWithinBufferBudget() throws Exception
+    {
+        final byte[] content = new byte[2 * (int) NioDownload.MAX_BUFFERED_BYTES];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 7);
+        }
+        final TransferBufferPool pool = new TransferBufferPool(NioDownload.CHUNK_SIZE, 2L * NioDownload.CHUNK_SIZE, true);
+        try (final FakeServer server = new FakeServer(content, "226 Transfer complete")) {
+            final NioFtpEngine engine = new NioFtpEngine(1);
+            try (final InputStream in = engine.download(log, task(), new FtpHost("127.0.0.1", Optional.<Integer>empty()), server.getPort(),
+                        TunedConnector.DEFAULT_BUFFER_SIZE, "/file.csv", 0, pool)) {
+                Thread.sleep(200);  // lets the download fill the budget
+                assertArrayEquals(readAll(in), content);
+            }
+        }
+        assertTrue(pool.getPeakBytes() <= 2L * NioDownload.CHUNK_SIZE);
+        assertTrue(pool.getWaits() > 0);
+        assertEquals(pool.getUsedBytes(), 0L);
+    }
+
+    @Test
+    public void testPacksSlowDataIntoChunks() throws Exception
+    {
+        final byte[] content = new byte[200 * 1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 3);
+        }
+        final TransferBufferPool pool = new TransferBufferPool(NioDownload.CHUNK_SIZE, TransferBufferPool.UNLIMITED, false);
+        try (final FakeServer server = new FakeServer(content, "226 Transfer complete", 1000)) {
+            final NioFtpEngine engine = new NioFtpEngine(1);
+            try (final InputStream in = engine.download(log, task(), new FtpHost("127.0.0.1", Optional.<Integer>empty()), server.getPort(),
+                        TunedConnector.DEFAULT_BUFFER_SIZE, "/file.csv", 0, pool)) {
+                Thread.sleep(500);  // lets the small writes queue up
+                assertArrayEquals(readAll(in), content);
+            }
+        }
+        // a chunk for each 64 KiB, not for each write
+        assertTrue(pool.getPeakBytes() <= (content.length / NioDownload.CHUNK_SIZE + 2L) * NioDownload.CHUNK_SIZE);
+    }
+
+    @Test
+    public void testLoopFailsOnlyThrowingSession() throws Exception
+    {
+        final NioFtpEngine engine = new NioFtpEngine(1);
+        final CountDownLatch failed = new CountDownLatch(1);
+        engine.nextLoop().execute(new NioFtpEngine.Session() {
+                @Override
+                public void checkTimeout(final long now)
+                {
+                }
+
+                @Override
+                public void failed(final RuntimeException cause)
+                {
+                    failed.countDown();
+                }
+            }, new Runnable() {
+                @Override
+                public void run()
+                {
+                    throw new IllegalStateException("broken task");
+                }
+            });
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        try (final FakeServer server = new FakeServer(new byte[] {1, 2, 3}, "226 Transfer complete")) {
+            try (final InputStream in = engine.download(log, task(), new FtpHost("127.0.0.1", Optional.<Integer>empty()), server.getPort(),
+                        TunedConnector.DEFAULT_BUFFER_SIZE, "/file.csv", 0)) {
+                assertArrayEquals(readAll(in), new byte[] {1, 2, 3});
+            }
+        }
+    }
+
+    @Test
+    public void testReusesControlConnection() throws Exception
+    {
+        final byte[] content = new byte[] {1, 2, 3};
+        try (final FakeServer server = new FakeServer(content, "226 Transfer complete")) {
+            final NioFtpEngine engine = new NioFtpEngine(2);
+            final FtpHost host = new FtpHost("127.0.0.1", Optional.<Integer>empty());
+            final FtpFileInputPlugin.PluginTask task = task(30, false);
+            for (final String path : Arrays.asList("/a.csv", "/b.csv")) {
+                try (final InputStream in = engine.download(log, task, host, server.getPort(), TunedConnector.DEFAULT_BUFFER_SIZE, path, 0)) {
+                    assertArrayEquals(readAll(in), content);
+                }
+            }
+            engine.closeIdle(log, task, host, server.getPort());  // sends QUIT
+            server.awaitQuit();
+            assertEquals(server.getCommands(), Arrays.asList("USER user", "PASS secret", "TYPE I", "PASV", "RETR /a.csv", "PASV", "RETR /b.csv"));
+        }
+    }
+
+    @Test
+    public void testDownloadsOverTls() throws Exception
+    {
+        final byte[] content = new byte[3 * NioDownload.CHUNK_SIZE + 100];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 5);
+        }
+        final SSLContext serverContext = testSSLContext();
+        try (final FakeServer server = new FakeServer(content, "226 Transfer complete", content.length, serverContext)) {
+            final NioFtpEngine engine = new NioFtpEngine(1) {
+                    @Override
+                    SSLContext newSSLContext(final Logger log, final FtpFileInputPlugin.PluginTask task)
+                    {
+                        return serverContext;  // trusts the certificate of the server
+                    }
+                };
+            try (final InputStream in = engine.download(log, task(0, true), new FtpHost("127.0.0.1", Optional.<Integer>empty()), server.getPort(),
+                        TunedConnector.DEFAULT_BUFFER_SIZE, "/file.csv", 10)) {
+                assertArrayEquals(readAll(in), Arrays.copyOfRange(content, 10, content.length));
+            }
+            assertEquals(server.getCommands(), Arrays.asList("AUTH TLS", "USER user", "PASS secret", "PBSZ 0", "PROT P", "TYPE I",
+                        "PASV", "REST 10", "RETR /file.csv"));
+            assertTrue(server.isDataProtected());
+        }
+    }
+
+    @Test
+    public void testFailsOnErrorReply() throws Exception
+    {
+        try (final FakeServer server = new FakeServer(new byte[10], "451 Local error")) {
+            final NioFtpEngine engine = new NioFtpEngine(1);
+            try (final InputStream in = engine.download(log, task(), new FtpHost("127.0.0.1", Optional.<Integer>empty()), server.getPort(),
+                        TunedConnector.DEFAULT_BUFFER_SIZE, "/file.csv", 0)) {
+                readAll(in);
+                fail();
+            }
+            catch (final IOException ex) {
+                assertTrue(ex.getMessage().contains("451"));
+            }
+        }
+    }
+
+    private static FtpReplyParser.Reply reply(final String line) throws IOException
+    {
+        final FtpReplyParser parser = new FtpReplyParser();
+        parser.feed(ByteBuffer.wrap((line + "\r\n").getBytes(StandardCharsets.UTF_8)));
+        return parser.poll();
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    // a server certificate for 127.0.0.1, which the client trusts too
+    private static SSLContext testSSLContext() throws Exception
+    {
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (final InputStream in = TestNioDownload.class.getResourceAsStream("/nio_test_server.p12")) {
+            keyStore.load(in, "changeit".toCharArray());
+        }
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, "changeit".toCharArray());
+        final TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    private static FtpFileInputPlugin.PluginTask task()
+    {
+        return task(0, false);
+    }
+
+    private static FtpFileInputPlugin.PluginTask task(final int connectionIdleTimeout, final boolean ssl)
+    {
+        return (FtpFileInputPlugin.PluginTask) Proxy.newProxyInstance(TestNioDownload.class.getClassLoader(),
+                new Class<?>[] {FtpFileInputPlugin.PluginTask.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args)
+                    {
+                        switch (method.getName()) {
+                        case "getUser":
+                            return Optional.of("user");
+                        case "getPassword":
+                            return Optional.of("secret");
+                        case "getAsciiMode":
+                            return false;
+                        case "getConnectionIdleTimeout":
+                            return connectionIdleTimeout;
+                        case "getSsl":
+                            return ssl;
+                        case "getPassiveMode":
+                        case "getSslExplicit":
+                        case "getSslSessionReuse":
+                        case "getSslVerifyHostname":
+                            return true;
+                        case "getSslVerify":
+                            return Optional.of(true);
+                        case "getSslCipherSuites":
+                            return Collections.emptyList();
+                        case "getSslDataChannelProtection":
+                            return FtpFileInputPlugin.DataChannelProtection.PRIVATE;
+                        case "getSslProvider":
+                        case "getSocketReceiveBuffer":
+                            return Optional.empty();
+                        case "getSSLConfig":
+                            return null;  // the engine of the test creates the context
+                        case "getConnectTimeout":
+                        case "getReadTimeout":
+                        case "getCloseTimeout":
+                            return 10;
+                        case "getTcpNoDelay":
+                        case "getTcpKeepAlive":
+                            return true;
+                        case "getTargetBandwidthMbps":
+                            return 1000;
+                        case "getTransferBufferBudget":
+                            return Optional.empty();
+                        case "getTransferBufferDirect":
+                            return false;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+    // answers downloads on one control connection, with explicit FTPS if tls is given
+    private static class FakeServer
+            implements AutoCloseable
+    {
+        private final ServerSocket control;
+        private final ServerSocket data;
+        private final Thread thread;
+        private final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+        private final int writeSize;
+        private final SSLContext tls;
+        private final CountDownLatch quit = new CountDownLatch(1);
+        private volatile boolean dataProtected;
+
+        FakeServer(final byte[] content, final String transferReply) throws IOException
+        {
+            this(content, transferReply, content.length);
+        }
+
+        // writes the content by writeSize bytes
+        FakeServer(final byte[] content, final String transferReply, final int writeSize) throws IOException
+        {
+            this(content, transferReply, writeSize, null);
+        }
+
+        FakeServer(final byte[] content, final String transferReply, final int writeSize, final SSLContext tls) throws IOException
+        {
+            this.writeSize = Math.max(1, writeSize);
+            this.tls = tls;
+            this.control = new ServerSocket(0);
+            this.data = new ServerSocket(0);
+            this.thread = new Thread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            serve(content, transferReply);
+                        }
+                        catch (final IOException ex) {
+                            // the test fails by itself
+                        }
+                    }
+                });
+            thread.start();
+        }
+
+        int getPort()
+        {
+            return control.getLocalPort();
+        }
+
+        List<String> getCommands()
+        {
+            return new ArrayList<>(commands);
+        }
+
+        boolean isDataProtected()
+        {
+            return dataProtected;
+        }
+
+        void awaitQuit() throws InterruptedException
+        {
+            assertTrue(quit.await(10, TimeUnit.SECONDS));
+        }
+
+        private void serve(final byte[] content, final String transferReply) throws IOException
+        {
+            try (final Socket plain = control.accept()) {
+                Socket socket = plain;
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                OutputStream out = socket.getOutputStream();
+                reply(out, "220-Fake FTP server\r\n220 ready");
+                long offset = 0;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    commands.add(line);
+                    if (line.equals("AUTH TLS")) {
+                        reply(out, "234 Proceed with negotiation");
+                        socket = serverSocket(plain);
+                        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                        out = socket.getOutputStream();
+                    }
+                    else if (line.startsWith("PBSZ")) {
+                        reply(out, "200 PBSZ set");
+                    }
+                    else if (line.startsWith("PROT")) {
+                        dataProtected = line.equals("PROT P");
+                        reply(out, "200 PROT set");
+                    }
+                    else if (line.startsWith("USER")) {
+                        reply(out, "331 Password required");
+                    }
+                    else if (line.startsWith("PASS")) {
+                        reply(out, "230 Logged in");
+                    }
+                    else if (line.startsWith("TYPE")) {
+                        reply(out, "200 Type set");
+                    }
+                    else if (line.equals("PASV")) {
+                        final int port = data.getLocalPort();
+                        reply(out, String.format("227 Entering Passive Mode (127,0,0,1,%d,%d)", port / 256, port % 256));
+                    }
+                    else if (line.startsWith("REST")) {
+                        offset = Long.parseLong(line.substring(5));
+                        reply(out, "350 Restarting");
+                    }
+                    else if (line.startsWith("RETR")) {
+                        reply(out, "150 Opening data connection");
+                        try (final Socket transfer = dataProtected ? serverSocket(data.accept()) : data.accept()) {
+                            transfer.setTcpNoDelay(true);
+                            final OutputStream dataOut = transfer.getOutputStream();
+                            for (int i = (int) offset; i < content.length; i += writeSize) {
+                                dataOut.write(content, i, Math.min(writeSize, content.length - i));
+                                dataOut.flush();
+                                if (writeSize < content.length) {
+                                    pause();
+                                }
+                            }
+                        }
+                        reply(out, transferReply);
+                    }
+                    else if (line.equals("QUIT")) {
+                        commands.remove(commands.size() - 1);
+                        quit.countDown();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private SSLSocket serverSocket(final Socket socket) throws IOException
+        {
+            final SSLSocket ssl = (SSLSocket) tls.getSocketFactory().createSocket(socket, null, socket.getPort(), true);
+            ssl.setUseClientMode(false);
+            ssl.startHandshake();
+            return ssl;
+        }
+
+        private static void pause() throws IOException
+        {
+            try {
+                Thread.sleep(1);
+            }
+            catch (final InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        private static void reply(final OutputStream out, final String reply) throws IOException
+        {
+            out.write((reply + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        @Override
+        public void close() throws Exception
+        {
+            control.close();
+            data.close();
+            thread.join(10000);
+        }
+    }
+}
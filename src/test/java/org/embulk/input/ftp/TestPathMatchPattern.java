@@ -0,0 +1,49 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPathMatchPattern
+{
+    @Test
+    public void testMatches()
+    {
+        final PathMatchPattern pattern = PathMatchPattern.compile("sample_0[12]\\.csv$");
+        assertTrue(pattern.matches("/unittest/sample_01.csv"));
+        assertFalse(pattern.matches("/unittest/sample_03.csv"));
+    }
+
+    @Test
+    public void testUnanchoredPatternNeverPrunes()
+    {
+        final PathMatchPattern pattern = PathMatchPattern.compile("2019/01/");
+        assertTrue(pattern.mayMatchUnder("/logs/2018"));
+        assertTrue(pattern.mayMatchUnder("/logs/2018/12"));
+    }
+
+    @Test
+    public void testAnchoredPatternPrunesImpossibleDirectories()
+    {
+        final PathMatchPattern pattern = PathMatchPattern.compile("^/logs/2019/0[1-3]/\\d{2}/");
+        assertTrue(pattern.mayMatchUnder("/logs"));
+        assertTrue(pattern.mayMatchUnder("/logs/2019"));
+        assertTrue(pattern.mayMatchUnder("/logs/2019/02"));
+        assertTrue(pattern.mayMatchUnder("/logs/2019/02/15"));
+        assertTrue(pattern.mayMatchUnder("/logs/2019/02/15/00"));
+        assertFalse(pattern.mayMatchUnder("/logs/2018"));
+        assertFalse(pattern.mayMatchUnder("/logs/2019/04"));
+        assertFalse(pattern.mayMatchUnder("/logs/2019/02/xx"));
+        assertFalse(pattern.mayMatchUnder("/archive"));
+    }
+
+    @Test
+    public void testAnchoredPatternWithAlternation()
+    {
+        final PathMatchPattern pattern = PathMatchPattern.compile("\\A/data/(foo|bar)/.*\\.csv$");
+        assertTrue(pattern.mayMatchUnder("/data/foo/"));
+        assertTrue(pattern.mayMatchUnder("/data/bar/nested"));
+        assertFalse(pattern.mayMatchUnder("/data/baz"));
+    }
+}
@@ -0,0 +1,70 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSampledInputStream
+{
+    private static final byte[] DATA = "aaa\nbbb\nccc\n".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testTruncatesAtSampleBytes() throws IOException
+    {
+        final AtomicInteger truncated = new AtomicInteger();
+        try (final InputStream in = new SampledInputStream(new ByteArrayInputStream(DATA), 5L, counter(truncated))) {
+            assertEquals(readAll(in), "aaa\nb");
+            assertEquals(in.read(), -1);
+        }
+        assertEquals(truncated.get(), 1);
+    }
+
+    @Test
+    public void testReadsShortStreamWithoutTruncating() throws IOException
+    {
+        final AtomicInteger truncated = new AtomicInteger();
+        try (final InputStream in = new SampledInputStream(new ByteArrayInputStream(DATA), 100L, counter(truncated))) {
+            assertEquals(readAll(in), "aaa\nbbb\nccc\n");
+        }
+        assertEquals(truncated.get(), 0);
+    }
+
+    @Test
+    public void testTruncatesWhenClosedEarly() throws IOException
+    {
+        final AtomicInteger truncated = new AtomicInteger();
+        final InputStream in = new SampledInputStream(new ByteArrayInputStream(DATA), 100L, counter(truncated));
+        assertEquals(in.read(), 'a');
+        in.close();
+        assertEquals(truncated.get(), 1);
+    }
+
+    private static Runnable counter(final AtomicInteger count)
+    {
+        return new Runnable() {
+            @Override
+            public void run()
+            {
+                count.incrementAndGet();
+            }
+        };
+    }
+
+    private static String readAll(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[3];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,107 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestServerChecksum
+{
+    private static final byte[] DATA = "hello\n".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testPrefersHashCommand()
+    {
+        final Optional<ServerChecksum> method = ServerChecksum.negotiate(Arrays.asList(
+                "Features:", " MDTM", " XMD5", " HASH CRC32;MD5*;SHA-1;SHA-256", " REST STREAM", "End"));
+        assertTrue(method.isPresent());
+        assertEquals(method.get().getAlgorithm(), ServerChecksum.Algorithm.SHA_256);
+    }
+
+    @Test
+    public void testFallsBackToXCommands()
+    {
+        final Optional<ServerChecksum> method = ServerChecksum.negotiate(Arrays.asList(
+                "Features:", " XCRC", " XMD5", " SIZE", "End"));
+        assertTrue(method.isPresent());
+        assertEquals(method.get().getAlgorithm(), ServerChecksum.Algorithm.MD5);
+    }
+
+    @Test
+    public void testNoChecksumCommand()
+    {
+        assertFalse(ServerChecksum.negotiate(Arrays.asList("Features:", " MDTM", " SIZE", "End")).isPresent());
+    }
+
+    @Test
+    public void testParsesReplies()
+    {
+        assertEquals(ServerChecksum.parseReply(ServerChecksum.Algorithm.MD5, true,
+                new String[] {"MD5 0-5 B1946AC92492D2347C6235B4D2611184 hello.txt"}).get(), "B1946AC92492D2347C6235B4D2611184");
+        assertEquals(ServerChecksum.parseReply(ServerChecksum.Algorithm.MD5, false,
+                new String[] {"b1946ac92492d2347c6235b4d2611184"}).get(), "b1946ac92492d2347c6235b4d2611184");
+        assertFalse(ServerChecksum.parseReply(ServerChecksum.Algorithm.MD5, false,
+                new String[] {"File not found"}).isPresent());
+        // a path echoed before the digest
+        assertEquals(ServerChecksum.parseReply(ServerChecksum.Algorithm.MD5, false,
+                new String[] {"cafe b1946ac92492d2347c6235b4d2611184"}).get(), "b1946ac92492d2347c6235b4d2611184");
+        assertFalse(ServerChecksum.parseReply(ServerChecksum.Algorithm.SHA_1, false,
+                new String[] {"2024"}).isPresent());
+        assertEquals(ServerChecksum.parseReply(ServerChecksum.Algorithm.CRC32, false,
+                new String[] {"ABC"}).get(), "ABC");
+        assertEquals(ServerChecksum.format(ServerChecksum.Algorithm.CRC32, "363A3020"), "crc32:363a3020");
+        assertEquals(ServerChecksum.format(ServerChecksum.Algorithm.CRC32, "ABC"), "crc32:00000abc");
+    }
+
+    @Test
+    public void testDigestsMatchServerFormat()
+    {
+        assertEquals(digest(ServerChecksum.Algorithm.MD5), "md5:b1946ac92492d2347c6235b4d2611184");
+        assertEquals(digest(ServerChecksum.Algorithm.SHA_256), "sha-256:5891b5b522d5df086d0ff0b110fbd9d21bb4fc7163af34d08286a2e846f6be03");
+        assertEquals(digest(ServerChecksum.Algorithm.CRC32), "crc32:363a3020");
+    }
+
+    @Test
+    public void testChecksumInputStreamVerifiesAtEof() throws IOException
+    {
+        final InputStream in = new ChecksumInputStream(new ByteArrayInputStream(DATA), "hello.txt",
+                ServerChecksum.Algorithm.MD5, "md5:b1946ac92492d2347c6235b4d2611184");
+        assertEquals(in.skip(2), 2L);
+        final byte[] b = new byte[16];
+        assertEquals(in.read(b, 0, b.length), 4);
+        assertEquals(in.read(b, 0, b.length), -1);
+    }
+
+    @Test
+    public void testChecksumInputStreamFailsOnMismatch() throws IOException
+    {
+        // the last byte is missing, as a truncated download
+        final InputStream in = new ChecksumInputStream(new ByteArrayInputStream(DATA, 0, DATA.length - 1), "hello.txt",
+                ServerChecksum.Algorithm.MD5, "md5:b1946ac92492d2347c6235b4d2611184");
+        final byte[] b = new byte[16];
+        assertEquals(in.read(b, 0, b.length), 5);
+        try {
+            in.read(b, 0, b.length);
+            fail();
+        }
+        catch (final IOException ex) {
+            assertTrue(ex.getMessage().contains("hello.txt"));
+        }
+    }
+
+    private static String digest(final ServerChecksum.Algorithm algorithm)
+    {
+        final ServerChecksum.Digest digest = algorithm.newDigest();
+        digest.update(DATA, 0, DATA.length);
+        return digest.format();
+    }
+}
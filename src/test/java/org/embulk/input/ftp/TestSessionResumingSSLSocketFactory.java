@@ -0,0 +1,85 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSessionResumingSSLSocketFactory
+{
+    @Test
+    public void testLayersDataChannelWithControlEndpoint() throws Exception
+    {
+        final RecordingFactory delegate = new RecordingFactory();
+        final SessionResumingSSLSocketFactory factory = new SessionResumingSSLSocketFactory(delegate, "ftp.example.com", 21);
+        factory.createSocket(new Socket(), "192.0.2.1", 65000, true);
+        assertEquals(delegate.endpoints.get(0), "ftp.example.com:21");
+    }
+
+    @Test
+    public void testCountsResumedSessions()
+    {
+        final SessionResumingSSLSocketFactory factory = new SessionResumingSSLSocketFactory(new RecordingFactory(), "ftp.example.com", 21);
+        factory.countHandshake(new byte[] {1, 2, 3});
+        factory.countHandshake(new byte[] {1, 2, 3});
+        factory.countHandshake(new byte[] {0, 1, 2, 3});
+        factory.countHandshake(new byte[0]);
+        assertEquals(factory.getResumedHandshakes(), 1L);
+        assertEquals(factory.getFullHandshakes(), 3L);
+    }
+
+    private static class RecordingFactory
+            extends SSLSocketFactory
+    {
+        private final List<String> endpoints = new ArrayList<>();
+
+        @Override
+        public Socket createSocket(final Socket socket, final String host, final int port, final boolean autoClose)
+        {
+            endpoints.add(host + ":" + port);
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port, final InetAddress localHost, final int localPort)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress host, final int port)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites()
+        {
+            return new String[0];
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites()
+        {
+            return new String[0];
+        }
+    }
+}
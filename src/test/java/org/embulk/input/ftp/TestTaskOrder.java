@@ -0,0 +1,59 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestTaskOrder
+{
+    private static final List<FileEntry> ENTRIES = Arrays.asList(
+            new FileEntry("/a/1", 10L, 0L),
+            new FileEntry("/a/2", 30L, 0L),
+            new FileEntry("/a/3", 20L, 0L),
+            new FileEntry("/b/1", 50L, 0L),
+            new FileEntry("/c/1", FileEntry.UNKNOWN, 0L),
+            new FileEntry("/c/2", 100L, 0L).withRange(60L, 100L));
+
+    @Test
+    public void testListing()
+    {
+        assertEquals(paths(TaskOrder.LISTING.apply(ENTRIES)), Arrays.asList("/a/1", "/a/2", "/a/3", "/b/1", "/c/1", "/c/2"));
+    }
+
+    @Test
+    public void testLargestFirst()
+    {
+        assertEquals(paths(TaskOrder.LARGEST_FIRST.apply(ENTRIES)), Arrays.asList("/b/1", "/c/2", "/a/2", "/a/3", "/a/1", "/c/1"));
+    }
+
+    @Test
+    public void testRoundRobinDirectories()
+    {
+        assertEquals(paths(TaskOrder.ROUND_ROBIN_DIRECTORIES.apply(ENTRIES)), Arrays.asList("/a/1", "/b/1", "/c/1", "/a/2", "/c/2", "/a/3"));
+    }
+
+    @Test
+    public void testSizeInterleaved()
+    {
+        assertEquals(paths(TaskOrder.SIZE_INTERLEAVED.apply(ENTRIES)), Arrays.asList("/b/1", "/c/1", "/c/2", "/a/1", "/a/2", "/a/3"));
+    }
+
+    @Test
+    public void testFromString()
+    {
+        assertEquals(TaskOrder.fromString("largest_first"), TaskOrder.LARGEST_FIRST);
+    }
+
+    private static List<String> paths(final List<FileEntry> entries)
+    {
+        final List<String> paths = new ArrayList<>();
+        for (final FileEntry entry : entries) {
+            paths.add(entry.getPath());
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,116 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TestTlsSocketFactory
+{
+    @Test
+    public void testOrdersPreferredCipherSuitesFirst()
+    {
+        final String[] ordered = TlsSocketFactory.orderCipherSuites(
+                Arrays.asList("TLS_AES_256_GCM_SHA384", "TLS_UNKNOWN", "TLS_AES_128_GCM_SHA256"),
+                new String[] {"TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384", "TLS_CHACHA20_POLY1305_SHA256"},
+                new String[] {"TLS_AES_128_GCM_SHA256", "TLS_CHACHA20_POLY1305_SHA256"});
+        assertArrayEquals(ordered, new String[] {"TLS_AES_256_GCM_SHA384", "TLS_AES_128_GCM_SHA256", "TLS_CHACHA20_POLY1305_SHA256"});
+    }
+
+    @Test
+    public void testReportsUnsupportedCipherSuites()
+    {
+        final TlsSocketFactory factory = new TlsSocketFactory(new RecordingFactory(), Arrays.asList("TLS_AES_128_GCM_SHA256", "TLS_UNKNOWN"));
+        assertEquals(factory.getUnsupportedCipherSuites(), Collections.singletonList("TLS_UNKNOWN"));
+    }
+
+    @Test
+    public void testLeavesDataChannelInCleartextAfterProtC() throws Exception
+    {
+        final RecordingFactory delegate = new RecordingFactory();
+        final TlsSocketFactory factory = new TlsSocketFactory(delegate, Collections.<String>emptyList());
+        factory.createSocket(new Socket(), "ftp.example.com", 21, true);
+        factory.setClearDataChannel(true);
+        final Socket data = new Socket();
+        assertSame(factory.createSocket(data, "192.0.2.1", 65000, true), data);
+        assertEquals(delegate.endpoints, Collections.singletonList("ftp.example.com:21"));
+    }
+
+    @Test
+    public void testUsesProviderWithoutReorderingProviders() throws Exception
+    {
+        final List<Provider> before = Arrays.asList(Security.getProviders());
+        final Provider jsse = TlsSocketFactory.findProvider("SunJSSE");
+        assertSame(TlsSocketFactory.findProvider(jsse.getClass().getName()), jsse);
+        final SSLSocketFactory factory = TlsSocketFactory.newSSLSocketFactory(LoggerFactory.getLogger(TestTlsSocketFactory.class), jsse, null, true);
+        try (final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                final SSLSocket socket = (SSLSocket) factory.createSocket(new Socket(server.getInetAddress(), server.getLocalPort()), "ftp.example.com", 21, true)) {
+            assertEquals(socket.getSSLParameters().getEndpointIdentificationAlgorithm(), "HTTPS");
+        }
+        assertEquals(Arrays.asList(Security.getProviders()), before);
+    }
+
+    private static class RecordingFactory
+            extends SSLSocketFactory
+    {
+        private final List<String> endpoints = new ArrayList<>();
+
+        @Override
+        public Socket createSocket(final Socket socket, final String host, final int port, final boolean autoClose)
+        {
+            endpoints.add(host + ":" + port);
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port, final InetAddress localHost, final int localPort)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress host, final int port)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites()
+        {
+            return new String[0];
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites()
+        {
+            return new String[] {"TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384"};
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestTransferBufferPool
+{
+    private static final int CHUNK = 1024;
+
+    @Test
+    public void testWaitsForBudget()
+    {
+        final TransferBufferPool pool = new TransferBufferPool(CHUNK, 2 * CHUNK, false);
+        final TransferBufferPool.Account first = pool.newAccount();
+        final TransferBufferPool.Account second = pool.newAccount();
+        final AtomicInteger woken = new AtomicInteger();
+        final Runnable wake = new Runnable() {
+            @Override
+            public void run()
+            {
+                woken.incrementAndGet();
+            }
+        };
+        final ByteBuffer a = first.acquire(wake);
+        final ByteBuffer b = first.acquire(wake);
+        assertNull(first.acquire(wake));
+        assertEquals(pool.getUsedBytes(), 2L * CHUNK);
+        assertEquals(pool.getWaits(), 1L);
+
+        // a download holding no chunk gets one over the budget
+        final ByteBuffer c = second.acquire(wake);
+        assertNotNull(c);
+        assertEquals(pool.getPeakBytes(), 3L * CHUNK);
+
+        first.release(a);
+        assertEquals(woken.get(), 1);
+        first.release(b);
+        second.release(c);
+        assertEquals(woken.get(), 1);  // once for each wait
+        assertEquals(pool.getUsedBytes(), 0L);
+    }
+
+    @Test
+    public void testReusesChunksWithinBudget()
+    {
+        final TransferBufferPool pool = new TransferBufferPool(CHUNK, 2 * CHUNK, true);
+        final TransferBufferPool.Account account = pool.newAccount();
+        final Runnable ignore = new Runnable() {
+            @Override
+            public void run()
+            {
+            }
+        };
+        final ByteBuffer a = account.acquire(ignore);
+        assertTrue(a.isDirect());
+        assertEquals(a.capacity(), CHUNK);
+        a.put((byte) 1);
+        account.release(a);
+        assertEquals(pool.getIdleBytes(), (long) CHUNK);
+
+        final ByteBuffer b = account.acquire(ignore);
+        assertSame(b, a);
+        assertEquals(b.position(), 0);
+        assertEquals(pool.getIdleBytes(), 0L);
+
+        // idle chunks and chunks in use stay within the budget
+        final ByteBuffer c = pool.newAccount().acquire(ignore);
+        final ByteBuffer d = pool.newAccount().acquire(ignore);
+        account.release(b);
+        assertEquals(pool.getIdleBytes(), 0L);
+        assertFalse(pool.getUsedBytes() + pool.getIdleBytes() > 2L * CHUNK + CHUNK);
+        assertNotNull(c);
+        assertNotNull(d);
+    }
+
+    @Test
+    public void testUnlimited()
+    {
+        final TransferBufferPool pool = new TransferBufferPool(CHUNK, TransferBufferPool.UNLIMITED, false);
+        final TransferBufferPool.Account account = pool.newAccount();
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(account.acquire(null));
+        }
+        assertEquals(pool.getUsedBytes(), 100L * CHUNK);
+        assertEquals(pool.getWaits(), 0L);
+    }
+}
@@ -0,0 +1,141 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTransferProgress
+{
+    private static final long SECOND = 1000L * 1000 * 1000;
+
+    private long now = 0L;
+
+    @Test
+    public void testCountsFiles()
+    {
+        final TransferProgress progress = new TransferProgress(clock());
+        progress.listed(4);
+        progress.queued(Arrays.asList(
+                new FileEntry("/in/a.csv", 1000L, 0L),
+                new FileEntry("/in/b.csv", 2000L, 0L),
+                new FileEntry("/in/c.csv", FileEntry.UNKNOWN, 0L)));
+        assertEquals(progress.getFilesListed(), 4L);
+        assertEquals(progress.getFilesQueued(), 3L);
+        assertEquals(progress.getBytesTotal(), 3000L);
+
+        progress.started();
+        progress.skipped(new FileEntry("/in/b.csv", 2000L, 0L));
+        assertEquals(progress.getFilesQueued(), 1L);
+        assertEquals(progress.getFilesActive(), 1L);
+        assertEquals(progress.getFilesDone(), 1L);
+        assertEquals(progress.getBytesTotal(), 1000L);
+
+        progress.finished(true);
+        progress.started();
+        progress.finished(false);
+        assertEquals(progress.getFilesQueued(), 0L);
+        assertEquals(progress.getFilesActive(), 0L);
+        assertEquals(progress.getFilesDone(), 2L);
+        assertEquals(progress.getFilesFailed(), 1L);
+    }
+
+    @Test
+    public void testResetsForEachJob() throws IOException
+    {
+        final TransferProgress progress = new TransferProgress(clock());
+        progress.listed(2);
+        progress.queued(Arrays.asList(new FileEntry("/in/a.csv", 1000L, 0L), new FileEntry("/in/b.csv", 1000L, 0L)));
+        progress.started();
+        read(progress.count(new ByteArrayInputStream(new byte[1000])), 1000);
+        progress.finished(true);
+        // the job failed before the second file
+        progress.ended();
+        assertEquals(progress.getFilesQueued(), 0L);
+        assertEquals(progress.getFilesDone(), 1L);
+
+        now += SECOND;
+        progress.reset();
+        progress.listed(1);
+        progress.queued(Arrays.asList(new FileEntry("/in/b.csv", 1000L, 0L)));
+        assertEquals(progress.getFilesListed(), 1L);
+        assertEquals(progress.getFilesQueued(), 1L);
+        assertEquals(progress.getFilesDone(), 0L);
+        assertEquals(progress.getBytesDone(), 0L);
+        assertEquals(progress.getBytesTotal(), 1000L);
+        assertEquals(progress.getBytesPerSecond(), 0L);
+    }
+
+    @Test
+    public void testBytesOfRanges()
+    {
+        assertEquals(TransferProgress.bytesOf(new FileEntry("/in/a.csv", 1000L, 0L, 200L, 700L)), 500L);
+        assertEquals(TransferProgress.bytesOf(new FileEntry("/in/a.csv", 1000L, 0L, 200L, FileEntry.UNKNOWN)), 800L);
+        assertEquals(TransferProgress.bytesOf(new FileEntry("/in/a.csv", FileEntry.UNKNOWN, 0L)), FileEntry.UNKNOWN);
+    }
+
+    @Test
+    public void testRateAndEta() throws IOException
+    {
+        final TransferProgress progress = new TransferProgress(clock());
+        progress.queued(Arrays.asList(new FileEntry("/in/a.csv", 10000000L, 0L)));
+        progress.started();
+        assertEquals(progress.getEtaSeconds(), -1L);
+
+        final InputStream in = progress.count(new ByteArrayInputStream(new byte[2000000]));
+        read(in, 1000000);
+        now += 2 * SECOND;
+        // before the first window passes, the rate is since the start
+        assertEquals(progress.getBytesPerSecond(), 500000L);
+
+        read(in, 1000000);
+        now += 3 * SECOND;
+        assertEquals(progress.getBytesDone(), 2000000L);
+        assertEquals(progress.getBytesPerSecond(), 400000L);
+        assertEquals(progress.getEtaSeconds(), 20L);
+
+        // a stall shows as no throughput after a window
+        now += 5 * SECOND;
+        assertEquals(progress.getBytesPerSecond(), 0L);
+        assertEquals(progress.getEtaSeconds(), -1L);
+    }
+
+    @Test
+    public void testSummary() throws IOException
+    {
+        final TransferProgress progress = new TransferProgress(clock());
+        progress.queued(Arrays.asList(new FileEntry("/in/a.csv", 10000000L, 0L), new FileEntry("/in/b.csv", 10000000L, 0L)));
+        progress.started();
+        read(progress.count(new ByteArrayInputStream(new byte[5000000])), 5000000);
+        now += 5 * SECOND;
+        final String summary = progress.getSummary();
+        assertTrue(summary, summary.startsWith("Progress: 0 of 2 files done, 1 active, 1 queued, 0 failed, 5.0 MB of 20.0 MB (25.0%), 1.0 MB/s"));
+        assertTrue(summary, summary.endsWith("ETA 0:00:15"));
+    }
+
+    private static void read(final InputStream in, final int length) throws IOException
+    {
+        final byte[] b = new byte[4096];
+        int remaining = length;
+        while (remaining > 0) {
+            remaining -= in.read(b, 0, Math.min(b.length, remaining));
+        }
+    }
+
+    private LongSupplier clock()
+    {
+        return new LongSupplier() {
+            @Override
+            public long getAsLong()
+            {
+                return now;
+            }
+        };
+    }
+}
@@ -0,0 +1,52 @@
+package org.embulk.input.ftp;
+
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTunedConnector
+{
+    @Test
+    public void testSizesBufferToBandwidthDelayProduct()
+    {
+        // 100 Mbps over 150 ms
+        assertEquals(TunedConnector.autoBufferSize(150L * 1000 * 1000, 100L * 1000 * 1000 / 8), 1875000);
+    }
+
+    @Test
+    public void testClampsAutoBufferSize()
+    {
+        assertEquals(TunedConnector.autoBufferSize(1000L, 1000L), TunedConnector.MIN_AUTO_BUFFER_SIZE);
+        assertEquals(TunedConnector.autoBufferSize(10L * 1000 * 1000 * 1000, 1000L * 1000 * 1000), TunedConnector.MAX_AUTO_BUFFER_SIZE);
+    }
+
+    @Test
+    public void testUsesDefaultBufferUntilRoundTripIsMeasured()
+    {
+        final TunedConnector connector = new TunedConnector(true, true, TunedConnector.AUTO, 1000L * 1000 * 1000);
+        assertEquals(connector.getRequestedWindow(), TunedConnector.DEFAULT_BUFFER_SIZE);
+    }
+
+    @Test
+    public void testSetsSocketOptions() throws Exception
+    {
+        final TunedConnector connector = new TunedConnector(true, true, TunedConnector.AUTO, 1000L * 1000 * 1000);
+        connector.setConnectionTimeout(5);
+        connector.setReadTimeout(7);
+        try (final ServerSocket server = new ServerSocket(0)) {
+            try (final Socket control = connector.connectForCommunicationChannel("localhost", server.getLocalPort())) {
+                assertTrue(control.getTcpNoDelay());
+                assertTrue(control.getKeepAlive());
+                assertEquals(control.getSoTimeout(), 7000);
+                assertTrue(connector.getRoundTripNanos() > 0);
+            }
+            try (final Socket data = connector.connectForDataTransferChannel("localhost", server.getLocalPort())) {
+                assertTrue(connector.getEffectiveWindow() > 0);
+            }
+        }
+    }
+}